@@ -0,0 +1,29 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Запуск бенчмарков: java -jar benchmarks/target/benchmarks.jar [параметры JMH] [шаблон имени].
+ * Если режимы и профайлеры не заданы в командной строке, результаты выводятся для пропускной способности,
+ * среднего времени и распределения задержек, а профайлер gc показывает скорость выделения памяти.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(cmd);
+        if (cmd.getIncludes().isEmpty()) options.include("benchmarks\\..*");
+        if (cmd.getBenchModes().isEmpty()) {
+            options.mode(Mode.Throughput).mode(Mode.AverageTime).mode(Mode.SampleTime);
+        }
+        if (cmd.getProfilers().isEmpty()) options.addProfiler(GCProfiler.class);
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,114 @@
+package benchmarks;
+
+import files.SimpleFile;
+import io.netty.channel.embedded.EmbeddedChannel;
+import network.JSONDecoder;
+import network.JSONEncoder;
+import network.Message;
+import operations.FileOperation;
+import operations.ManifestOperation;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кодирование и декодирование сообщений JSONEncoder/JSONDecoder: порция файла разного размера
+ * и порция перечня файлов (ManifestOperation) с разным числом файлов.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CodecBenchmark {
+
+    @State(Scope.Thread)
+    public static class FileChunk {
+        @Param({"0", "4096", "65536", "5242880"})
+        int payloadBytes;
+
+        Message message;
+        byte[] encoded;
+        EmbeddedChannel encoder;
+        EmbeddedChannel decoder;
+
+        @Setup
+        public void setup() {
+            byte[] payload = new byte[payloadBytes];
+            new Random(42).nextBytes(payload);
+            message = new Message();
+            message.setOperation(FileOperation.writingFile(FileOperation.create(FileOperation.Entity.FILE, Path.of("user\\dir\\file.bin"))));
+            message.setFile(payload);
+            encoder = new EmbeddedChannel(new JSONEncoder());
+            decoder = new EmbeddedChannel(new JSONDecoder());
+            encoded = encode(encoder, message);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ManifestChunk {
+        @Param({"100", "1000"})
+        int files;
+
+        Message message;
+        byte[] encoded;
+        EmbeddedChannel encoder;
+        EmbeddedChannel decoder;
+
+        @Setup
+        public void setup() {
+            List<SimpleFile> list = new ArrayList<>(files);
+            for (int i = 0; i < files; i++) {
+                SimpleFile f = new SimpleFile();
+                f.setPath("\\d" + i / 100 + "\\d" + i % 10);
+                f.setName("f" + i + ".bin");
+                f.setSize(i * 1024L);
+                f.setCrc32Hash(i * 2654435761L);
+                list.add(f);
+            }
+            message = new Message();
+            message.setOperation(ManifestOperation.chunk(0, true, list));
+            encoder = new EmbeddedChannel(new JSONEncoder());
+            decoder = new EmbeddedChannel(new JSONDecoder());
+            encoded = encode(encoder, message);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeFileChunk(FileChunk state) {
+        return encode(state.encoder, state.message);
+    }
+
+    @Benchmark
+    public Message decodeFileChunk(FileChunk state) {
+        return decode(state.decoder, state.encoded);
+    }
+
+    @Benchmark
+    public Message roundTripFileChunk(FileChunk state) {
+        return decode(state.decoder, encode(state.encoder, state.message));
+    }
+
+    @Benchmark
+    public byte[] encodeManifestChunk(ManifestChunk state) {
+        return encode(state.encoder, state.message);
+    }
+
+    @Benchmark
+    public Message decodeManifestChunk(ManifestChunk state) {
+        return decode(state.decoder, state.encoded);
+    }
+
+    private static byte[] encode(EmbeddedChannel encoder, Message message) {
+        encoder.writeOutbound(message);
+        return encoder.readOutbound();
+    }
+
+    private static Message decode(EmbeddedChannel decoder, byte[] bytes) {
+        decoder.writeInbound(bytes);
+        return decoder.readInbound();
+    }
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import utils.CRC32Hash;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC32Hash.calculateCrc32Hash для файлов разного размера (файл после первого чтения находится в кэше ОС,
+ * поэтому измеряется чтение и расчет, а не скорость диска).
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Crc32Benchmark {
+
+    @Param({"1024", "1048576", "67108864"})
+    int fileBytes;
+
+    Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = TreeGenerator.generateFile(fileBytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long calculateCrc32Hash() {
+        return CRC32Hash.calculateCrc32Hash(file);
+    }
+}
@@ -0,0 +1,81 @@
+package benchmarks;
+
+import files.FileTreeSnapshot;
+import files.SimpleFile;
+import org.openjdk.jmh.annotations.*;
+import sync.ServerManifest;
+import sync.SnapshotCursor;
+import sync.SyncPlan;
+import sync.SyncPlanner;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение "снимка" клиента с перечнем сервера (SyncPlanner, заменивший SynchronizationService).
+ * В перечне сервера changedPercent процентов файлов изменены, столько же отсутствуют и столько же лишних.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DiffBenchmark {
+
+    @Param({"10000"})
+    int files;
+
+    @Param({"0", "1", "10"})
+    int changedPercent;
+
+    @Param({"true", "false"})
+    boolean compact;
+
+    Path root;
+    FileTreeSnapshot snapshot;
+    List<SimpleFile> serverFiles;
+
+    @Setup
+    public void setup() throws IOException {
+        root = TreeGenerator.generate(files, 100, 10, 64);
+        snapshot = new FileTreeSnapshot(root, compact);
+        snapshot.ready().join();
+        serverFiles = new ArrayList<>(files);
+        SnapshotCursor cursor = SnapshotCursor.of(snapshot);
+        // при changedPercent = 0 перечень сервера совпадает со "снимком"
+        boolean perturb = changedPercent > 0;
+        int step = perturb ? 100 / changedPercent : 1;
+        for (int i = 0; cursor.advance(); i++) {
+            String key = cursor.getKey().toString();
+            SimpleFile f = new SimpleFile();
+            f.setPath(key.substring(0, key.lastIndexOf('\\')));
+            f.setName(cursor.getName());
+            f.setSize(cursor.getSize());
+            f.setCrc32Hash(cursor.getCrc32Hash());
+            if (perturb && i % step == 1) continue;
+            if (perturb && i % step == 0) f.setCrc32Hash(f.getCrc32Hash() + 1);
+            serverFiles.add(f);
+            if (perturb && i % step == 2) {
+                SimpleFile extra = new SimpleFile();
+                extra.setPath(f.getPath());
+                extra.setName("removed" + i + ".bin");
+                extra.setSize(i);
+                extra.setCrc32Hash(i);
+                serverFiles.add(extra);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TreeGenerator.delete(root);
+    }
+
+    @Benchmark
+    public SyncPlan plan() throws InterruptedException {
+        return new SyncPlanner(ServerManifest.of(serverFiles)).plan(snapshot);
+    }
+}
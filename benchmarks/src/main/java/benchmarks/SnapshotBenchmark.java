@@ -0,0 +1,65 @@
+package benchmarks;
+
+import files.ClientDirectory;
+import files.FileTreeSnapshot;
+import files.FlatFileTree;
+import files.ParallelTreeScanner;
+import files.SnapshotDirectory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Создание "снимка" сгенерированного дерева: FileTreeSnapshot.fillDirectory (с расчетом хеш-сумм),
+ * компактный FlatFileTree (с хеш-суммами и без) и ParallelTreeScanner.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SnapshotBenchmark {
+
+    @Param({"1000", "10000"})
+    int files;
+
+    @Param({"4096"})
+    int fileBytes;
+
+    Path root;
+    FileTreeSnapshot snapshot;
+
+    @Setup
+    public void setup() throws IOException {
+        root = TreeGenerator.generate(files, 100, 10, fileBytes);
+        snapshot = new FileTreeSnapshot(root, true);
+        snapshot.ready().join();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TreeGenerator.delete(root);
+    }
+
+    @Benchmark
+    public ClientDirectory fillDirectory() throws IOException {
+        return snapshot.fillDirectory(root);
+    }
+
+    @Benchmark
+    public FlatFileTree flatTreeWithHashes() throws IOException {
+        return FlatFileTree.scan(root, true);
+    }
+
+    @Benchmark
+    public FlatFileTree flatTreeWithoutHashes() throws IOException {
+        return FlatFileTree.scan(root, false);
+    }
+
+    @Benchmark
+    public SnapshotDirectory parallelScan() throws IOException {
+        return ParallelTreeScanner.scan(root);
+    }
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * Создает дерево файлов для бенчмарков: root\dA\dB\fN, по filesPerDirectory файлов в директории
+ * и fanOut поддиректорий на первом уровне. Содержимое файлов детерминировано (зависит от номера файла).
+ */
+public final class TreeGenerator {
+
+    private TreeGenerator() {
+    }
+
+    public static Path generate(int files, int filesPerDirectory, int fanOut, int fileBytes) throws IOException {
+        Path root = Files.createTempDirectory("cloudstorage-bench");
+        byte[] content = new byte[fileBytes];
+        for (int i = 0; i < files; i++) {
+            int dir = i / filesPerDirectory;
+            Path parent = root.resolve("d" + dir / fanOut).resolve("d" + dir % fanOut);
+            if (i % filesPerDirectory == 0) Files.createDirectories(parent);
+            new Random(i).nextBytes(content);
+            Files.write(parent.resolve("f" + i + ".bin"), content);
+        }
+        return root;
+    }
+
+    public static Path generateFile(int bytes) throws IOException {
+        Path file = Files.createTempFile("cloudstorage-bench", ".bin");
+        byte[] content = new byte[Math.min(bytes, 1024 * 1024)];
+        new Random(bytes).nextBytes(content);
+        Files.write(file, new byte[0]);
+        for (long written = 0; written < bytes; written += content.length) {
+            Files.write(file, content, StandardOpenOption.APPEND);
+        }
+        return file;
+    }
+
+    public static void delete(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) return;
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
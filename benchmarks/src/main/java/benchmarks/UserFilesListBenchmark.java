@@ -0,0 +1,51 @@
+package benchmarks;
+
+import files.ManifestWalker;
+import files.UserFilesList;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Построение перечня файлов пользователя на сервере (UserFilesList читает и хеширует все файлы)
+ * и потоковый обход в порядке ManifestOrder для передачи перечня клиенту (ManifestWalker).
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UserFilesListBenchmark {
+
+    @Param({"1000", "10000"})
+    int files;
+
+    @Param({"4096"})
+    int fileBytes;
+
+    Path root;
+
+    @Setup
+    public void setup() throws IOException {
+        root = TreeGenerator.generate(files, 100, 10, fileBytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        TreeGenerator.delete(root);
+    }
+
+    @Benchmark
+    public UserFilesList build() {
+        return new UserFilesList(root);
+    }
+
+    @Benchmark
+    public int streamForTransfer() {
+        int count = 0;
+        for (ManifestWalker walker = new ManifestWalker(root, 1000); walker.hasNext(); ) count += walker.next().size();
+        return count;
+    }
+}
@@ -1,45 +1,81 @@
 package client;
 
-import handlers.MessageHandler;
 import handlers.SessionHandler;
 import files.FileTreeSnapshot;
+import metrics.Metrics;
+import pipeline.TransferScheduler;
+import sync.ManifestCache;
+import sync.ServerManifest;
+import sync.SyncExecutor;
+import sync.SyncPlan;
+import sync.SyncPlanner;
 import utils.ThreadPool;
+import utils.WorkloadType;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Client {
     private static final String workDir = System.getProperty("user.home") + "\\CloudStorageGBProject\\ClientDir";
+    private static final String stateDir = System.getProperty("user.home") + "\\CloudStorageGBProject\\ClientState";
     private static final String SERVER_HOST = "localhost";
     private static final int SERVER_PORT = 11111;
     private static String username;
     private static SessionHandler session;
+    private static TransferScheduler transferScheduler;
 
     public Client(String username) {
         Client.username = username;
     }
 
+    /**
+     * Подключение к серверу, авторизация и создание "снимка" выполняются параллельно;
+     * синхронизация начинается, как только готовы "снимок" и перечень файлов на сервере.
+     * При cloudstorage.sync.dryRun=true план синхронизации только выводится, а при cloudstorage.stats.print=true
+     * после первой синхронизации выводятся метрики сервера (например, время применения операций).
+     */
     public void start() throws IOException {
+        long start = System.currentTimeMillis();
         session = new SessionHandler(SERVER_HOST, SERVER_PORT, username);
-        ThreadPool.addTask(session::connectToServer);
+        session.setManifestCache(new ManifestCache(Path.of(stateDir + "\\manifest_" + username)));
+        transferScheduler = new TransferScheduler(session);
+        Metrics.registerMBean();
+        Metrics.gauge("pipeline.schedule.queued", () -> transferScheduler.getStatistics().getQueued());
+        Metrics.gauge("pipeline.schedule.inFlight", () -> transferScheduler.getStatistics().getInFlight());
+        ThreadPool.addTask(WorkloadType.NETWORK, session::connectToServer);
         FileTreeSnapshot fts = new FileTreeSnapshot(Path.of(workDir));
-        while (!session.isAlive()) {
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        fts.ready().thenRun(() -> printPhase("snapshot", start));
+        CompletableFuture<ServerManifest> serverFiles = session.whenConnected()
+                .thenAccept(channel -> printPhase("connection", start))
+                .thenCompose(v -> session.whenAuthorized())
+                .whenComplete((files, e) -> {
+                    if (e == null) printPhase("authorization", start);
+                });
+        try {
+            CompletableFuture.allOf(serverFiles, fts.ready()).join();
+        } catch (CompletionException e) {
+            System.out.println("Synchronization cancelled: " + e.getCause().getMessage());
+            return;
         }
-        new MessageHandler().sendAuthRequest(session);
-
-        while (!session.isAuthorized() || FileTreeSnapshot.isComputing()) {
-            try {
-                Thread.sleep(200);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        try {
+            SyncPlan plan = new SyncPlanner(serverFiles.join()).plan(fts);
+            System.out.println(plan);
+            if (Boolean.getBoolean("cloudstorage.sync.dryRun")) {
+                plan.print();
+                return;
             }
+            new SyncExecutor(transferScheduler).execute(plan);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IllegalStateException e) {
+            System.out.println("Synchronization cancelled: " + e.getMessage());
+            return;
         }
-        SynchronizationService.synchronizeWithServer(fts, session.getServerSideUserFilesList());
+        printPhase("first synchronization", start);
+        if (Boolean.getBoolean("cloudstorage.stats.print")) printServerStatistics();
 //        DirectoryWatcher watcher = null;
 //        try {
 //            (watcher = DirectoryWatcher.init(fts, session)).start();
@@ -48,11 +84,37 @@ public class Client {
 //        }
     }
 
+    private static void printServerStatistics() {
+        session.requestServerStatistics().whenComplete((metrics, e) -> {
+            if (e != null) {
+                System.out.println("Server statistics are not available: " + e.getMessage());
+                return;
+            }
+            System.out.println("Server statistics:");
+            metrics.forEach(m -> System.out.println("  " + m));
+        });
+    }
+
+    private static void printPhase(String phase, long start) {
+        System.out.printf("Startup: %s done at %.3f sec.%n", phase, (System.currentTimeMillis() - start) / 1000.0);
+    }
+
     public static SessionHandler getCurrentClientSession() {
         return session;
     }
 
+    public static TransferScheduler getTransferScheduler() {
+        return transferScheduler;
+    }
+
     public static String getWorkDirPath() {
         return workDir;
     }
+
+    /**
+     * @return директория служебных файлов клиента (вне синхронизируемой директории)
+     */
+    public static String getStateDirPath() {
+        return stateDir;
+    }
 }
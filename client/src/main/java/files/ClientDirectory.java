@@ -19,6 +19,11 @@ public class ClientDirectory implements Comparable<ClientDirectory>, FileSystemE
     private Date creationTime;
     private Date lastModifiedTime;
 
+    /**
+     * Идентификатор директории в файловой системе, см. BasicFileAttributes.fileKey(). Может быть null.
+     */
+    private Object fileKey;
+
     /**
      * Перечень всех подпапок в текущей директории.
      */
@@ -43,6 +48,25 @@ public class ClientDirectory implements Comparable<ClientDirectory>, FileSystemE
         BasicFileAttributes bfa = Files.getFileAttributeView(this.getPath(), BasicFileAttributeView.class).readAttributes();
         this.creationTime = new Date(bfa.creationTime().toMillis());
         this.lastModifiedTime = new Date(bfa.lastModifiedTime().toMillis());
+        this.fileKey = bfa.fileKey();
+        this.subdirectories = new HashMap<>();
+        this.files = new HashMap<>();
+    }
+
+    /**
+     * Создает директорию по сохраненным параметрам, не обращаясь к файловой системе (элемент компактного "снимка").
+     * Содержимое не заполняется, идентификатор директории не задан.
+     *
+     * @param name             имя директории
+     * @param parent           путь до родительской директории
+     * @param creationTime     время создания (0, если неизвестно)
+     * @param lastModifiedTime время изменения
+     */
+    ClientDirectory(String name, Path parent, long creationTime, long lastModifiedTime) {
+        this.name = name;
+        this.parentPathForRoot = parent;
+        this.creationTime = new Date(creationTime);
+        this.lastModifiedTime = new Date(lastModifiedTime);
         this.subdirectories = new HashMap<>();
         this.files = new HashMap<>();
     }
@@ -196,6 +220,14 @@ public class ClientDirectory implements Comparable<ClientDirectory>, FileSystemE
         return new TreeSet<>(this.files.values());
     }
 
+    Collection<ClientDirectory> subdirectoryValues() {
+        return this.subdirectories.values();
+    }
+
+    Collection<ClientFile> fileValues() {
+        return this.files.values();
+    }
+
     public String getName() {
         return this.name;
     }
@@ -204,6 +236,10 @@ public class ClientDirectory implements Comparable<ClientDirectory>, FileSystemE
         return Path.of((parentPathForRoot == null ? parentClientDirectory.getPath() : this.parentPathForRoot) + "\\" + this.name);
     }
 
+    public Object getFileKey() {
+        return fileKey;
+    }
+
     public ClientDirectory getParentDirectory() {
         return parentClientDirectory;
     }
@@ -224,6 +260,16 @@ public class ClientDirectory implements Comparable<ClientDirectory>, FileSystemE
         this.parentClientDirectory = clientDirectory;
     }
 
+    /**
+     * Задает путь до родительской директории для директории, не связанной с деревом (элемента компактного "снимка").
+     *
+     * @param parentPath путь до родительской директории
+     */
+    void setParentPath(Path parentPath) {
+        this.parentClientDirectory = null;
+        this.parentPathForRoot = parentPath;
+    }
+
     public void updateLastModified() throws IOException {
         this.lastModifiedTime.setTime(Files.getLastModifiedTime(this.getPath()).toMillis());
     }
@@ -232,20 +278,6 @@ public class ClientDirectory implements Comparable<ClientDirectory>, FileSystemE
         return subdirectories.isEmpty() && files.isEmpty();
     }
 
-    /**
-     * Рекурсивно осуществляет поиск директории по переданному пути.
-     * Составная часть метода getDirectory() класса FileTreeSnapshot.
-     *
-     * @param splitPath путь, поделенный на отдельные директории
-     * @param pos       текущая позиция в массиве splitPath
-     * @return директорию, которой соответствует переданный путь, иначе - null
-     */
-    ClientDirectory getDirectory(String[] splitPath, int pos) {
-        ClientDirectory dir = subdirectories.get(splitPath[pos]);
-        if (pos == splitPath.length - 1) return dir;
-        return dir.getDirectory(splitPath, pos + 1);
-    }
-
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -19,6 +19,12 @@ public class ClientFile extends SimpleFile implements Comparable<ClientFile> {
     private final Date creationTime;
     private final Date lastModifiedTime;
 
+    /**
+     * Идентификатор файла в файловой системе (устройство + inode), см. BasicFileAttributes.fileKey().
+     * Не меняется при переименовании и перемещении в пределах тома. Может быть null, если файловая система его не предоставляет.
+     */
+    private Object fileKey;
+
     /**
      * Создает "снимок" существующего в файловой системе файла.
      *
@@ -27,11 +33,43 @@ public class ClientFile extends SimpleFile implements Comparable<ClientFile> {
      * @throws IOException если такого файла не существует
      */
     public ClientFile(Path path, ClientDirectory parentClientDirectory) throws IOException {
-        super(path);
+        this(path, parentClientDirectory, true);
+    }
+
+    /**
+     * Создает "снимок" существующего в файловой системе файла.
+     *
+     * @param path                  путь до файла
+     * @param parentClientDirectory родительская директория
+     * @param computeHash           рассчитывать ли хеш-сумму в текущем потоке
+     * @throws IOException если такого файла не существует
+     */
+    public ClientFile(Path path, ClientDirectory parentClientDirectory, boolean computeHash) throws IOException {
+        super(path, computeHash);
         this.parentClientDirectory = parentClientDirectory;
         BasicFileAttributes bfa = Files.getFileAttributeView(this.getFilePath(), BasicFileAttributeView.class).readAttributes();
         this.creationTime = new Date(bfa.creationTime().toMillis());
         this.lastModifiedTime = new Date(bfa.lastModifiedTime().toMillis());
+        this.fileKey = bfa.fileKey();
+    }
+
+    /**
+     * Создает файл по сохраненным параметрам, не обращаясь к файловой системе (элемент компактного "снимка").
+     * Родительская директория и идентификатор файла не заданы.
+     *
+     * @param path             путь до файла
+     * @param size             размер
+     * @param creationTime     время создания (0, если неизвестно)
+     * @param lastModifiedTime время изменения
+     * @param crc32Hash        хеш-сумма
+     */
+    ClientFile(Path path, long size, long creationTime, long lastModifiedTime, long crc32Hash) {
+        this.setPath(path.getParent().toString());
+        this.setName(path.getFileName().toString());
+        this.setSize(size);
+        this.setCrc32Hash(crc32Hash);
+        this.creationTime = new Date(creationTime);
+        this.lastModifiedTime = new Date(lastModifiedTime);
     }
 
     /**
@@ -58,10 +96,21 @@ public class ClientFile extends SimpleFile implements Comparable<ClientFile> {
      * @throws IOException если такого файла уже не существует в файловой системе
      */
     public void updateInfoAfterModifying() throws IOException {
+        updateInfoAfterModifying(true);
+    }
+
+    /**
+     * Обновление параметров, которые изменяются после модификации файла.
+     *
+     * @param computeHash рассчитывать ли хеш-сумму в текущем потоке (иначе ее позже устанавливает конвейер отправки)
+     * @throws IOException если такого файла уже не существует в файловой системе
+     */
+    public void updateInfoAfterModifying(boolean computeHash) throws IOException {
         BasicFileAttributes bfa = Files.getFileAttributeView(this.getFilePath(), BasicFileAttributeView.class).readAttributes();
         this.lastModifiedTime.setTime(bfa.lastModifiedTime().toMillis());
         this.setSize(bfa.size());
-        this.setCrc32Hash(CRC32Hash.calculateCrc32Hash(this.getFilePath()));
+        this.fileKey = bfa.fileKey();
+        if (computeHash) this.setCrc32Hash(CRC32Hash.calculateCrc32Hash(this.getFilePath()));
     }
 
     public Path getFilePath() {
@@ -80,6 +129,10 @@ public class ClientFile extends SimpleFile implements Comparable<ClientFile> {
         return this.lastModifiedTime;
     }
 
+    public Object getFileKey() {
+        return this.fileKey;
+    }
+
     public ClientDirectory getParentDirectory() {
         return this.parentClientDirectory;
     }
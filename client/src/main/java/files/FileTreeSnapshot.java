@@ -1,6 +1,9 @@
 package files;
 
+import metrics.Metrics;
+import utils.CRC32Hash;
 import utils.ThreadPool;
+import utils.WorkloadType;
 
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
@@ -8,16 +11,44 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Используется для создания "снимка" дерева файлов, начиная от заданной директории.
  * Для последующей работы с watcher.DirectoryWatcher.
+ * Изменения накапливаются в SnapshotChanges и публикуются неизменяемой версией "снимка" при запросе currentVersion():
+ * версию можно читать из других потоков без блокировок, пока watcher продолжает вносить изменения.
+ * В компактном режиме (системное свойство cloudstorage.snapshot.compact) "снимок" хранится как FlatFileTree -
+ * он занимает на порядок меньше памяти. Изменения такого "снимка" записываются в FlatTreeOverlay и периодически
+ * сливаются с деревом; элементы (get() и т.п.) создаются по запросу, а версий нет - дерево целиком доступно через getFlatTree().
  */
 public class FileTreeSnapshot {
 
     private final Path initialPath;
+    private final boolean compact;
     private ClientDirectory initialClientDirectory;
-    private static boolean computing = false;
+    private volatile FlatTreeOverlay overlay;
+
+    /**
+     * Индекс элементов "снимка" по пути относительно корневого каталога (корню соответствует пустой путь).
+     */
+    private final Map<Path, FileSystemElement> index = new ConcurrentHashMap<>();
+
+    private volatile SnapshotVersion version;
+    private final SnapshotChanges changes = new SnapshotChanges();
+    private volatile boolean changed;
+
+    /**
+     * Последний удаленный элемент и его неизменяемая копия - для переноса содержимого без копирования при reattach().
+     */
+    private FileSystemElement lastRemovedElement;
+    private SnapshotNode lastRemovedNode;
+    private FlatTreeOverlay.Detached lastRemovedSubtree;
+    private final CompletableFuture<FileTreeSnapshot> ready = new CompletableFuture<>();
 
     /**
      * Создает "снимок" файловой системы, стартовой точкой которого будет являться корневой каталог.
@@ -27,35 +58,75 @@ public class FileTreeSnapshot {
      * @throws IOException если в процессе создания "снимка" в стартовой директории произойдут изменения или в случае недостатка привелегий для открытия директории/файла.
      */
     public FileTreeSnapshot(Path initialPath) throws IOException {
+        this(initialPath, Boolean.getBoolean("cloudstorage.snapshot.compact"));
+    }
+
+    /**
+     * Создает "снимок" файловой системы, стартовой точкой которого будет являться корневой каталог.
+     * Если директории по указанному пути не существует - создает ее.
+     *
+     * @param initialPath путь до корневого каталога
+     * @param compact     хранить ли "снимок" в компактном виде (FlatFileTree)
+     * @throws IOException если в процессе создания "снимка" в стартовой директории произойдут изменения или в случае недостатка привелегий для открытия директории/файла.
+     */
+    public FileTreeSnapshot(Path initialPath, boolean compact) throws IOException {
+        this.compact = compact;
         if (!Files.exists(initialPath)) {
             Files.createDirectories(initialPath);
         }
         this.initialPath = initialPath;
-        ThreadPool.addTask(() -> {
+        ThreadPool.addTask(WorkloadType.SCANNING, () -> {
             try {
                 createSnapshot();
-            } catch (IOException e) {
+                ready.complete(this);
+            } catch (IOException | RuntimeException e) {
                 e.printStackTrace();
+                ready.completeExceptionally(e);
             }
         });
     }
 
     private void createSnapshot() throws IOException {
         long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
         System.out.println("Creating snapshot for " + initialPath + "...");
-        this.initialClientDirectory = fillDirectory(initialPath);
-        System.out.printf("Snapshot created (%.3f sec).\n", ((System.currentTimeMillis() - start) / 1000.0));
+        if (compact) {
+            FlatFileTree flatTree = fillFlatTree(initialPath);
+            this.overlay = new FlatTreeOverlay(flatTree);
+            System.out.printf("Snapshot created: %d elements, ~%d KB (%.3f sec).\n", flatTree.size(), flatTree.estimatedBytes() / 1024, ((System.currentTimeMillis() - start) / 1000.0));
+        } else {
+            this.initialClientDirectory = fillDirectory(initialPath);
+            this.version = new SnapshotVersion(0, initialPath, SnapshotDirectory.of(initialClientDirectory));
+            System.out.printf("Snapshot created (%.3f sec).\n", ((System.currentTimeMillis() - start) / 1000.0));
+        }
+        Metrics.histogram("snapshot.build.nanos").recordSince(startNanos);
     }
 
     /**
+     * Создает компактный "снимок". Хеш-суммы файлов рассчитываются параллельно в пуле WorkloadType.HASHING.
+     *
+     * @param startPath стартовый путь "снимка"
+     * @return компактный "снимок" файловой системы
+     * @throws IOException если стартовая директория недоступна
+     */
+    public FlatFileTree fillFlatTree(Path startPath) throws IOException {
+        return FlatFileTree.scan(startPath, true);
+    }
+
+    /**
+     * Обход дерева выполняется в текущем потоке, а хеш-суммы файлов рассчитываются параллельно в пуле WorkloadType.HASHING.
+     * Метод возвращает управление после того, как будут рассчитаны хеш-суммы всех файлов.
+     *
      * @param startPath стартовый путь "снимка"
      * @return "снимок" файловой системы
      * @throws IOException если в процессе создания "снимка" в стартовой директории произойдут изменения или в случае недостатка привелегий для открытия директории/файла.
      */
     public ClientDirectory fillDirectory(Path startPath) throws IOException {
-        computing = true;
         ClientDirectory result = ClientDirectory.createRootDirectory(startPath);
+        index.clear();
+        index.put(initialPath.relativize(startPath), result);
         final ClientDirectory[] currDir = {result};
+        List<CompletableFuture<Void>> hashTasks = new ArrayList<>();
         try {
             Files.walkFileTree(currDir[0].getPath(), new SimpleFileVisitor<>() {
                 @Override
@@ -63,6 +134,7 @@ public class FileTreeSnapshot {
                     if (!dir.equals(startPath)) {
                         ClientDirectory d = ClientDirectory.createDirectory(dir.getFileName().toString(), dir.getParent());
                         currDir[0].addSubdirectory(d);
+                        index.put(initialPath.relativize(dir), d);
                         currDir[0] = d;
                     }
                     return FileVisitResult.CONTINUE;
@@ -70,7 +142,12 @@ public class FileTreeSnapshot {
 
                 @Override
                 public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    currDir[0].addFile(new ClientFile(file, currDir[0]));
+                    ClientFile f = currDir[0].addFile(new ClientFile(file, currDir[0], false));
+                    index.put(initialPath.relativize(file), f);
+                    hashTasks.add(ThreadPool.submit(WorkloadType.HASHING, () -> {
+                        f.setCrc32Hash(CRC32Hash.calculateCrc32Hash(file));
+                        return null;
+                    }));
                     return FileVisitResult.CONTINUE;
                 }
 
@@ -88,28 +165,332 @@ public class FileTreeSnapshot {
             });
         } catch (IOException e) {
             throw new IOException(e);
+        } finally {
+            CompletableFuture.allOf(hashTasks.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
         }
-        computing = false;
         return result;
     }
 
     /**
-     * Рекурсивный поиск директории по переданному пути.
+     * Поиск директории по переданному пути.
      *
      * @param path путь до директории
-     * @return директория, соответствующая переданному пути
+     * @return директория, соответствующая переданному пути, или null, если такой директории в "снимке" нет
      */
     public ClientDirectory getDirectory(Path path) {
-        String cutPath = path.toString().replace(initialPath.toString(), "");
-        if (cutPath.isEmpty()) return initialClientDirectory;
-        else {
-            String[] s = cutPath.substring(1).split("\\\\");
-            return initialClientDirectory.getDirectory(s, 0);
+        return get(path) instanceof ClientDirectory d ? d : null;
+    }
+
+    /**
+     * Поиск файла по переданному пути.
+     *
+     * @param path путь до файла
+     * @return файл, соответствующий переданному пути, или null, если такого файла в "снимке" нет
+     */
+    public ClientFile getFile(Path path) {
+        return get(path) instanceof ClientFile f ? f : null;
+    }
+
+    /**
+     * Поиск элемента по переданному пути. В компактном режиме элемент, не измененный с последнего слияния
+     * FlatTreeOverlay, создается заново при каждом вызове (без идентификатора файла).
+     *
+     * @param path путь до файла или директории
+     * @return элемент или null, если такого элемента в "снимке" нет
+     */
+    public FileSystemElement get(Path path) {
+        Path key = initialPath.relativize(path);
+        if (compact) {
+            FlatTreeOverlay o = overlay;
+            return o == null ? null : o.element(key);
+        }
+        return index.get(key);
+    }
+
+    /**
+     * Добавляет в "снимок" существующую директорию. Отсутствующие в "снимке" родительские директории также добавляются.
+     *
+     * @param path путь до директории
+     * @return добавленная (или уже существующая) директория
+     * @throws IOException если такой директории не существует в файловой системе
+     */
+    public synchronized ClientDirectory addDirectory(Path path) throws IOException {
+        ClientDirectory existing = getDirectory(path);
+        if (existing != null) return existing;
+        if (path.equals(initialPath) || !path.startsWith(initialPath)) {
+            throw new IOException("Path is outside of snapshot: " + path);
+        }
+        Path key = initialPath.relativize(path);
+        if (compact) {
+            addDirectory(path.getParent());
+            ClientDirectory d = ClientDirectory.createDirectory(path.getFileName().toString(), path.getParent());
+            overlay.put(key, SnapshotDirectory.empty(d.getName(), d.getLastModifiedTime().getTime()), d);
+            return d;
+        }
+        ClientDirectory d = addDirectory(path.getParent()).addSubdirectory(path.getFileName().toString());
+        index.put(key, d);
+        publishPut(key, SnapshotDirectory.empty(d.getName(), d.getLastModifiedTime().getTime()));
+        return d;
+    }
+
+    /**
+     * Добавляет (или обновляет) в "снимке" существующий файл. Отсутствующие в "снимке" родительские директории также добавляются.
+     *
+     * @param path путь до файла
+     * @return добавленный файл
+     * @throws IOException если такого файла не существует в файловой системе
+     */
+    public synchronized ClientFile addFile(Path path) throws IOException {
+        return addFile(path, true);
+    }
+
+    /**
+     * Добавляет (или обновляет) в "снимке" существующий файл. Отсутствующие в "снимке" родительские директории также добавляются.
+     *
+     * @param path        путь до файла
+     * @param computeHash рассчитывать ли хеш-сумму в текущем потоке (иначе она устанавливается позже методом setFileHash())
+     * @return добавленный файл
+     * @throws IOException если такого файла не существует в файловой системе
+     */
+    public synchronized ClientFile addFile(Path path, boolean computeHash) throws IOException {
+        ClientDirectory parent = addDirectory(path.getParent());
+        Path key = initialPath.relativize(path);
+        if (compact) {
+            ClientFile f = new ClientFile(path, null, computeHash);
+            overlay.put(key, SnapshotNode.of(f), f);
+            return f;
+        }
+        ClientFile f = parent.addFile(new ClientFile(path, parent, computeHash));
+        index.put(key, f);
+        publishPut(key, SnapshotNode.of(f));
+        return f;
+    }
+
+    /**
+     * Обновляет в "снимке" параметры измененного элемента.
+     *
+     * @param path путь до элемента
+     * @return обновленный элемент или null, если такого элемента в "снимке" нет
+     * @throws IOException если элемента уже не существует в файловой системе
+     */
+    public synchronized FileSystemElement modify(Path path) throws IOException {
+        return modify(path, true);
+    }
+
+    /**
+     * Обновляет в "снимке" параметры измененного элемента.
+     *
+     * @param path        путь до элемента
+     * @param computeHash рассчитывать ли хеш-сумму файла в текущем потоке (иначе она устанавливается позже методом setFileHash())
+     * @return обновленный элемент или null, если такого элемента в "снимке" нет
+     * @throws IOException если элемента уже не существует в файловой системе
+     */
+    public synchronized FileSystemElement modify(Path path, boolean computeHash) throws IOException {
+        Path key = initialPath.relativize(path);
+        FileSystemElement element = get(path);
+        SnapshotVersion v = version;
+        if (element instanceof ClientDirectory d) {
+            d.updateLastModified();
+            if (compact) {
+                overlay.touch(key, d.getLastModifiedTime().getTime(), d);
+            } else if (v != null) {
+                changes.touch(v.getRoot(), key, d.getLastModifiedTime().getTime());
+                changed = true;
+            }
+        } else if (element instanceof ClientFile f) {
+            f.updateInfoAfterModifying(computeHash);
+            publishFile(key, f);
+        }
+        return element;
+    }
+
+    /**
+     * Устанавливает хеш-сумму файла, рассчитанную вне "снимка".
+     *
+     * @param path      путь до файла
+     * @param crc32Hash хеш-сумма
+     */
+    public synchronized void setFileHash(Path path, long crc32Hash) {
+        if (get(path) instanceof ClientFile f) {
+            f.setCrc32Hash(crc32Hash);
+            publishFile(initialPath.relativize(path), f);
+        }
+    }
+
+    /**
+     * Удаляет элемент из "снимка" вместе со всем содержимым (для директории).
+     *
+     * @param path путь до элемента
+     * @return удаленный элемент или null, если такого элемента в "снимке" нет
+     */
+    public synchronized FileSystemElement remove(Path path) {
+        Path key = initialPath.relativize(path);
+        FileSystemElement element = get(path);
+        if (element == null) return null;
+        if (compact) {
+            lastRemovedElement = element;
+            lastRemovedSubtree = overlay.remove(key);
+            return element;
+        }
+        if (element instanceof ClientDirectory d) {
+            d.getParentDirectory().removeSubdirectory(d.getName());
+        } else if (element instanceof ClientFile f) {
+            f.getParentDirectory().removeFile(f.getName());
+        }
+        unindex(key, element);
+        SnapshotVersion v = version;
+        if (v != null) {
+            lastRemovedElement = element;
+            lastRemovedNode = changes.remove(v.getRoot(), key);
+            changed = true;
+        }
+        return element;
+    }
+
+    /**
+     * Помещает ранее удаленный из "снимка" элемент по новому пути (переименование и/или перемещение).
+     * Ключи индекса для всего содержимого директории пересчитываются.
+     *
+     * @param element элемент, удаленный методом remove()
+     * @param newPath новый путь элемента
+     * @return переданный элемент
+     * @throws IOException если родительской директории не существует в файловой системе
+     */
+    public synchronized FileSystemElement reattach(FileSystemElement element, Path newPath) throws IOException {
+        ClientDirectory parent = addDirectory(newPath.getParent());
+        String newName = newPath.getFileName().toString();
+        Path key = initialPath.relativize(newPath);
+        if (compact) {
+            // содержимое директории, удаленной не последней, берется из файловой системы
+            FlatTreeOverlay.Detached detached = element == lastRemovedElement && lastRemovedSubtree != null ? lastRemovedSubtree
+                    : FlatTreeOverlay.detached(element instanceof ClientDirectory ? ParallelTreeScanner.scan(newPath) : SnapshotNode.of(element));
+            overlay.attach(key, detached, element);
+            lastRemovedElement = null;
+            lastRemovedSubtree = null;
+            return element;
+        }
+        if (element instanceof ClientDirectory d) {
+            d.rename(newName);
+            parent.addSubdirectory(d);
+        } else if (element instanceof ClientFile f) {
+            f.rename(newName);
+            parent.addFile(f);
         }
+        reindex(key, element);
+        publishPut(key, element == lastRemovedElement && lastRemovedNode != null ? lastRemovedNode.withName(newName) : SnapshotNode.of(element));
+        lastRemovedElement = null;
+        lastRemovedNode = null;
+        return element;
+    }
+
+    /**
+     * Переименовывает и/или перемещает элемент "снимка".
+     *
+     * @param oldPath прежний путь элемента
+     * @param newPath новый путь элемента
+     * @return перемещенный элемент или null, если элемента по прежнему пути в "снимке" нет
+     * @throws IOException если родительской директории не существует в файловой системе
+     */
+    public synchronized FileSystemElement move(Path oldPath, Path newPath) throws IOException {
+        FileSystemElement element = remove(oldPath);
+        return element == null ? null : reattach(element, newPath);
+    }
+
+    private void publishFile(Path key, ClientFile f) {
+        if (compact) overlay.put(key, SnapshotNode.of(f), f);
+        else publishPut(key, SnapshotNode.of(f));
     }
 
-    public static boolean isComputing() {
-        return computing;
+    private void publishPut(Path key, SnapshotNode node) {
+        if (version == null) return;
+        changes.put(key, node);
+        changed = true;
+    }
+
+    private void unindex(Path key, FileSystemElement element) {
+        index.remove(key);
+        if (element instanceof ClientDirectory d) {
+            for (ClientDirectory sub : d.subdirectoryValues()) unindex(key.resolve(sub.getName()), sub);
+            for (ClientFile f : d.fileValues()) index.remove(key.resolve(f.getName()));
+        }
+    }
+
+    private void reindex(Path key, FileSystemElement element) {
+        index.put(key, element);
+        if (element instanceof ClientDirectory d) {
+            String dirPath = d.getPath().toString();
+            for (ClientDirectory sub : d.subdirectoryValues()) reindex(key.resolve(sub.getName()), sub);
+            for (ClientFile f : d.fileValues()) {
+                f.setPath(dirPath);
+                index.put(key.resolve(f.getName()), f);
+            }
+        }
+    }
+
+    /**
+     * Если с прошлого вызова в "снимок" вносились изменения, публикует новую версию: копируются только директории
+     * с изменениями, поэтому стоимость публикации не зависит от числа событий между вызовами.
+     *
+     * @return текущая неизменяемая версия "снимка" или null, если "снимок" еще не создан или хранится в компактном виде
+     * (версий у компактного "снимка" нет, см. getFlatTree())
+     */
+    public SnapshotVersion currentVersion() {
+        return changed ? publish() : version;
+    }
+
+    private synchronized SnapshotVersion publish() {
+        if (changed) {
+            long startNanos = System.nanoTime();
+            version = version.next(changes.apply(version.getRoot()));
+            changed = false;
+            Metrics.histogram("snapshot.publish.nanos").recordSince(startNanos);
+        }
+        return version;
+    }
+
+    /**
+     * Поиск неизменяемой копии элемента "снимка"; в компактном режиме копия собирается по FlatFileTree.
+     *
+     * @param path путь до файла или директории
+     * @return файл, директория (вместе со всем содержимым) или null, если такого элемента в "снимке" нет
+     */
+    public SnapshotNode find(Path path) {
+        Path key = initialPath.relativize(path);
+        if (compact) {
+            FlatFileTree tree = getFlatTree();
+            int node = tree.find(key);
+            return node == FlatFileTree.NOT_FOUND ? null : tree.toSnapshotNode(node);
+        }
+        SnapshotVersion v = currentVersion();
+        return v == null ? null : v.find(key);
+    }
+
+    /**
+     * @return future, которое завершится, когда "снимок" будет создан (вместе с хеш-суммами всех файлов)
+     */
+    public CompletableFuture<FileTreeSnapshot> ready() {
+        return ready;
+    }
+
+    /**
+     * Поиск элемента компактного "снимка" по переданному пути.
+     *
+     * @param path путь до файла или директории
+     * @return узел FlatFileTree или FlatFileTree.NOT_FOUND
+     */
+    public int findNode(Path path) {
+        return getFlatTree().find(initialPath.relativize(path));
+    }
+
+    /**
+     * @return компактный "снимок" со всеми внесенными изменениями; в обычном режиме он создается заново по текущей версии "снимка"
+     */
+    public FlatFileTree getFlatTree() {
+        return compact ? overlay.tree() : FlatFileTree.of(currentVersion());
+    }
+
+    public boolean isCompact() {
+        return compact;
     }
 
     public ClientDirectory getInitialDirectory() {
@@ -124,16 +505,34 @@ public class FileTreeSnapshot {
      * Выводит в консоль визуальное представление текущего "снимка"
      */
     public void printFileTree() {
-        printFileTree0(initialClientDirectory, 0);
+        if (compact ? overlay == null : version == null) {
+            System.out.println("Snapshot of " + initialPath + " is not ready yet.");
+        } else if (compact) {
+            FlatFileTree tree = overlay.tree();
+            printFileTree0(tree, tree.root(), 0);
+        } else {
+            printFileTree0(currentVersion().getRoot(), 0);
+        }
+    }
+
+    private void printFileTree0(FlatFileTree tree, int dir, int offset) {
+        System.out.println("\t".repeat(offset) + "[" + tree.name(dir) + "]");
+        int end = tree.firstChild(dir) + tree.childCount(dir);
+        for (int node = tree.firstChild(dir); node < end; node++) {
+            if (tree.isDirectory(node)) printFileTree0(tree, node, offset + 1);
+        }
+        for (int node = tree.firstChild(dir); node < end; node++) {
+            if (!tree.isDirectory(node)) System.out.println("\t".repeat(offset + 1) + tree.name(node));
+        }
     }
 
-    private void printFileTree0(ClientDirectory start, int offset) {
+    private void printFileTree0(SnapshotDirectory start, int offset) {
         System.out.println("\t".repeat(offset) + "[" + start.getName() + "]");
-        for (ClientDirectory dir : start.getSubdirectories()) {
-            printFileTree0(dir, offset + 1);
+        for (int i = 0; i < start.getChildCount(); i++) {
+            if (start.getChild(i) instanceof SnapshotDirectory dir) printFileTree0(dir, offset + 1);
         }
-        for (ClientFile f : start.getFiles()) {
-            System.out.println("\t".repeat(offset + 1) + f.getName());
+        for (int i = 0; i < start.getChildCount(); i++) {
+            if (!start.getChild(i).isDirectory()) System.out.println("\t".repeat(offset + 1) + start.getChild(i).getName());
         }
     }
 
@@ -0,0 +1,358 @@
+package files;
+
+import utils.CRC32Hash;
+import utils.ThreadPool;
+import utils.WorkloadType;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Компактное неизменяемое представление "снимка" дерева файлов (изменения вносятся через FlatTreeOverlay).
+ * Вместо объектов ClientDirectory/ClientFile дерево хранится в параллельных массивах примитивов,
+ * а узел - это индекс в этих массивах. Узлы нумеруются обходом в ширину, поэтому дочерние элементы
+ * каждой директории занимают непрерывный диапазон индексов, отсортированный по имени.
+ * Одинаковые имена хранятся один раз. Обход дерева не создает объектов.
+ */
+public class FlatFileTree {
+
+    public static final int NOT_FOUND = -1;
+    private static final byte DIRECTORY = 1;
+
+    private int count;
+    private int[] parent;
+    private int[] nameId;
+    private long[] size;
+    private long[] lastModified;
+    private long[] creationTime;
+    private long[] hash;
+    private byte[] flags;
+    private int[] firstChild;
+    private int[] childCount;
+    private String[] names;
+    private final Path rootPath;
+
+    private FlatFileTree(Path rootPath, int initialCapacity) {
+        this.rootPath = rootPath;
+        this.parent = new int[initialCapacity];
+        this.nameId = new int[initialCapacity];
+        this.size = new long[initialCapacity];
+        this.lastModified = new long[initialCapacity];
+        this.creationTime = new long[initialCapacity];
+        this.hash = new long[initialCapacity];
+        this.flags = new byte[initialCapacity];
+        this.firstChild = new int[initialCapacity];
+        this.childCount = new int[initialCapacity];
+    }
+
+    /**
+     * Создает "снимок" дерева файлов, начиная с переданной директории.
+     *
+     * @param rootPath    корневая директория
+     * @param computeHash рассчитывать ли хеш-суммы файлов (расчет выполняется в пуле WorkloadType.HASHING)
+     * @return "снимок"
+     * @throws IOException если корневая директория недоступна
+     */
+    public static FlatFileTree scan(Path rootPath, boolean computeHash) throws IOException {
+        Builder builder = new Builder(rootPath);
+        BasicFileAttributes rootAttrs = Files.readAttributes(rootPath, BasicFileAttributes.class);
+        int root = builder.add(NOT_FOUND, rootPath.getFileName() == null ? "" : rootPath.getFileName().toString(), rootAttrs);
+        // хеш-суммы рассчитываются в других потоках, пока массивы дерева еще растут, поэтому задачи возвращают
+        // результат, а в дерево он записывается после обхода
+        List<CompletableFuture<Long>> hashTasks = new ArrayList<>();
+        List<Integer> hashNodes = new ArrayList<>();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        ArrayDeque<Path> paths = new ArrayDeque<>();
+        queue.add(root);
+        paths.add(rootPath);
+        List<Map.Entry<String, BasicFileAttributes>> entries = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int dir = queue.poll();
+            Path dirPath = paths.poll();
+            entries.clear();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath)) {
+                for (Path p : stream) {
+                    try {
+                        entries.add(Map.entry(p.getFileName().toString(), Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS)));
+                    } catch (IOException e) {
+                        System.out.println("Problem with file: " + p);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Problem with directory: " + dirPath);
+                continue;
+            }
+            entries.sort(Map.Entry.comparingByKey());
+            builder.children(dir, entries.size());
+            for (Map.Entry<String, BasicFileAttributes> e : entries) {
+                int node = builder.add(dir, e.getKey(), e.getValue());
+                Path p = dirPath.resolve(e.getKey());
+                if (e.getValue().isDirectory()) {
+                    queue.add(node);
+                    paths.add(p);
+                } else if (computeHash) {
+                    hashNodes.add(node);
+                    hashTasks.add(ThreadPool.submit(WorkloadType.HASHING, () -> CRC32Hash.calculateCrc32Hash(p)));
+                }
+            }
+        }
+        CompletableFuture.allOf(hashTasks.toArray(new CompletableFuture<?>[0])).exceptionally(e -> null).join();
+        FlatFileTree tree = builder.build();
+        for (int i = 0; i < hashTasks.size(); i++) {
+            CompletableFuture<Long> task = hashTasks.get(i);
+            if (!task.isCompletedExceptionally()) tree.hash[hashNodes.get(i)] = task.join();
+        }
+        return tree;
+    }
+
+    /**
+     * Создает компактное представление версии "снимка".
+     *
+     * @param version версия "снимка"
+     * @return компактный "снимок"
+     */
+    public static FlatFileTree of(SnapshotVersion version) {
+        Builder builder = new Builder(version.getRootPath());
+        SnapshotDirectory rootDirectory = version.getRoot();
+        int root = builder.add(NOT_FOUND, rootDirectory.getName(), true, 0, rootDirectory.getLastModified(), 0, 0);
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        ArrayDeque<SnapshotDirectory> dirs = new ArrayDeque<>();
+        queue.add(root);
+        dirs.add(rootDirectory);
+        while (!queue.isEmpty()) {
+            int dir = queue.poll();
+            SnapshotDirectory d = dirs.poll();
+            builder.children(dir, d.getChildCount());
+            for (int i = 0; i < d.getChildCount(); i++) {
+                SnapshotNode e = d.getChild(i);
+                if (e instanceof SnapshotDirectory sub) {
+                    queue.add(builder.add(dir, sub.getName(), true, 0, sub.getLastModified(), 0, 0));
+                    dirs.add(sub);
+                } else if (e instanceof SnapshotFile f) {
+                    builder.add(dir, f.getName(), false, f.getSize(), f.getLastModified(), f.getCrc32Hash(), 0);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    public int root() {
+        return 0;
+    }
+
+    /**
+     * @return количество узлов (файлов и директорий, включая корень)
+     */
+    public int size() {
+        return count;
+    }
+
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    public boolean isDirectory(int node) {
+        return (flags[node] & DIRECTORY) != 0;
+    }
+
+    public String name(int node) {
+        return names[nameId[node]];
+    }
+
+    public int parent(int node) {
+        return parent[node];
+    }
+
+    public long size(int node) {
+        return size[node];
+    }
+
+    public long lastModified(int node) {
+        return lastModified[node];
+    }
+
+    /**
+     * @return время создания элемента или 0, если оно неизвестно (элемент добавлен не из файловой системы)
+     */
+    public long creationTime(int node) {
+        return creationTime[node];
+    }
+
+    public long hash(int node) {
+        return hash[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int childCount(int node) {
+        return childCount[node];
+    }
+
+    /**
+     * Ищет дочерний элемент директории по имени двоичным поиском.
+     *
+     * @param dir  директория
+     * @param name имя элемента
+     * @return узел или NOT_FOUND
+     */
+    public int findChild(int dir, CharSequence name) {
+        int lo = firstChild[dir];
+        int hi = lo + childCount[dir] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(names[nameId[mid]], name);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Ищет узел по пути относительно корня "снимка".
+     *
+     * @param relativePath относительный путь (пустой путь - корень)
+     * @return узел или NOT_FOUND
+     */
+    public int find(Path relativePath) {
+        int node = root();
+        if (relativePath.toString().isEmpty()) return node;
+        for (Path part : relativePath) {
+            if (!isDirectory(node)) return NOT_FOUND;
+            node = findChild(node, part.toString());
+            if (node == NOT_FOUND) return NOT_FOUND;
+        }
+        return node;
+    }
+
+    /**
+     * Дописывает в переданный буфер путь узла относительно корня "снимка".
+     *
+     * @param node узел
+     * @param sb   буфер
+     * @return переданный буфер
+     */
+    public StringBuilder appendRelativePath(int node, StringBuilder sb) {
+        if (node == root()) return sb;
+        int p = parent[node];
+        if (p != root()) {
+            appendRelativePath(p, sb);
+            sb.append(rootPath.getFileSystem().getSeparator());
+        }
+        return sb.append(names[nameId[node]]);
+    }
+
+    public Path path(int node) {
+        return rootPath.resolve(appendRelativePath(node, new StringBuilder()).toString());
+    }
+
+    /**
+     * Создает неизменяемую копию элемента (для директории - вместе со всем содержимым).
+     *
+     * @param node узел
+     * @return файл или директория
+     */
+    SnapshotNode toSnapshotNode(int node) {
+        if (!isDirectory(node)) return new SnapshotFile(name(node), lastModified[node], size[node], hash[node]);
+        List<SnapshotNode> children = new ArrayList<>(childCount[node]);
+        int end = firstChild[node] + childCount[node];
+        for (int child = firstChild[node]; child < end; child++) children.add(toSnapshotNode(child));
+        return SnapshotDirectory.of(name(node), lastModified[node], children);
+    }
+
+    public int countFiles() {
+        int result = 0;
+        for (int i = 0; i < count; i++) {
+            if ((flags[i] & DIRECTORY) == 0) result++;
+        }
+        return result;
+    }
+
+    /**
+     * @return примерный объем памяти, занимаемый массивами "снимка"
+     */
+    public long estimatedBytes() {
+        long perNode = 4L * 5 + 8L * 4 + 1;
+        long namesBytes = 0;
+        for (String n : names) {
+            namesBytes += 40 + n.length();
+        }
+        return perNode * count + namesBytes;
+    }
+
+    private static int compare(String a, CharSequence b) {
+        int len = Math.min(a.length(), b.length());
+        for (int i = 0; i < len; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y) return x - y;
+        }
+        return a.length() - b.length();
+    }
+
+    /**
+     * Заполняет массивы дерева в порядке обхода в ширину: после добавления директории ее дочерние элементы
+     * добавляются подряд, сразу после вызова children().
+     */
+    static class Builder {
+        private final FlatFileTree tree;
+        private final Map<String, Integer> nameIds = new HashMap<>();
+        private final List<String> names = new ArrayList<>();
+
+        Builder(Path rootPath) {
+            this.tree = new FlatFileTree(rootPath, 1024);
+        }
+
+        private int add(int parent, String name, BasicFileAttributes attrs) {
+            return add(parent, name, attrs.isDirectory(), attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis(), 0, attrs.creationTime().toMillis());
+        }
+
+        /**
+         * Отмечает, что следующие count добавленных элементов - дочерние элементы директории dir.
+         */
+        void children(int dir, int count) {
+            tree.firstChild[dir] = tree.count;
+            tree.childCount[dir] = count;
+        }
+
+        int add(int parent, String name, boolean directory, long size, long lastModified, long hash, long creationTime) {
+            ensureCapacity(tree.count + 1);
+            int node = tree.count++;
+            tree.parent[node] = parent;
+            tree.nameId[node] = nameIds.computeIfAbsent(name, n -> {
+                names.add(n);
+                return names.size() - 1;
+            });
+            tree.size[node] = size;
+            tree.lastModified[node] = lastModified;
+            tree.creationTime[node] = creationTime;
+            tree.hash[node] = hash;
+            tree.flags[node] = directory ? DIRECTORY : 0;
+            return node;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity <= tree.parent.length) return;
+            int newCapacity = Math.max(capacity, tree.parent.length * 2);
+            tree.parent = Arrays.copyOf(tree.parent, newCapacity);
+            tree.nameId = Arrays.copyOf(tree.nameId, newCapacity);
+            tree.size = Arrays.copyOf(tree.size, newCapacity);
+            tree.lastModified = Arrays.copyOf(tree.lastModified, newCapacity);
+            tree.creationTime = Arrays.copyOf(tree.creationTime, newCapacity);
+            tree.hash = Arrays.copyOf(tree.hash, newCapacity);
+            tree.flags = Arrays.copyOf(tree.flags, newCapacity);
+            tree.firstChild = Arrays.copyOf(tree.firstChild, newCapacity);
+            tree.childCount = Arrays.copyOf(tree.childCount, newCapacity);
+        }
+
+        FlatFileTree build() {
+            tree.names = names.toArray(new String[0]);
+            return tree;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package files;
+
+import metrics.Metrics;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Изменяемая надстройка над компактным "снимком" (FlatFileTree): изменения записываются в небольшую таблицу
+ * по путям относительно корня, а массивы базового дерева не перестраиваются на каждое событие.
+ * Запись таблицы перекрывает базовое дерево: путь удален, по нему находится узел FlatFileTree (перемещенный элемент,
+ * директория с новым временем изменения) или неизменяемый SnapshotNode (новый или измененный элемент).
+ * Остальные пути разрешаются по базовому дереву. Когда записей становится больше cloudstorage.snapshot.overlayLimit,
+ * а также при запросе дерева целиком (tree()), таблица сливается с базовым деревом в новый FlatFileTree.
+ * Для элементов, измененных по событиям файловой системы, до слияния хранятся их FileSystemElement
+ * (с идентификатором файла); остальные элементы создаются по сохраненным параметрам при каждом запросе.
+ */
+final class FlatTreeOverlay {
+
+    private static final int LIMIT = Integer.getInteger("cloudstorage.snapshot.overlayLimit", 4096);
+    private static final Path ROOT = Path.of("");
+    private static final Entry REMOVED = new Entry(null, FlatFileTree.NOT_FOUND, null, 0);
+
+    private FlatFileTree base;
+    private final Map<Path, Entry> entries = new HashMap<>();
+    private final Map<Path, FileSystemElement> elements = new HashMap<>();
+
+    FlatTreeOverlay(FlatFileTree base) {
+        this.base = base;
+    }
+
+    /**
+     * Содержимое пути: узел index дерева tree или неизменяемый элемент node.
+     * Имя элемента определяется путем, по которому он находится.
+     */
+    private static final class Entry {
+        private final FlatFileTree tree;
+        private final int index;
+        private final SnapshotNode node;
+        private final long lastModified;
+
+        private Entry(FlatFileTree tree, int index, SnapshotNode node, long lastModified) {
+            this.tree = tree;
+            this.index = index;
+            this.node = node;
+            this.lastModified = lastModified;
+        }
+
+        private static Entry of(FlatFileTree tree, int index) {
+            return new Entry(tree, index, null, tree.lastModified(index));
+        }
+
+        private static Entry of(SnapshotNode node) {
+            return new Entry(null, FlatFileTree.NOT_FOUND, node, node.getLastModified());
+        }
+
+        private boolean isDirectory() {
+            return node != null ? node.isDirectory() : tree.isDirectory(index);
+        }
+
+        private long size() {
+            return node instanceof SnapshotFile f ? f.getSize() : node != null ? 0 : tree.size(index);
+        }
+
+        private long hash() {
+            return node instanceof SnapshotFile f ? f.getCrc32Hash() : node != null ? 0 : tree.hash(index);
+        }
+
+        private long creationTime() {
+            return node != null ? 0 : tree.creationTime(index);
+        }
+
+        private Entry child(String name) {
+            if (node instanceof SnapshotDirectory d) {
+                SnapshotNode child = d.getChild(name);
+                return child == null ? null : of(child);
+            }
+            if (node != null || !tree.isDirectory(index)) return null;
+            int child = tree.findChild(index, name);
+            return child == FlatFileTree.NOT_FOUND ? null : of(tree, child);
+        }
+
+        private void appendChildren(List<String> names, List<Entry> children) {
+            if (node instanceof SnapshotDirectory d) {
+                for (int i = 0; i < d.getChildCount(); i++) {
+                    names.add(d.getChild(i).getName());
+                    children.add(of(d.getChild(i)));
+                }
+            } else if (node == null && tree.isDirectory(index)) {
+                int end = tree.firstChild(index) + tree.childCount(index);
+                for (int child = tree.firstChild(index); child < end; child++) {
+                    names.add(tree.name(child));
+                    children.add(of(tree, child));
+                }
+            }
+        }
+
+        private FileSystemElement toElement(Path path) {
+            if (isDirectory()) return new ClientDirectory(path.getFileName().toString(), path.getParent(), creationTime(), lastModified);
+            return new ClientFile(path, size(), creationTime(), lastModified, hash());
+        }
+    }
+
+    /**
+     * Элемент, удаленный из дерева, вместе с записями таблицы внутри него - для переноса по новому пути (см. attach()).
+     */
+    static final class Detached {
+        private final Entry entry;
+        private final Map<Path, Entry> entries;
+        private final Map<Path, FileSystemElement> elements;
+
+        private Detached(Entry entry, Map<Path, Entry> entries, Map<Path, FileSystemElement> elements) {
+            this.entry = entry;
+            this.entries = entries;
+            this.elements = elements;
+        }
+    }
+
+    /**
+     * @param node содержимое элемента
+     * @return элемент, которого в дереве не было, для переноса в дерево методом attach()
+     */
+    static Detached detached(SnapshotNode node) {
+        return new Detached(Entry.of(node), Map.of(), Map.of());
+    }
+
+    /**
+     * @param key путь относительно корня
+     * @return элемент или null, если его нет
+     */
+    synchronized FileSystemElement element(Path key) {
+        FileSystemElement element = elements.get(key);
+        if (element != null) return element;
+        Entry e = find(key);
+        return e == null ? null : e.toElement(base.getRootPath().resolve(key));
+    }
+
+    /**
+     * Записывает новое состояние элемента (добавленного файла или директории, измененного файла).
+     *
+     * @param key     путь относительно корня
+     * @param node    неизменяемое состояние элемента
+     * @param element элемент, по которому оно получено
+     */
+    synchronized void put(Path key, SnapshotNode node, FileSystemElement element) {
+        entries.put(key, Entry.of(node));
+        elements.put(key, element);
+        mergeIfFull();
+    }
+
+    /**
+     * Записывает новое время изменения директории, сохраняя ее содержимое.
+     *
+     * @param key          путь относительно корня
+     * @param lastModified время изменения
+     * @param element      директория
+     */
+    synchronized void touch(Path key, long lastModified, FileSystemElement element) {
+        Entry e = find(key);
+        if (e == null || !e.isDirectory()) return;
+        entries.put(key, e.node instanceof SnapshotDirectory d ? Entry.of(d.withLastModified(lastModified)) : new Entry(e.tree, e.index, null, lastModified));
+        elements.put(key, element);
+        mergeIfFull();
+    }
+
+    /**
+     * Удаляет элемент вместе со всем содержимым.
+     *
+     * @param key путь относительно корня
+     * @return удаленный элемент (для attach()) или null, если его не было
+     */
+    synchronized Detached remove(Path key) {
+        Entry e = find(key);
+        if (e == null) return null;
+        Map<Path, Entry> movedEntries = new HashMap<>();
+        Map<Path, FileSystemElement> movedElements = new HashMap<>();
+        detach(entries, key, movedEntries);
+        detach(elements, key, movedElements);
+        entries.put(key, REMOVED);
+        mergeIfFull();
+        return new Detached(e, movedEntries, movedElements);
+    }
+
+    /**
+     * Помещает удаленный элемент по новому пути; пути элементов внутри него пересчитываются.
+     *
+     * @param key      новый путь относительно корня
+     * @param detached удаленный элемент
+     * @param element  элемент, соответствующий корню перемещаемого поддерева
+     */
+    synchronized void attach(Path key, Detached detached, FileSystemElement element) {
+        detach(entries, key, new HashMap<>());
+        detach(elements, key, new HashMap<>());
+        Entry e = detached.entry;
+        entries.put(key, e.node != null ? Entry.of(e.node.withName(key.getFileName().toString())) : e);
+        Path path = base.getRootPath().resolve(key);
+        relocate(element, path);
+        elements.put(key, element);
+        for (Map.Entry<Path, Entry> moved : detached.entries.entrySet()) entries.put(key.resolve(moved.getKey()), moved.getValue());
+        for (Map.Entry<Path, FileSystemElement> moved : detached.elements.entrySet()) {
+            relocate(moved.getValue(), path.resolve(moved.getKey()));
+            elements.put(key.resolve(moved.getKey()), moved.getValue());
+        }
+        mergeIfFull();
+    }
+
+    /**
+     * @return дерево со всеми внесенными изменениями (таблица изменений при этом сливается с деревом)
+     */
+    synchronized FlatFileTree tree() {
+        if (!entries.isEmpty()) merge();
+        return base;
+    }
+
+    private Entry find(Path key) {
+        if (entries.isEmpty()) {
+            int node = base.find(key);
+            return node == FlatFileTree.NOT_FOUND ? null : Entry.of(base, node);
+        }
+        Entry e = entries.get(ROOT);
+        Entry current = e != null ? e : Entry.of(base, base.root());
+        if (key.toString().isEmpty()) return current;
+        for (int i = 0; i < key.getNameCount(); i++) {
+            if (!current.isDirectory()) return null;
+            e = entries.get(key.subpath(0, i + 1));
+            if (e == REMOVED) return null;
+            current = e != null ? e : current.child(key.getName(i).toString());
+            if (current == null) return null;
+        }
+        return current;
+    }
+
+    private void mergeIfFull() {
+        if (entries.size() > LIMIT) merge();
+    }
+
+    /**
+     * Строит новое базовое дерево обходом в ширину: дочерние элементы директории берутся из ее содержимого,
+     * а затем к ним применяются записи таблицы с этой директорией в качестве родительской.
+     */
+    private void merge() {
+        long startNanos = System.nanoTime();
+        Map<Path, Map<String, Entry>> byParent = new HashMap<>();
+        for (Map.Entry<Path, Entry> e : entries.entrySet()) {
+            Path key = e.getKey();
+            if (key.toString().isEmpty()) continue;
+            Path parent = key.getParent() == null ? ROOT : key.getParent();
+            byParent.computeIfAbsent(parent, p -> new HashMap<>()).put(key.getFileName().toString(), e.getValue());
+        }
+        FlatFileTree.Builder builder = new FlatFileTree.Builder(base.getRootPath());
+        Entry rootEntry = find(ROOT);
+        int root = builder.add(FlatFileTree.NOT_FOUND, base.name(base.root()), true, 0, rootEntry.lastModified, 0, creationTime(ROOT, rootEntry));
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        ArrayDeque<Entry> dirs = new ArrayDeque<>();
+        ArrayDeque<Path> keys = new ArrayDeque<>();
+        queue.add(root);
+        dirs.add(rootEntry);
+        keys.add(ROOT);
+        List<String> names = new ArrayList<>();
+        List<Entry> children = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int dir = queue.poll();
+            Entry d = dirs.poll();
+            Path key = keys.poll();
+            names.clear();
+            children.clear();
+            Map<String, Entry> changed = byParent.get(key);
+            d.appendChildren(names, children);
+            if (changed != null) {
+                TreeMap<String, Entry> merged = new TreeMap<>();
+                for (int i = 0; i < names.size(); i++) merged.put(names.get(i), children.get(i));
+                for (Map.Entry<String, Entry> e : changed.entrySet()) {
+                    if (e.getValue() == REMOVED) merged.remove(e.getKey());
+                    else merged.put(e.getKey(), e.getValue());
+                }
+                names.clear();
+                children.clear();
+                names.addAll(merged.keySet());
+                children.addAll(merged.values());
+            }
+            builder.children(dir, names.size());
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                Entry c = children.get(i);
+                Path childKey = c.isDirectory() || changed != null ? key.resolve(name) : null;
+                long created = changed != null ? creationTime(childKey, c) : c.creationTime();
+                int node = builder.add(dir, name, c.isDirectory(), c.size(), c.lastModified, c.hash(), created);
+                if (c.isDirectory()) {
+                    queue.add(node);
+                    dirs.add(c);
+                    keys.add(childKey);
+                }
+            }
+        }
+        base = builder.build();
+        entries.clear();
+        elements.clear();
+        Metrics.histogram("snapshot.overlay.merge.nanos").recordSince(startNanos);
+    }
+
+    /**
+     * @return время создания элемента: по сохраненному FileSystemElement, если он есть, иначе по содержимому пути
+     */
+    private long creationTime(Path key, Entry e) {
+        FileSystemElement element = elements.get(key);
+        if (element instanceof ClientFile f) return f.getCreationTime().getTime();
+        if (element instanceof ClientDirectory d) return d.getCreationTime().getTime();
+        return e.creationTime();
+    }
+
+    private static <T> void detach(Map<Path, T> from, Path key, Map<Path, T> to) {
+        Iterator<Map.Entry<Path, T>> it = from.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, T> e = it.next();
+            if (!e.getKey().startsWith(key)) continue;
+            if (!e.getKey().equals(key)) to.put(key.relativize(e.getKey()), e.getValue());
+            it.remove();
+        }
+    }
+
+    private static void relocate(FileSystemElement element, Path path) {
+        if (element instanceof ClientFile f) {
+            f.rename(path.getFileName().toString());
+            f.setPath(path.getParent().toString());
+        } else if (element instanceof ClientDirectory d) {
+            d.rename(path.getFileName().toString());
+            d.setParentPath(path.getParent());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package files;
+
+import utils.WorkloadType;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Параллельный обход поддерева (ForkJoin: отдельная задача на каждую директорию).
+ * Результат - неизменяемый SnapshotDirectory без хеш-сумм файлов: для поиска изменений достаточно размера и времени изменения.
+ */
+public class ParallelTreeScanner {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(WorkloadType.SCANNING.getThreads());
+
+    /**
+     * @param dir корень поддерева
+     * @return "снимок" поддерева
+     * @throws IOException если корень поддерева недоступен
+     */
+    public static SnapshotDirectory scan(Path dir) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isDirectory()) throw new NotDirectoryException(dir.toString());
+        try {
+            return POOL.invoke(new ScanTask(dir, attrs.lastModifiedTime().toMillis()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<SnapshotDirectory> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final long lastModified;
+
+        private ScanTask(Path dir, long lastModified) {
+            this.dir = dir;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        protected SnapshotDirectory compute() {
+            List<SnapshotNode> children = new ArrayList<>();
+            List<ScanTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path p : stream) {
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue; // удален во время обхода
+                    }
+                    if (attrs.isDirectory()) {
+                        ScanTask task = new ScanTask(p, attrs.lastModifiedTime().toMillis());
+                        task.fork();
+                        subtasks.add(task);
+                    } else {
+                        children.add(new SnapshotFile(p.getFileName().toString(), attrs.lastModifiedTime().toMillis(), attrs.size(), 0));
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // директория удалена во время обхода
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (ScanTask task : subtasks) {
+                children.add(task.join());
+            }
+            return SnapshotDirectory.of(dir.getFileName() == null ? "" : dir.getFileName().toString(), lastModified, children);
+        }
+    }
+}
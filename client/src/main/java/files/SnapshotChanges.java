@@ -0,0 +1,116 @@
+package files;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Изменения "снимка", еще не опубликованные в версии (см. FileTreeSnapshot.currentVersion()).
+ * Для каждой директории (по пути относительно корня) хранятся новые дочерние элементы по имени (null - элемент удален)
+ * и имена поддиректорий, внутри которых тоже есть изменения. Событие файловой системы только записывается сюда,
+ * а новая версия собирается из предыдущей в apply() - один раз для всех событий с прошлой публикации: копируются
+ * только директории с изменениями, остальные поддеревья разделяются с предыдущей версией.
+ */
+final class SnapshotChanges {
+    private static final Path ROOT = Path.of("");
+
+    private final Map<Path, Changes> changes = new HashMap<>();
+    private long rootLastModified = -1;
+
+    private static final class Changes {
+        final Map<String, SnapshotNode> nodes = new HashMap<>();
+        final Set<String> dirty = new HashSet<>();
+    }
+
+    /**
+     * Помещает элемент по относительному пути; записанные ранее изменения внутри замененной директории отбрасываются.
+     */
+    void put(Path key, SnapshotNode node) {
+        if (node.isDirectory()) drop(key);
+        record(key, node);
+    }
+
+    /**
+     * Обновляет время изменения директории, сохраняя ее содержимое и записанные изменения внутри нее.
+     */
+    void touch(SnapshotDirectory root, Path key, long lastModified) {
+        if (key.toString().isEmpty()) rootLastModified = lastModified;
+        else if (find(root, key) instanceof SnapshotDirectory d) record(key, d.withLastModified(lastModified));
+    }
+
+    /**
+     * Удаляет элемент по относительному пути.
+     *
+     * @return удаленный элемент со всеми изменениями внутри него или null, если элемента нет
+     */
+    SnapshotNode remove(SnapshotDirectory root, Path key) {
+        SnapshotNode node = find(root, key);
+        if (node instanceof SnapshotDirectory d) node = apply(key, d);
+        drop(key);
+        record(key, null);
+        return node;
+    }
+
+    /**
+     * Собирает новый корень из корня предыдущей версии и записанных изменений; изменения после этого очищаются.
+     */
+    SnapshotDirectory apply(SnapshotDirectory root) {
+        SnapshotDirectory result = apply(ROOT, root);
+        if (rootLastModified >= 0) result = result.withLastModified(rootLastModified);
+        changes.clear();
+        rootLastModified = -1;
+        return result;
+    }
+
+    /**
+     * @return элемент по пути с учетом изменений над ним (изменения внутри директории в ней не учтены) или null
+     */
+    private SnapshotNode find(SnapshotDirectory root, Path key) {
+        SnapshotNode node = root;
+        Path dir = ROOT;
+        for (Path part : key) {
+            String name = part.toString();
+            Changes c = changes.get(dir);
+            if (c != null && c.nodes.containsKey(name)) node = c.nodes.get(name);
+            else node = node instanceof SnapshotDirectory d ? d.getChild(name) : null;
+            if (node == null) return null;
+            dir = dir.resolve(name);
+        }
+        return node;
+    }
+
+    private void record(Path key, SnapshotNode node) {
+        Path dir = parent(key);
+        changes.computeIfAbsent(dir, d -> new Changes()).nodes.put(key.getFileName().toString(), node);
+        // директории на пути к изменению помечаются до первой уже помеченной - выше нее пометки уже есть
+        while (!dir.toString().isEmpty()) {
+            Path up = parent(dir);
+            Changes c = changes.get(up);
+            boolean marked = c != null && c.dirty.contains(dir.getFileName().toString());
+            if (marked) break;
+            changes.computeIfAbsent(up, d -> new Changes()).dirty.add(dir.getFileName().toString());
+            dir = up;
+        }
+    }
+
+    /**
+     * Отбрасывает изменения внутри директории.
+     */
+    private void drop(Path key) {
+        if (changes.containsKey(key)) changes.keySet().removeIf(k -> k.startsWith(key));
+    }
+
+    private SnapshotDirectory apply(Path key, SnapshotDirectory dir) {
+        Changes c = changes.remove(key);
+        if (c == null) return dir;
+        return dir.merge(c.nodes, child -> child instanceof SnapshotDirectory d && c.dirty.contains(d.getName())
+                ? apply(key.resolve(d.getName()), d) : child);
+    }
+
+    private static Path parent(Path key) {
+        Path parent = key.getParent();
+        return parent == null ? ROOT : parent;
+    }
+}
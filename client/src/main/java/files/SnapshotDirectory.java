@@ -0,0 +1,98 @@
+package files;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * Неизменяемый "снимок" директории. Дочерние элементы хранятся в массиве, отсортированном по имени.
+ * Изменяющие методы возвращают новую директорию, разделяющую с исходной все неизмененные дочерние элементы
+ * (изменения между версиями накапливаются в SnapshotChanges и применяются к директории одним вызовом merge()).
+ */
+public final class SnapshotDirectory extends SnapshotNode {
+    private static final SnapshotNode[] EMPTY = new SnapshotNode[0];
+    private static final Comparator<SnapshotNode> BY_NAME = Comparator.comparing(SnapshotNode::getName);
+
+    private final SnapshotNode[] children;
+
+    private SnapshotDirectory(String name, long lastModified, SnapshotNode[] children) {
+        super(name, lastModified);
+        this.children = children;
+    }
+
+    static SnapshotDirectory empty(String name, long lastModified) {
+        return new SnapshotDirectory(name, lastModified, EMPTY);
+    }
+
+    static SnapshotDirectory of(String name, long lastModified, List<SnapshotNode> children) {
+        SnapshotNode[] array = children.toArray(EMPTY);
+        Arrays.sort(array, BY_NAME);
+        return new SnapshotDirectory(name, lastModified, array);
+    }
+
+    static SnapshotDirectory of(ClientDirectory directory) {
+        List<SnapshotNode> children = new ArrayList<>();
+        for (ClientDirectory sub : directory.subdirectoryValues()) children.add(of(sub));
+        for (ClientFile f : directory.fileValues()) children.add(SnapshotNode.of(f));
+        return of(directory.getName(), directory.getLastModifiedTime().getTime(), children);
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return true;
+    }
+
+    public int getChildCount() {
+        return children.length;
+    }
+
+    public SnapshotNode getChild(int i) {
+        return children[i];
+    }
+
+    public SnapshotNode getChild(String name) {
+        int i = indexOf(name);
+        return i < 0 ? null : children[i];
+    }
+
+    @Override
+    SnapshotDirectory withName(String newName) {
+        return new SnapshotDirectory(newName, getLastModified(), children);
+    }
+
+    SnapshotDirectory withLastModified(long lastModified) {
+        return new SnapshotDirectory(getName(), lastModified, children);
+    }
+
+    /**
+     * @param changes новые дочерние элементы по имени (null - элемент удален)
+     * @param update  преобразование, применяемое к каждому дочернему элементу новой директории
+     * @return копия директории с примененными изменениями
+     */
+    SnapshotDirectory merge(Map<String, SnapshotNode> changes, UnaryOperator<SnapshotNode> update) {
+        List<SnapshotNode> result = new ArrayList<>(children.length + changes.size());
+        for (SnapshotNode child : children) {
+            if (!changes.containsKey(child.getName())) result.add(update.apply(child));
+        }
+        for (SnapshotNode child : changes.values()) {
+            if (child != null) result.add(update.apply(child));
+        }
+        return of(getName(), getLastModified(), result);
+    }
+
+    private int indexOf(String name) {
+        int lo = 0;
+        int hi = children.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = children[mid].getName().compareTo(name);
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -(lo + 1);
+    }
+}
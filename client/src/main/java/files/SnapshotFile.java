@@ -0,0 +1,33 @@
+package files;
+
+/**
+ * Неизменяемый "снимок" файла.
+ */
+public final class SnapshotFile extends SnapshotNode {
+    private final long size;
+    private final long crc32Hash;
+
+    SnapshotFile(String name, long lastModified, long size, long crc32Hash) {
+        super(name, lastModified);
+        this.size = size;
+        this.crc32Hash = crc32Hash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCrc32Hash() {
+        return crc32Hash;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return false;
+    }
+
+    @Override
+    SnapshotFile withName(String newName) {
+        return new SnapshotFile(newName, getLastModified(), size, crc32Hash);
+    }
+}
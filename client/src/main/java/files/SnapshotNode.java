@@ -0,0 +1,43 @@
+package files;
+
+/**
+ * Неизменяемый элемент версии "снимка" (см. SnapshotVersion).
+ * Изменение элемента создает новый объект, а все неизмененные элементы разделяются между версиями.
+ */
+public abstract class SnapshotNode {
+    private final String name;
+    private final long lastModified;
+
+    SnapshotNode(String name, long lastModified) {
+        this.name = name;
+        this.lastModified = lastModified;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public abstract boolean isDirectory();
+
+    /**
+     * @param newName новое имя
+     * @return копия элемента с новым именем (содержимое директории не копируется)
+     */
+    abstract SnapshotNode withName(String newName);
+
+    /**
+     * Создает неизменяемую копию текущего состояния элемента дерева.
+     *
+     * @param element директория или файл
+     * @return неизменяемый элемент
+     */
+    static SnapshotNode of(FileSystemElement element) {
+        if (element instanceof ClientDirectory d) return SnapshotDirectory.of(d);
+        ClientFile f = (ClientFile) element;
+        return new SnapshotFile(f.getName(), f.getLastModifiedTime().getTime(), f.getSize(), f.getCrc32Hash());
+    }
+}
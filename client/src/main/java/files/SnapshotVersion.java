@@ -0,0 +1,77 @@
+package files;
+
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+
+/**
+ * Неизменяемая версия "снимка" дерева файлов.
+ * FileTreeSnapshot публикует новую версию при запросе, если с прошлой публикации были изменения;
+ * получение версии без изменений не требует блокировок, а полученная версия не меняется, пока с ней работают (сравнение с сервером, вывод и т.п.).
+ */
+public final class SnapshotVersion {
+    private final long number;
+    private final Path rootPath;
+    private final SnapshotDirectory root;
+
+    SnapshotVersion(long number, Path rootPath, SnapshotDirectory root) {
+        this.number = number;
+        this.rootPath = rootPath;
+        this.root = root;
+    }
+
+    /**
+     * @return порядковый номер версии (увеличивается при каждой публикации изменений "снимка")
+     */
+    public long getNumber() {
+        return number;
+    }
+
+    public Path getRootPath() {
+        return rootPath;
+    }
+
+    public SnapshotDirectory getRoot() {
+        return root;
+    }
+
+    /**
+     * Поиск элемента по пути относительно корня.
+     *
+     * @param relativePath относительный путь (пустой путь - корень)
+     * @return элемент или null
+     */
+    public SnapshotNode find(Path relativePath) {
+        if (relativePath.toString().isEmpty()) return root;
+        SnapshotNode node = root;
+        for (Path part : relativePath) {
+            if (!(node instanceof SnapshotDirectory dir)) return null;
+            node = dir.getChild(part.toString());
+            if (node == null) return null;
+        }
+        return node;
+    }
+
+    /**
+     * Обходит все файлы версии в порядке имен.
+     *
+     * @param action действие, которому передаются путь файла относительно корня (в формате "\dir\file") и файл
+     */
+    public void forEachFile(BiConsumer<String, SnapshotFile> action) {
+        forEachFile(root, new StringBuilder(), action);
+    }
+
+    private static void forEachFile(SnapshotDirectory dir, StringBuilder path, BiConsumer<String, SnapshotFile> action) {
+        int length = path.length();
+        for (int i = 0; i < dir.getChildCount(); i++) {
+            SnapshotNode child = dir.getChild(i);
+            path.append("\\").append(child.getName());
+            if (child instanceof SnapshotDirectory d) forEachFile(d, path, action);
+            else action.accept(path.toString(), (SnapshotFile) child);
+            path.setLength(length);
+        }
+    }
+
+    SnapshotVersion next(SnapshotDirectory newRoot) {
+        return newRoot == root ? this : new SnapshotVersion(number + 1, rootPath, newRoot);
+    }
+}
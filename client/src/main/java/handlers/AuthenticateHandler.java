@@ -5,6 +5,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import network.Message;
 import operations.AuthOperation;
+import sync.ServerManifest;
 
 public class AuthenticateHandler extends SimpleChannelInboundHandler<Message> {
 
@@ -12,12 +13,21 @@ public class AuthenticateHandler extends SimpleChannelInboundHandler<Message> {
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, Message message) {
         switch (message.getOperation().getType()) {
             case AUTH_SUCCESS -> {
-                Client.getCurrentClientSession().setServerSideUserFilesList(((AuthOperation) message.getOperation()).getUserFilesList());
-                Client.getCurrentClientSession().setAuthorized(true);
                 System.out.println("Auth success");
+                AuthOperation response = (AuthOperation) message.getOperation();
+                ServerManifest manifest = response.isManifestStreamed()
+                        ? ServerManifest.streamed(channelHandlerContext.channel(), Client.getCurrentClientSession().getManifestCache(),
+                        response.getJournalId(), response.getSequence(), response.isDelta())
+                        : ServerManifest.of(response.getUserFilesList());
+                if (response.isDelta()) System.out.println("Receiving changes since the last synchronization");
                 channelHandlerContext.pipeline().removeLast();
+                channelHandlerContext.pipeline().addLast(new ServerResponseHandler(manifest));
+                Client.getCurrentClientSession().completeAuthorization(manifest);
+            }
+            case AUTH_FAILED -> {
+                System.out.println(((AuthOperation) message.getOperation()).getMessage());
+                Client.getCurrentClientSession().failAuthorization(((AuthOperation) message.getOperation()).getMessage());
             }
-            case AUTH_FAILED -> System.out.println(((AuthOperation) message.getOperation()).getMessage());
         }
     }
 
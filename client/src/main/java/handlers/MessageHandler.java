@@ -1,80 +1,142 @@
 package handlers;
 
 import client.Client;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import metrics.Counter;
+import metrics.Metrics;
 import network.Message;
 import operations.AuthOperation;
 import operations.FileOperation;
 import operations.OperationType;
+import operations.StatsOperation;
+import sync.ManifestCache;
 
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
 
 public class MessageHandler {
 
-    public void send(FileOperation operation, SessionHandler session) {
+    private static final Counter SENT_OPERATIONS = Metrics.counter("client.sent.operations");
+
+    /**
+     * Отправляет операцию (и содержимое файла для CREATE/MODIFY) серверу.
+     *
+     * @param operation операция
+     * @param session   сессия
+     * @return future, которое завершается, когда последнее сообщение операции передано в сеть
+     * (с ошибкой, если соединения нет)
+     */
+    public CompletableFuture<Void> send(FileOperation operation, SessionHandler session) {
+        if (!session.isAlive()) return CompletableFuture.failedFuture(new IllegalStateException("Not connected to the server"));
+        CompletableFuture<Void> result;
         if (operation.getEntity() == FileOperation.Entity.FILE && (operation.getType() == OperationType.CREATE || operation.getType() == OperationType.MODIFY)) {
-            sendMessageWithFile(operation, session);
+            result = sendMessageWithFile(operation, session);
         } else {
-            sendMessage(operation, session);
+            result = toCompletableFuture(sendMessage(operation, session));
         }
-        System.out.println("SENT: " + operation);
+        SENT_OPERATIONS.increment();
+        return result;
     }
 
-    private void sendMessageWithFile(FileOperation operation, SessionHandler session) {
+    /**
+     * Порции файла отправляются, пока канал готов принимать данные; иначе отправитель дожидается записи предыдущей порции,
+     * чтобы файл целиком не накапливался в памяти.
+     * FILE_WRITTEN отправляется только после того, как файл прочитан целиком; если файл не удалось заблокировать
+     * или дочитать, сервер получает FILE_ABORTED и отбрасывает принятую часть, а прежняя версия файла на сервере остается.
+     * Если сервер отклонил загрузку (FILE_REJECTED), отправка порций прекращается и сервер также получает FILE_ABORTED.
+     */
+    private CompletableFuture<Void> sendMessageWithFile(FileOperation operation, SessionHandler session) {
         String filename = operation.getOldEntityPath();
         byte[] buffer = new byte[1024 * 1024 * 5];
 
+        try {
+            operation.setSize(Files.size(Path.of(filename)));
+        } catch (IOException e) {
+            operation.setSize(-1);
+        }
         sendMessage(operation, session);
+        // после sendMessage путь операции - путь на сервере, с ним и приходит FILE_REJECTED
+        String serverPath = operation.getOldEntityPath();
+        session.clearRejectedUpload(serverPath);
 
         FileOperation sendFile = FileOperation.writingFile(operation);
-        try {
-            @SuppressWarnings("resource")
-            FileChannel channel = new RandomAccessFile(filename, "rw").getChannel();
-            FileLock lock = null;
-            try {
-                lock = channel.lock();
-                while (true) {
-                    Message m = new Message();
-                    m.setOperation(sendFile);
-                    m.setPosition(channel.position());
-                    int read = channel.read(ByteBuffer.wrap(buffer));
-                    if (read == -1) break;
-                    if (read < buffer.length - 1) {
-                        byte[] tempBuffer = new byte[read];
-                        System.arraycopy(buffer, 0, tempBuffer, 0, read);
-                        m.setFile(tempBuffer);
-                        session.getChannel().writeAndFlush(m);
-                        break;
-                    } else {
-                        m.setFile(buffer);
-                        session.getChannel().writeAndFlush(m);
-                    }
-                    buffer = new byte[1024 * 1024 * 5];
+        Channel ch = session.getChannel();
+        try (FileChannel channel = new RandomAccessFile(filename, "rw").getChannel()) {
+            channel.lock(); // блокировка снимается при закрытии канала
+            ChannelFuture lastChunk = null;
+            while (true) {
+                if (lastChunk != null && !ch.isWritable()) lastChunk.awaitUninterruptibly();
+                if (session.isUploadRejected(serverPath)) break;
+                Message m = new Message();
+                m.setOperation(sendFile);
+                m.setPosition(channel.position());
+                int read = channel.read(ByteBuffer.wrap(buffer));
+                if (read == -1) break;
+                if (read < buffer.length - 1) {
+                    byte[] tempBuffer = new byte[read];
+                    System.arraycopy(buffer, 0, tempBuffer, 0, read);
+                    m.setFile(tempBuffer);
+                    ch.writeAndFlush(m);
+                    break;
+                } else {
+                    m.setFile(buffer);
+                    lastChunk = ch.writeAndFlush(m);
                 }
-            } catch (OverlappingFileLockException e){
-                e.printStackTrace();
+                buffer = new byte[1024 * 1024 * 5];
             }
-            if (lock != null) lock.release();
-            channel.close();
-        } catch (Exception e) {
-            //do nothing
+        } catch (IOException | OverlappingFileLockException e) {
+            System.out.println("File was not sent (" + e + "): " + filename);
+            Message m = new Message();
+            m.setOperation(FileOperation.aborted(operation));
+            ch.writeAndFlush(m);
+            return CompletableFuture.failedFuture(e);
         }
+        Message m = new Message();
+        if (session.clearRejectedUpload(serverPath)) {
+            System.out.println("File was not sent (rejected by the server): " + filename);
+            m.setOperation(FileOperation.aborted(operation));
+            return toCompletableFuture(ch.writeAndFlush(m));
+        }
+        m.setOperation(FileOperation.fileWritten(operation));
+        return toCompletableFuture(ch.writeAndFlush(m));
     }
 
-    private void sendMessage(FileOperation operation, SessionHandler session) {
+    private ChannelFuture sendMessage(FileOperation operation, SessionHandler session) {
         Message m = new Message();
         m.setOperation(operation);
         operation.setOldEntityPath(replaceWorkDirWithUsername(operation.getOldEntityPath(), session.getUsername()));
         operation.setNewEntityPath(replaceWorkDirWithUsername(operation.getNewEntityPath(), session.getUsername()));
-        session.getChannel().writeAndFlush(m);
+        return session.getChannel().writeAndFlush(m);
+    }
+
+    private static CompletableFuture<Void> toCompletableFuture(ChannelFuture written) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        written.addListener(f -> {
+            if (f.isSuccess()) result.complete(null);
+            else result.completeExceptionally(f.cause());
+        });
+        return result;
     }
 
     public void sendAuthRequest(SessionHandler session) {
         Message m = new Message();
-        m.setOperation(AuthOperation.createAuthRequest(session.getUsername()));
+        ManifestCache cache = session.getManifestCache();
+        m.setOperation(cache == null
+                ? AuthOperation.createAuthRequest(session.getUsername())
+                : AuthOperation.createAuthRequest(session.getUsername(), cache.getJournalId(), cache.getSequence()));
+        session.getChannel().writeAndFlush(m);
+    }
+
+    public void sendStatsRequest(SessionHandler session) {
+        Message m = new Message();
+        m.setOperation(StatsOperation.request());
         session.getChannel().writeAndFlush(m);
     }
 
@@ -0,0 +1,53 @@
+package handlers;
+
+import client.Client;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import network.Message;
+import operations.FileOperation;
+import operations.ManifestOperation;
+import operations.StatsOperation;
+import sync.ServerManifest;
+
+/**
+ * Обрабатывает сообщения сервера, приходящие после авторизации.
+ */
+public class ServerResponseHandler extends SimpleChannelInboundHandler<Message> {
+
+    private final ServerManifest manifest;
+
+    /**
+     * @param manifest перечень файлов на сервере, порции которого приходят через этот обработчик
+     */
+    public ServerResponseHandler(ServerManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Message message) {
+        if (message.getOperation() instanceof ManifestOperation mo) {
+            manifest.offerRemoved(mo.getRemoved());
+            manifest.offer(mo.getFiles(), mo.isLast());
+        } else if (message.getOperation() instanceof FileOperation fo) {
+            switch (fo.getType()) {
+                case FILE_REJECTED -> {
+                    System.out.println("Server rejected file (size = " + fo.getSize() + "): " + fo.getOldEntityPath());
+                    Client.getCurrentClientSession().rejectUpload(fo.getOldEntityPath());
+                }
+            }
+        } else if (message.getOperation() instanceof StatsOperation so) {
+            Client.getCurrentClientSession().completeStatistics(so.getMetrics());
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        manifest.fail("connection lost");
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        System.out.println("Inside ServerResponseHandler: " + cause.getCause() + " | " + cause.getMessage());
+    }
+}
@@ -1,6 +1,5 @@
 package handlers;
 
-import files.SimpleFile;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
@@ -11,12 +10,22 @@ import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.codec.bytes.ByteArrayDecoder;
 import io.netty.handler.codec.bytes.ByteArrayEncoder;
+import metrics.MetricValue;
 import network.JSONDecoder;
 import network.JSONEncoder;
+import sync.ManifestCache;
+import sync.ServerManifest;
+import utils.ThreadPool;
+import utils.WorkloadType;
 
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class SessionHandler {
 
@@ -28,7 +37,12 @@ public class SessionHandler {
     private boolean isProgramRunning;
     private Timer isSessionAliveTimer;
     private boolean isAuthorized;
-    private List<SimpleFile> serverSideUserFilesList;
+    private volatile CompletableFuture<Channel> connected;
+    private volatile CompletableFuture<ServerManifest> authorized;
+    private ManifestCache manifestCache;
+    private int authorizations;
+    private final Queue<CompletableFuture<List<MetricValue>>> statsRequests = new ConcurrentLinkedQueue<>();
+    private final Set<String> rejectedUploads = ConcurrentHashMap.newKeySet();
 
     public SessionHandler(String host, int port, String username) {
         this.serverHost = host;
@@ -39,7 +53,8 @@ public class SessionHandler {
         this.isProgramRunning = true;
         this.isSessionAliveTimer = new Timer();
         this.isAuthorized = false;
-        this.serverSideUserFilesList = null;
+        this.connected = new CompletableFuture<>();
+        this.authorized = new CompletableFuture<>();
     }
 
     private Bootstrap settingClient() {
@@ -71,12 +86,16 @@ public class SessionHandler {
 
     public void connectToServer() {
         isSessionAliveTimer.cancel();
+        if (connected.isDone()) connected = new CompletableFuture<>();
+        if (authorized.isDone()) authorized = new CompletableFuture<>();
         do {
             try {
                 System.out.println("Trying to connect to the server...");
                 channel = client.connect(serverHost, serverPort).sync();
                 System.out.println("Connected to the server.");
                 setIsSessionAliveTimer();
+                connected.complete(channel.channel());
+                new MessageHandler().sendAuthRequest(this);
             } catch (Exception e) {
                 System.out.println("Server not response.");
                 try {
@@ -91,6 +110,11 @@ public class SessionHandler {
             /*do nothing*/
         } finally {
             channel = null;
+            isAuthorized = false;
+            CompletableFuture<List<MetricValue>> request;
+            while ((request = statsRequests.poll()) != null) {
+                request.completeExceptionally(new IllegalStateException("Connection lost"));
+            }
         }
     }
 
@@ -104,11 +128,15 @@ public class SessionHandler {
                     connectToServer();
                 }
             }
-        }, 1000);
+        }, 1000, 1000);
     }
 
+    /**
+     * @return канал или null, если соединения нет
+     */
     public Channel getChannel() {
-        return channel.channel();
+        ChannelFuture current = channel;
+        return current == null ? null : current.channel();
     }
 
     public String getUsername() {
@@ -116,7 +144,19 @@ public class SessionHandler {
     }
 
     public boolean isAlive() {
-        return channel != null && getChannel().isActive();
+        Channel ch = getChannel();
+        return ch != null && ch.isActive();
+    }
+
+    /**
+     * @return сохраненный перечень файлов на сервере, по которому запрашиваются только изменения (может быть null)
+     */
+    public ManifestCache getManifestCache() {
+        return manifestCache;
+    }
+
+    public void setManifestCache(ManifestCache manifestCache) {
+        this.manifestCache = manifestCache;
     }
 
     public boolean isAuthorized() {
@@ -127,16 +167,79 @@ public class SessionHandler {
         this.isAuthorized = isAuthorized;
     }
 
-    public List<SimpleFile> getServerSideUserFilesList() {
-        return serverSideUserFilesList;
+    /**
+     * @return future, которое завершится после подключения к серверу (при переподключении создается новое)
+     */
+    public CompletableFuture<Channel> whenConnected() {
+        return connected;
+    }
+
+    /**
+     * @return future, которое завершится после успешной авторизации и вернет перечень файлов пользователя на сервере
+     * (перечень может еще поступать порциями)
+     */
+    public CompletableFuture<ServerManifest> whenAuthorized() {
+        return authorized;
+    }
+
+    /**
+     * Отмечает сессию авторизованной и завершает future whenAuthorized().
+     *
+     * @param manifest перечень файлов пользователя на сервере
+     */
+    public void completeAuthorization(ServerManifest manifest) {
+        this.isAuthorized = true;
+        // после переподключения перечень никто не сравнивает - он только дочитывается и сохраняется
+        if (authorizations++ > 0) ThreadPool.addTask(WorkloadType.NETWORK, manifest::drain);
+        authorized.complete(manifest);
+    }
+
+    public void failAuthorization(String message) {
+        authorized.completeExceptionally(new IllegalStateException(message));
+    }
+
+    /**
+     * Отмечает файл, загрузку которого отклонил сервер (FILE_REJECTED): отправка его содержимого прекращается.
+     *
+     * @param serverPath путь к файлу на сервере (начинается с имени пользователя)
+     */
+    public void rejectUpload(String serverPath) {
+        rejectedUploads.add(serverPath);
+    }
+
+    public boolean isUploadRejected(String serverPath) {
+        return rejectedUploads.contains(serverPath);
+    }
+
+    public boolean clearRejectedUpload(String serverPath) {
+        return rejectedUploads.remove(serverPath);
+    }
+
+    /**
+     * Запрашивает метрики сервера.
+     *
+     * @return future, которое завершится ответом сервера (с ошибкой, если сессия не авторизована или соединение разорвано)
+     */
+    public CompletableFuture<List<MetricValue>> requestServerStatistics() {
+        if (!isAlive() || !isAuthorized) return CompletableFuture.failedFuture(new IllegalStateException("Not connected to the server"));
+        CompletableFuture<List<MetricValue>> result = new CompletableFuture<>();
+        statsRequests.add(result);
+        new MessageHandler().sendStatsRequest(this);
+        return result;
     }
 
-    public void setServerSideUserFilesList(List<SimpleFile> serverSideUserFilesList) {
-        this.serverSideUserFilesList = serverSideUserFilesList;
+    /**
+     * Передает ответ сервера на самый ранний из ожидающих запросов метрик (сервер отвечает по порядку).
+     */
+    public void completeStatistics(List<MetricValue> metrics) {
+        CompletableFuture<List<MetricValue>> request = statsRequests.poll();
+        if (request != null) request.complete(metrics);
     }
 
     public void shutdown() {
         this.isProgramRunning = false;
+        connected.cancel(false);
+        authorized.cancel(false);
         client.config().group().shutdownGracefully();
     }
 }
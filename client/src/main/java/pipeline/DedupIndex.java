@@ -0,0 +1,123 @@
+package pipeline;
+
+import files.FlatFileTree;
+import files.SnapshotVersion;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Файлы, которые уже есть на сервере, по хеш-сумме содержимого.
+ * Если отправляемый файл совпадает с одним из них по хеш-сумме, размеру и расширению (как и в SyncPlanner),
+ * на сервере он копируется вместо передачи данных (см. UploadPipeline).
+ */
+public class DedupIndex {
+
+    private final Map<Long, List<Entry>> byHash = new HashMap<>();
+    private final Map<Path, Entry> byPath = new HashMap<>();
+
+    /**
+     * Заполняет индекс файлами версии "снимка" (после синхронизации они совпадают с файлами на сервере).
+     *
+     * @param version версия "снимка"
+     */
+    public synchronized void registerAll(SnapshotVersion version) {
+        String root = version.getRootPath().toString();
+        version.forEachFile((relativePath, f) -> {
+            if (f.getCrc32Hash() != 0) register(Path.of(root + relativePath), f.getSize(), f.getCrc32Hash());
+        });
+    }
+
+    /**
+     * Заполняет индекс файлами компактного "снимка".
+     *
+     * @param tree компактный "снимок"
+     */
+    public synchronized void registerAll(FlatFileTree tree) {
+        for (int node = 0; node < tree.size(); node++) {
+            if (!tree.isDirectory(node) && tree.hash(node) != 0) register(tree.path(node), tree.size(node), tree.hash(node));
+        }
+    }
+
+    public synchronized void register(Path path, long size, long crc32Hash) {
+        remove(path);
+        Entry e = new Entry(path, size, crc32Hash);
+        byPath.put(path, e);
+        byHash.computeIfAbsent(crc32Hash, h -> new ArrayList<>(1)).add(e);
+    }
+
+    /**
+     * Удаляет из индекса файл или все файлы директории.
+     *
+     * @param path путь до файла или директории
+     */
+    public synchronized void remove(Path path) {
+        Entry e = byPath.remove(path);
+        if (e != null) {
+            unlink(e);
+            return;
+        }
+        Iterator<Map.Entry<Path, Entry>> it = byPath.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Entry> entry = it.next();
+            if (entry.getKey().startsWith(path)) {
+                unlink(entry.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Переносит в индексе файл или содержимое директории на новый путь.
+     */
+    public synchronized void move(Path oldPath, Path newPath) {
+        List<Entry> moved = new ArrayList<>();
+        for (Entry e : byPath.values()) {
+            if (e.path.startsWith(oldPath)) moved.add(e);
+        }
+        for (Entry e : moved) {
+            remove(e.path);
+            register(newPath.resolve(oldPath.relativize(e.path)), e.size, e.crc32Hash);
+        }
+    }
+
+    /**
+     * @return путь до файла с такими же хеш-суммой, размером и расширением, отличного от переданного, или null
+     */
+    public synchronized Path find(long size, long crc32Hash, Path except) {
+        String extension = extension(except);
+        for (Entry e : byHash.getOrDefault(crc32Hash, List.of())) {
+            if (e.size == size && !e.path.equals(except) && extension(e.path).equalsIgnoreCase(extension)) return e.path;
+        }
+        return null;
+    }
+
+    private static String extension(Path path) {
+        String name = path.getFileName() == null ? "" : path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    public synchronized int size() {
+        return byPath.size();
+    }
+
+    private void unlink(Entry e) {
+        List<Entry> list = byHash.get(e.crc32Hash);
+        if (list == null) return;
+        list.remove(e);
+        if (list.isEmpty()) byHash.remove(e.crc32Hash);
+    }
+
+    private static class Entry {
+        private final Path path;
+        private final long size;
+        private final long crc32Hash;
+
+        private Entry(Path path, long size, long crc32Hash) {
+            this.path = path;
+            this.size = size;
+            this.crc32Hash = crc32Hash;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package pipeline;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import operations.FileOperation;
+import operations.Operation;
+import operations.OperationType;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Очередь операций, ожидающих отправки на сервер. Очередь хранится на диске (вне синхронизируемой директории)
+ * в виде журнала строк "+номер операция" и "-номер", поэтому операции, не отправленные до разрыва соединения
+ * или остановки клиента, отправляются после переподключения или следующего запуска.
+ * Пока операция ждет отправки, она объединяется с последующими операциями по тому же пути:
+ * повторная загрузка файла поглощается ожидающей (содержимое читается при отправке), создание и последующее
+ * удаление взаимно уничтожаются, удаление директории отменяет ожидающие операции внутри нее, а удаление и
+ * последующее создание файла превращаются в одну загрузку. Переименование, перемещение и копирование
+ * не объединяются и отделяют предыдущие операции от последующих.
+ * Операции отправляются по порядку порциями по cloudstorage.pending.batch, когда сессия подключена и авторизована.
+ * Если операция порции не отправлена, в очереди остаются она и все следующие операции порции (даже отправленные -
+ * повторная отправка безвредна, а нарушение порядка, например удаление после повторной загрузки, - нет);
+ * они повторяются через cloudstorage.pending.retryMillis.
+ * Файл очереди сбрасывается в буфер ОС после каждой операции, но не принудительно на диск (fsync на каждое событие
+ * слишком дорог), поэтому очередь переживает аварийную остановку клиента, но не отключение питания.
+ */
+public class PendingQueue {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final int batchSize = Integer.getInteger("cloudstorage.pending.batch", 256);
+    private final long retryMillis = Long.getLong("cloudstorage.pending.retryMillis", 2000);
+    private final Path file;
+    private final Sender sender;
+    private final BooleanSupplier online;
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>();
+    private final TreeMap<String, Entry> mergeable = new TreeMap<>();
+    private final Thread replayer;
+    private BufferedWriter writer;
+    private long nextSeq = 1;
+    private long fileLines;
+    private long merged;
+    private long sent;
+    private long failed;
+
+    /**
+     * Отправка операции; возвращаемое future завершается после отправки.
+     */
+    public interface Sender {
+        CompletableFuture<?> send(FileOperation operation) throws InterruptedException;
+    }
+
+    /**
+     * @param file   файл очереди; операции, сохраненные в нем, ставятся в очередь снова
+     * @param sender отправка операции
+     * @param online можно ли сейчас отправлять операции
+     */
+    public PendingQueue(Path file, Sender sender, BooleanSupplier online) {
+        this.file = file;
+        this.sender = sender;
+        this.online = online;
+        this.replayer = new Thread(this::replay, "pending-replay");
+        this.replayer.setDaemon(true);
+        try {
+            Files.createDirectories(file.getParent());
+            if (Files.exists(file)) load();
+            rewrite();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Pending operations were not restored from " + file + ": " + e.getMessage());
+        }
+        if (!entries.isEmpty()) System.out.println("Restored " + entries.size() + " pending operations.");
+    }
+
+    public void start() {
+        replayer.start();
+    }
+
+    /**
+     * Ставит операцию в очередь (сразу записывая ее на диск).
+     *
+     * @param operation операция
+     */
+    public synchronized void add(FileOperation operation) {
+        if (merge(operation)) merged++;
+        else append(operation);
+        flush();
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public StageStatistics getStatistics() {
+        synchronized (this) {
+            long inFlight = entries.values().stream().filter(e -> e.inFlight).count();
+            return new StageStatistics("pending", (int) (entries.size() - inFlight), -1, (int) inFlight, sent, merged, failed, 0, 0);
+        }
+    }
+
+    public void shutdown() {
+        replayer.interrupt();
+        synchronized (this) {
+            try {
+                if (writer != null) writer.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+    }
+
+    /**
+     * @return true, если операция поглощена ожидающими операциями по тому же пути
+     */
+    private boolean merge(FileOperation operation) {
+        String path = operation.getOldEntityPath();
+        Entry last = mergeable.get(path);
+        switch (operation.getType()) {
+            case CREATE, MODIFY -> {
+                if (last == null || last.operation.getEntity() != operation.getEntity()) return false;
+                if (last.operation.getType() != OperationType.DELETE) return true;
+                if (operation.getEntity() != FileOperation.Entity.FILE) return false;
+                // файл на сервере будет заменен загрузкой, удалять его не нужно
+                remove(last);
+                append(FileOperation.modify(FileOperation.Entity.FILE, Path.of(path)));
+                return true;
+            }
+            case DELETE -> {
+                if (last != null && last.operation.getType() == OperationType.DELETE) return true;
+                char separator = Path.of(path).getFileSystem().getSeparator().charAt(0);
+                for (Entry nested : new ArrayList<>(mergeable.subMap(path + separator, path + (char) (separator + 1)).values())) {
+                    remove(nested);
+                }
+                if (last == null) return false;
+                remove(last);
+                // созданное и еще не отправленное на сервере удалять не нужно
+                return last.operation.getType() == OperationType.CREATE && last.operation.getEntity() == operation.getEntity();
+            }
+            default -> {
+                mergeable.clear();
+                return false;
+            }
+        }
+    }
+
+    private void append(FileOperation operation) {
+        Entry e;
+        try {
+            e = new Entry(nextSeq++, MAPPER.writeValueAsString(operation), operation);
+        } catch (IOException ex) {
+            System.out.println("Operation was not queued: " + operation + " (" + ex.getMessage() + ")");
+            return;
+        }
+        entries.put(e.seq, e);
+        switch (operation.getType()) {
+            case CREATE, MODIFY, DELETE -> mergeable.put(operation.getOldEntityPath(), e);
+        }
+        log("+" + e.seq + " " + e.json);
+    }
+
+    private void remove(Entry e) {
+        entries.remove(e.seq);
+        mergeable.remove(e.operation.getOldEntityPath(), e);
+        log("-" + e.seq);
+    }
+
+    private void replay() {
+        try {
+            while (true) {
+                List<Entry> batch = takeBatch();
+                List<CompletableFuture<Boolean>> results = new ArrayList<>(batch.size());
+                AtomicBoolean batchFailed = new AtomicBoolean();
+                for (Entry e : batch) {
+                    // после первой известной ошибки остальные операции порции не отправляются - они будут повторены
+                    if (batchFailed.get()) break;
+                    CompletableFuture<?> result;
+                    try {
+                        result = sender.send(e.copyOperation());
+                    } catch (IOException | RuntimeException ex) {
+                        result = CompletableFuture.failedFuture(ex);
+                    }
+                    results.add(result.handle((r, ex) -> {
+                        if (ex != null) batchFailed.set(true);
+                        return ex == null;
+                    }));
+                }
+                CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+                int firstFailure = results.size();
+                for (int i = 0; i < results.size(); i++) {
+                    if (!results.get(i).join()) {
+                        firstFailure = i;
+                        break;
+                    }
+                }
+                boolean retry = firstFailure < batch.size();
+                synchronized (this) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        Entry e = batch.get(i);
+                        if (i < firstFailure) {
+                            remove(e);
+                            sent++;
+                        } else {
+                            e.inFlight = false;
+                        }
+                    }
+                    if (retry) failed++;
+                    flush();
+                    if (fileLines > 2L * entries.size() + 1024) rewriteQuietly();
+                }
+                if (retry) Thread.sleep(retryMillis);
+            }
+        } catch (InterruptedException e) {
+            // очередь остановлена
+        }
+    }
+
+    /**
+     * Ожидает подключения и ожидающих операций и забирает порцию операций для отправки.
+     */
+    private synchronized List<Entry> takeBatch() throws InterruptedException {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            if (online.getAsBoolean()) {
+                for (Entry e : entries.values()) {
+                    if (e.inFlight) continue;
+                    e.inFlight = true;
+                    mergeable.remove(e.operation.getOldEntityPath(), e);
+                    batch.add(e);
+                    if (batch.size() == batchSize) break;
+                }
+                if (!batch.isEmpty()) return batch;
+            }
+            wait(retryMillis);
+        }
+    }
+
+    private void load() throws IOException {
+        TreeMap<Long, String> saved = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    if (line.startsWith("+")) {
+                        int space = line.indexOf(' ');
+                        saved.put(Long.parseLong(line.substring(1, space)), line.substring(space + 1));
+                    } else if (line.startsWith("-")) {
+                        saved.remove(Long.parseLong(line.substring(1)));
+                    }
+                } catch (RuntimeException e) {
+                    // последняя строка может быть недописана, если клиент остановился во время записи
+                }
+            }
+        }
+        // операции объединяются заново - за время работы без подключения их могло накопиться много
+        for (String json : saved.values()) {
+            try {
+                if (!merge((FileOperation) MAPPER.readValue(json, Operation.class))) {
+                    append((FileOperation) MAPPER.readValue(json, Operation.class));
+                }
+            } catch (IOException | ClassCastException e) {
+                System.out.println("Pending operation is unreadable: " + json);
+            }
+        }
+    }
+
+    private void log(String line) {
+        if (writer == null) return;
+        try {
+            writer.write(line);
+            writer.newLine();
+            fileLines++;
+        } catch (IOException e) {
+            System.out.println("Problem with pending operations file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void flush() {
+        try {
+            if (writer != null) writer.flush();
+        } catch (IOException e) {
+            System.out.println("Problem with pending operations file " + file + ": " + e.getMessage());
+        }
+    }
+
+    private void rewriteQuietly() {
+        try {
+            rewrite();
+        } catch (IOException e) {
+            System.out.println("Problem with pending operations file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Переписывает файл очереди, оставляя только ожидающие операции.
+     */
+    private void rewrite() throws IOException {
+        if (writer != null) writer.close();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Entry e : entries.values()) {
+                out.write("+" + e.seq + " " + e.json);
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        fileLines = entries.size();
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static class Entry {
+        private final long seq;
+        private final String json;
+        private final FileOperation operation;
+        private boolean inFlight;
+
+        private Entry(long seq, String json, FileOperation operation) {
+            this.seq = seq;
+            this.json = json;
+            this.operation = operation;
+        }
+
+        /**
+         * @return копия операции для отправки (при отправке пути операции меняются)
+         */
+        private FileOperation copyOperation() throws IOException {
+            return (FileOperation) MAPPER.readValue(json, Operation.class);
+        }
+    }
+}
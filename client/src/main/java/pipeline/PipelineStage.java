@@ -0,0 +1,151 @@
+package pipeline;
+
+import utils.WorkloadExecutor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Стадия конвейера: ограниченная входная очередь и собственный пул обработчиков.
+ * Элементы обрабатываются параллельно (не более parallelism одновременно), но передаются следующей стадии
+ * в порядке поступления. Если очередь следующей стадии заполнена, стадия перестает забирать новые элементы,
+ * ее очередь заполняется, и put() блокирует предыдущую стадию - так давление передается к источнику.
+ *
+ * @param <T> тип элемента
+ */
+public class PipelineStage<T> {
+
+    private final String name;
+    private final int capacity;
+    private final Function<T, T> function;
+    private final PipelineStage<T> next;
+    private final ArrayBlockingQueue<Entry<T>> input;
+    private final ArrayBlockingQueue<CompletableFuture<T>> inFlight;
+    private final WorkloadExecutor workers;
+    private final Semaphore permits;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong serviceNanos = new AtomicLong();
+    private final Thread dispatcher;
+    private final Thread emitter;
+
+    /**
+     * @param name        имя стадии
+     * @param capacity    размер входной очереди
+     * @param parallelism число одновременно обрабатываемых элементов
+     * @param function    обработка элемента; null - элемент дальше не передается
+     * @param next        следующая стадия (null - последняя стадия)
+     */
+    public PipelineStage(String name, int capacity, int parallelism, Function<T, T> function, PipelineStage<T> next) {
+        this.name = name;
+        this.capacity = capacity;
+        this.function = function;
+        this.next = next;
+        this.input = new ArrayBlockingQueue<>(capacity);
+        this.inFlight = new ArrayBlockingQueue<>(parallelism);
+        this.workers = WorkloadExecutor.bounded("pipeline-" + name, parallelism, parallelism);
+        this.permits = new Semaphore(parallelism);
+        this.dispatcher = new Thread(this::dispatch, "pipeline-" + name + "-in");
+        this.emitter = new Thread(this::emit, "pipeline-" + name + "-out");
+        this.dispatcher.setDaemon(true);
+        this.emitter.setDaemon(true);
+    }
+
+    public void start() {
+        dispatcher.start();
+        emitter.start();
+    }
+
+    /**
+     * Помещает элемент во входную очередь, ожидая свободного места.
+     *
+     * @param item элемент
+     * @throws InterruptedException если ожидание прервано
+     */
+    public void put(T item) throws InterruptedException {
+        input.put(new Entry<>(item, System.nanoTime()));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StageStatistics getStatistics() {
+        long count = processed.sum();
+        return new StageStatistics(name, input.size(), capacity, inFlight.size(), count, dropped.sum(), failed.sum(),
+                count == 0 ? 0 : waitNanos.get() / 1e6 / count,
+                count == 0 ? 0 : serviceNanos.get() / 1e6 / count);
+    }
+
+    public void shutdown() {
+        dispatcher.interrupt();
+        emitter.interrupt();
+        workers.shutdown();
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Entry<T> entry = input.take();
+                long dequeued = System.nanoTime();
+                waitNanos.addAndGet(dequeued - entry.enqueued);
+                CompletableFuture<T> result = new CompletableFuture<>();
+                inFlight.put(result);
+                // пул не должен выполнять задачу в потоке диспетчера - это нарушило бы порядок обработки
+                permits.acquire();
+                workers.execute(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        result.complete(function.apply(entry.item));
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                    } finally {
+                        serviceNanos.addAndGet(System.nanoTime() - start);
+                        permits.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            // стадия остановлена
+        }
+    }
+
+    private void emit() {
+        try {
+            while (true) {
+                CompletableFuture<T> result = inFlight.take();
+                T item;
+                try {
+                    item = result.join();
+                } catch (CompletionException e) {
+                    failed.increment();
+                    System.out.println("Pipeline stage " + name + " failed: " + e.getCause());
+                    continue;
+                } finally {
+                    processed.increment();
+                }
+                if (item == null) dropped.increment();
+                else if (next != null) next.put(item);
+            }
+        } catch (InterruptedException e) {
+            // стадия остановлена
+        }
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long enqueued;
+
+        private Entry(T item, long enqueued) {
+            this.item = item;
+            this.enqueued = enqueued;
+        }
+    }
+}
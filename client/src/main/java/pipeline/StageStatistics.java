@@ -0,0 +1,88 @@
+package pipeline;
+
+/**
+ * Состояние стадии конвейера на момент запроса.
+ */
+public class StageStatistics {
+    private final String name;
+    private final int queued;
+    private final int capacity;
+    private final int inFlight;
+    private final long processed;
+    private final long dropped;
+    private final long failed;
+    private final double avgWaitMillis;
+    private final double avgServiceMillis;
+
+    StageStatistics(String name, int queued, int capacity, int inFlight, long processed, long dropped, long failed,
+                    double avgWaitMillis, double avgServiceMillis) {
+        this.name = name;
+        this.queued = queued;
+        this.capacity = capacity;
+        this.inFlight = inFlight;
+        this.processed = processed;
+        this.dropped = dropped;
+        this.failed = failed;
+        this.avgWaitMillis = avgWaitMillis;
+        this.avgServiceMillis = avgServiceMillis;
+    }
+
+    /**
+     * Состояние стадии вне конвейера, для которой известна только длина очереди.
+     *
+     * @param name   имя стадии
+     * @param queued количество ожидающих элементов
+     * @return состояние стадии
+     */
+    public static StageStatistics ofQueue(String name, int queued) {
+        return new StageStatistics(name, queued, -1, 0, 0, 0, 0, 0, 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return среднее время ожидания элемента во входной очереди стадии
+     */
+    public double getAvgWaitMillis() {
+        return avgWaitMillis;
+    }
+
+    /**
+     * @return среднее время обработки элемента стадией
+     */
+    public double getAvgServiceMillis() {
+        return avgServiceMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: queued %d/%d, in flight %d, processed %d, dropped %d, failed %d, wait %.2f ms, service %.2f ms",
+                name, queued, capacity, inFlight, processed, dropped, failed, avgWaitMillis, avgServiceMillis);
+    }
+}
@@ -0,0 +1,45 @@
+package pipeline;
+
+/**
+ * Политика очередности передач. Ключ передачи = время постановки в очередь + штраф политики (мс);
+ * первой выполняется передача с наименьшим ключом. Поскольку время постановки растет, любая передача
+ * рано или поздно опережает поступающие после нее (старение), и крупные файлы не ждут бесконечно.
+ */
+public enum TransferPolicy {
+    /**
+     * Строго в порядке поступления.
+     */
+    FIFO {
+        @Override
+        long penaltyMillis(UploadTask task, long now) {
+            return 0;
+        }
+    },
+    /**
+     * Сначала небольшие файлы: каждые cloudstorage.transfer.agingBytesPerSecond байт размера
+     * отодвигают передачу на секунду.
+     */
+    SMALLEST_FIRST {
+        @Override
+        long penaltyMillis(UploadTask task, long now) {
+            if (!task.isUpload() || task.getSize() <= 0) return 0;
+            return task.getSize() / Math.max(1, AGING_BYTES_PER_SECOND / 1000);
+        }
+    },
+    /**
+     * Сначала недавно измененные файлы: штраф равен давности изменения, но не больше
+     * cloudstorage.transfer.maxRecencyPenaltyMillis.
+     */
+    MOST_RECENT {
+        @Override
+        long penaltyMillis(UploadTask task, long now) {
+            if (!task.isUpload() || task.getLastModified() <= 0) return 0;
+            return Math.min(Math.max(0, now - task.getLastModified()), MAX_RECENCY_PENALTY_MILLIS);
+        }
+    };
+
+    private static final long AGING_BYTES_PER_SECOND = Long.getLong("cloudstorage.transfer.agingBytesPerSecond", 10L * 1024 * 1024);
+    private static final long MAX_RECENCY_PENALTY_MILLIS = Long.getLong("cloudstorage.transfer.maxRecencyPenaltyMillis", 60 * 60 * 1000);
+
+    abstract long penaltyMillis(UploadTask task, long now);
+}
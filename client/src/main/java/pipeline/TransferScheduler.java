@@ -0,0 +1,185 @@
+package pipeline;
+
+import handlers.MessageHandler;
+import handlers.SessionHandler;
+import utils.WorkloadExecutor;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Очередь передач на сервер с приоритетами.
+ * Порядок задается политикой (cloudstorage.transfer.policy: FIFO, SMALLEST_FIRST, MOST_RECENT) и закрепленными
+ * пользователем путями (cloudstorage.transfer.pinned, через ';'), которые опережают остальные на
+ * cloudstorage.transfer.pinBoostMillis. Одновременно выполняется cloudstorage.transfer.concurrency передач.
+ * Передачи, затрагивающие связанные пути (один путь - начало другого), выполняются строго в порядке поступления,
+ * поэтому директория создается раньше своего содержимого, а удаление не опережает загрузку по тому же пути.
+ */
+public class TransferScheduler {
+
+    private final SessionHandler session;
+    private final TransferPolicy policy = TransferPolicy.valueOf(System.getProperty("cloudstorage.transfer.policy", "SMALLEST_FIRST").toUpperCase());
+    private final int concurrency = Integer.getInteger("cloudstorage.transfer.concurrency", 2);
+    private final int capacity = Integer.getInteger("cloudstorage.transfer.queue", 4096);
+    private final long pinBoostMillis = Long.getLong("cloudstorage.transfer.pinBoostMillis", 24 * 60 * 60 * 1000);
+    private final List<Path> pinned = new CopyOnWriteArrayList<>();
+    private final TreeSet<Transfer> waiting = new TreeSet<>(Comparator.comparingLong((Transfer t) -> t.key).thenComparingLong(t -> t.seq));
+    private final TreeMap<String, List<Transfer>> unfinished = new TreeMap<>();
+    private final WorkloadExecutor workers;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final AtomicLong waitMillis = new AtomicLong();
+    private final AtomicLong serviceMillis = new AtomicLong();
+    private int active;
+    private long nextSeq;
+
+    public TransferScheduler(SessionHandler session) {
+        this.session = session;
+        this.workers = WorkloadExecutor.bounded("transfer", concurrency, concurrency);
+        for (String p : System.getProperty("cloudstorage.transfer.pinned", "").split(";")) {
+            if (!p.isBlank()) pinned.add(Path.of(p.trim()));
+        }
+    }
+
+    /**
+     * Ставит операцию в очередь передач. Если очередь заполнена - ожидает.
+     *
+     * @param task операция
+     * @return future, которое завершается после передачи операции в сеть
+     * @throws InterruptedException если ожидание прервано
+     */
+    public synchronized CompletableFuture<UploadTask> submit(UploadTask task) throws InterruptedException {
+        while (waiting.size() >= capacity) wait();
+        long now = System.currentTimeMillis();
+        long key = now + policy.penaltyMillis(task, now);
+        if (isPinned(task.getPath())) key -= pinBoostMillis;
+        Transfer t = new Transfer(task, nextSeq++, key, now);
+        waiting.add(t);
+        for (String p : t.paths) unfinished.computeIfAbsent(p, k -> new ArrayList<>(1)).add(t);
+        dispatch();
+        return t.done;
+    }
+
+    public void pin(Path path) {
+        pinned.add(path);
+    }
+
+    public void unpin(Path path) {
+        pinned.remove(path);
+    }
+
+    public StageStatistics getStatistics() {
+        long count = completed.sum();
+        synchronized (this) {
+            return new StageStatistics("schedule", waiting.size(), capacity, active, count, 0, failed.sum(),
+                    count == 0 ? 0 : (double) waitMillis.get() / count,
+                    count == 0 ? 0 : (double) serviceMillis.get() / count);
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private boolean isPinned(Path path) {
+        if (path == null) return false;
+        for (Path p : pinned) {
+            if (path.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+    private void dispatch() {
+        Iterator<Transfer> it = waiting.iterator();
+        while (active < concurrency && it.hasNext()) {
+            Transfer t = it.next();
+            if (isBlocked(t)) continue;
+            it.remove();
+            active++;
+            t.started = System.currentTimeMillis();
+            waitMillis.addAndGet(t.started - t.enqueued);
+            notifyAll();
+            workers.execute(() -> run(t));
+        }
+    }
+
+    private void run(Transfer t) {
+        try {
+            new MessageHandler().send(t.task.getOperation(), session).whenComplete((v, e) -> finish(t, e));
+        } catch (RuntimeException e) {
+            finish(t, e);
+        }
+    }
+
+    private void finish(Transfer t, Throwable error) {
+        synchronized (this) {
+            active--;
+            for (String p : t.paths) {
+                List<Transfer> list = unfinished.get(p);
+                if (list == null) continue;
+                list.remove(t);
+                if (list.isEmpty()) unfinished.remove(p);
+            }
+            serviceMillis.addAndGet(System.currentTimeMillis() - t.started);
+            dispatch();
+        }
+        if (error == null) {
+            completed.increment();
+            t.done.complete(t.task);
+        } else {
+            failed.increment();
+            System.out.println("Transfer failed: " + t.task + " (" + error + ")");
+            t.done.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * @return true, если раньше поступила и еще не завершена передача по тому же, родительскому или вложенному пути
+     */
+    private boolean isBlocked(Transfer t) {
+        for (String p : t.paths) {
+            if (hasEarlier(unfinished.get(p), t)) return true;
+            for (Path parent = Path.of(p).getParent(); parent != null; parent = parent.getParent()) {
+                if (hasEarlier(unfinished.get(parent.toString()), t)) return true;
+            }
+            char separator = Path.of(p).getFileSystem().getSeparator().charAt(0);
+            for (List<Transfer> list : unfinished.subMap(p + separator, p + (char) (separator + 1)).values()) {
+                if (hasEarlier(list, t)) return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasEarlier(List<Transfer> list, Transfer t) {
+        if (list == null) return false;
+        for (Transfer other : list) {
+            if (other.seq < t.seq) return true;
+        }
+        return false;
+    }
+
+    private static class Transfer {
+        private final UploadTask task;
+        private final long seq;
+        private final long key;
+        private final long enqueued;
+        private final List<String> paths = new ArrayList<>(2);
+        private final CompletableFuture<UploadTask> done = new CompletableFuture<>();
+        private long started;
+
+        private Transfer(UploadTask task, long seq, long key, long enqueued) {
+            this.task = task;
+            this.seq = seq;
+            this.key = key;
+            this.enqueued = enqueued;
+            // пути берутся из операции: после дедупликации у копирования появляется исходный путь
+            for (String p : new String[]{task.getOperation().getOldEntityPath(), task.getOperation().getNewEntityPath()}) {
+                if (p != null && !p.isEmpty()) paths.add(p);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package pipeline;
+
+import files.FileTreeSnapshot;
+import operations.FileOperation;
+import utils.CRC32Hash;
+import utils.WorkloadType;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Конвейер отправки изменений на сервер:
+ * hash (размер и хеш-сумма файла) -> dedup (замена передачи копированием уже имеющегося на сервере файла
+ * с тем же содержимым)
+ * -> schedule (приоритетная очередь передач TransferScheduler, которая и отправляет операции по сети).
+ * Обнаружение изменений (DirectoryWatcher + EventCoalescer) - источник конвейера.
+ * Размер очереди и число обработчиков стадии задаются свойствами cloudstorage.pipeline.&lt;стадия&gt;.queue и .threads.
+ */
+public class UploadPipeline {
+
+    private final TransferScheduler transfers;
+    private final FileTreeSnapshot snapshot;
+    private final DedupIndex dedupIndex;
+    private final PipelineStage<UploadTask> dedup;
+    private final PipelineStage<UploadTask> hash;
+
+    public UploadPipeline(TransferScheduler transfers, FileTreeSnapshot snapshot, DedupIndex dedupIndex) {
+        this.transfers = transfers;
+        this.snapshot = snapshot;
+        this.dedupIndex = dedupIndex;
+        this.dedup = stage("dedup", 256, 1, task -> schedule(dedup(task)), null);
+        this.hash = stage("hash", 256, WorkloadType.HASHING.getThreads(), this::hash, dedup);
+    }
+
+    public void start() {
+        for (PipelineStage<UploadTask> stage : stages()) stage.start();
+    }
+
+    /**
+     * Передает операцию в конвейер. Если очередь первой стадии заполнена - ожидает.
+     *
+     * @param operation операция
+     * @return future, которое завершается после отправки операции (или если она отброшена конвейером)
+     * @throws InterruptedException если ожидание прервано
+     */
+    public CompletableFuture<UploadTask> submit(FileOperation operation) throws InterruptedException {
+        UploadTask task = new UploadTask(operation);
+        forget(task);
+        hash.put(task);
+        return task.getCompletion();
+    }
+
+    public List<StageStatistics> getStatistics() {
+        return List.of(hash.getStatistics(), dedup.getStatistics(), transfers.getStatistics());
+    }
+
+    public void shutdown() {
+        for (PipelineStage<UploadTask> stage : stages()) stage.shutdown();
+    }
+
+    private List<PipelineStage<UploadTask>> stages() {
+        return List.of(hash, dedup);
+    }
+
+    private UploadTask hash(UploadTask task) {
+        if (!task.isUpload()) return task;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(task.getPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            task.setSize(attrs.size());
+            task.setLastModified(attrs.lastModifiedTime().toMillis());
+            task.setCrc32Hash(CRC32Hash.calculateCrc32Hash(task.getPath()));
+            snapshot.setFileHash(task.getPath(), task.getCrc32Hash());
+            return task;
+        } catch (NoSuchFileException e) {
+            return null; // файл уже удален - придет операция удаления
+        } catch (IOException e) {
+            System.out.println("Problem with file: " + task.getPath() + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Убирает из индекса дедупликации пути, которые операция изменит: пока она ждет отправки, файл на сервере
+     * по этому пути уже нельзя считать источником копирования (например, удаление источника, стоящее в очереди,
+     * выполнится на сервере раньше копирования).
+     */
+    private void forget(UploadTask task) {
+        switch (task.getOperation().getType()) {
+            case CREATE, MODIFY, DELETE -> dedupIndex.remove(task.getPath());
+            case RENAME, MOVE_TO -> {
+                dedupIndex.remove(task.getPath());
+                dedupIndex.remove(task.getNewPath());
+            }
+            case COPY -> dedupIndex.remove(task.getNewPath());
+        }
+    }
+
+    /**
+     * Как и SyncPlanner, считает файлы одинаковыми при совпадении хеш-суммы, размера и расширения: стадия
+     * выполняется в одном потоке по порядку операций, поэтому содержимое файлов здесь не читается
+     * (источник не менялся с момента отправки - иначе он был бы убран из индекса).
+     */
+    private UploadTask dedup(UploadTask task) {
+        if (!task.isUpload() || task.getSize() <= 0) return task;
+        Path source = dedupIndex.find(task.getSize(), task.getCrc32Hash(), task.getPath());
+        if (source != null) {
+            System.out.println("Same file already on server: " + source + ". Copying instead of uploading.");
+            task.setOperation(FileOperation.copy(FileOperation.Entity.FILE, source, task.getPath()));
+        }
+        return task;
+    }
+
+    /**
+     * Передает операцию в TransferScheduler (ожидая, если его очередь заполнена); индекс дедупликации
+     * обновляется после отправки операции.
+     */
+    private UploadTask schedule(UploadTask task) {
+        try {
+            transfers.submit(task).whenComplete((t, e) -> {
+                if (e != null) {
+                    task.getCompletion().completeExceptionally(e);
+                    return;
+                }
+                sent(t);
+                task.getCompletion().complete(t);
+            });
+        } catch (InterruptedException e) {
+            task.getCompletion().completeExceptionally(e);
+            Thread.currentThread().interrupt();
+        }
+        return task;
+    }
+
+    private void sent(UploadTask task) {
+        FileOperation operation = task.getOperation();
+        switch (operation.getType()) {
+            case CREATE, MODIFY -> {
+                if (task.isUpload()) dedupIndex.register(task.getPath(), task.getSize(), task.getCrc32Hash());
+            }
+            case COPY -> dedupIndex.register(task.getPath(), task.getSize(), task.getCrc32Hash());
+            case DELETE -> dedupIndex.remove(task.getPath());
+            case RENAME, MOVE_TO -> dedupIndex.move(task.getPath(), task.getNewPath());
+        }
+    }
+
+    /**
+     * Создает стадию; операция, отброшенная стадией или вызвавшая ошибку, на этом завершается.
+     */
+    private static PipelineStage<UploadTask> stage(String name, int queue, int threads, Function<UploadTask, UploadTask> function,
+                                                   PipelineStage<UploadTask> next) {
+        return new PipelineStage<>(name,
+                Integer.getInteger("cloudstorage.pipeline." + name + ".queue", queue),
+                Integer.getInteger("cloudstorage.pipeline." + name + ".threads", threads),
+                task -> {
+                    try {
+                        UploadTask result = function.apply(task);
+                        if (result == null) task.getCompletion().complete(task);
+                        return result;
+                    } catch (RuntimeException e) {
+                        task.getCompletion().completeExceptionally(e);
+                        throw e;
+                    }
+                }, next);
+    }
+}
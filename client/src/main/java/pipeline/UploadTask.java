@@ -0,0 +1,100 @@
+package pipeline;
+
+import operations.FileOperation;
+import operations.OperationType;
+
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Операция, проходящая через конвейер отправки, вместе с собранными по пути сведениями о файле.
+ */
+public class UploadTask {
+    private FileOperation operation;
+    private final Path path;
+    private final Path newPath;
+    private final long createdAt;
+    private long size = -1;
+    private long lastModified;
+    private long crc32Hash;
+    private final CompletableFuture<UploadTask> completion = new CompletableFuture<>();
+
+    public UploadTask(FileOperation operation) {
+        this.operation = operation;
+        this.path = toPath(operation.getOldEntityPath());
+        this.newPath = toPath(operation.getNewEntityPath());
+        this.createdAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true, если операция требует передачи содержимого файла
+     */
+    public boolean isUpload() {
+        return operation.getEntity() == FileOperation.Entity.FILE
+                && (operation.getType() == OperationType.CREATE || operation.getType() == OperationType.MODIFY);
+    }
+
+    /**
+     * @return future, которое завершается, когда операция отправлена или отброшена конвейером,
+     * и завершается с ошибкой, если отправить операцию не удалось
+     */
+    public CompletableFuture<UploadTask> getCompletion() {
+        return completion;
+    }
+
+    public FileOperation getOperation() {
+        return operation;
+    }
+
+    public void setOperation(FileOperation operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * @return путь элемента (для RENAME, MOVE_TO и COPY - прежний путь)
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    public Path getNewPath() {
+        return newPath;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getCrc32Hash() {
+        return crc32Hash;
+    }
+
+    public void setCrc32Hash(long crc32Hash) {
+        this.crc32Hash = crc32Hash;
+    }
+
+    private static Path toPath(String path) {
+        return path == null || path.isEmpty() ? null : Path.of(path);
+    }
+
+    @Override
+    public String toString() {
+        return operation + " (size: " + size + ")";
+    }
+}
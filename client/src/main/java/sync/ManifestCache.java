@@ -0,0 +1,151 @@
+package sync;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import files.SimpleFile;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Сохраненный на диске перечень файлов пользователя на сервере вместе с номером журнала изменений сервера,
+ * которому он соответствует. При следующем подключении сервер передает только изменения после этого номера,
+ * а полный перечень собирается из сохраненного и изменений.
+ * Файл: строка "журнал номер", затем по строке JSON на файл в порядке ManifestOrder.
+ */
+public class ManifestCache {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path file;
+    private long journalId;
+    private long sequence;
+
+    /**
+     * @param file файл перечня (вне синхронизируемой директории)
+     */
+    public ManifestCache(Path file) {
+        this.file = file;
+        if (!Files.exists(file)) return;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String[] header = reader.readLine().split(" ");
+            journalId = Long.parseLong(header[0]);
+            sequence = Long.parseLong(header[1]);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Saved server manifest is unreadable: " + file);
+            invalidate();
+        }
+    }
+
+    /**
+     * @return журнал, которому соответствует сохраненный перечень (0 - перечня нет)
+     */
+    public long getJournalId() {
+        return journalId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Удаляет сохраненный перечень; при следующем подключении будет запрошен полный перечень.
+     */
+    public void invalidate() {
+        journalId = 0;
+        sequence = 0;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+
+    public Reader openReader() throws IOException {
+        return new Reader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Начинает запись нового перечня во временный файл; сохраненный перечень заменяется только после commit().
+     *
+     * @param journalId журнал изменений сервера
+     * @param sequence  номер последнего изменения, отраженного в перечне
+     */
+    public Writer openWriter(long journalId, long sequence) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8);
+        out.write(journalId + " " + sequence);
+        out.newLine();
+        return new Writer(out, tmp, journalId, sequence);
+    }
+
+    public class Reader implements Closeable {
+        private final BufferedReader in;
+
+        private Reader(BufferedReader in) throws IOException {
+            this.in = in;
+            in.readLine();
+        }
+
+        /**
+         * @return следующий файл перечня или null, если перечень закончился
+         */
+        public SimpleFile next() throws IOException {
+            String line = in.readLine();
+            return line == null ? null : MAPPER.readValue(line, SimpleFile.class);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    public class Writer implements Closeable {
+        private final BufferedWriter out;
+        private final Path tmp;
+        private final long newJournalId;
+        private final long newSequence;
+
+        private Writer(BufferedWriter out, Path tmp, long journalId, long sequence) {
+            this.out = out;
+            this.tmp = tmp;
+            this.newJournalId = journalId;
+            this.newSequence = sequence;
+        }
+
+        public void write(SimpleFile f) throws IOException {
+            out.write(MAPPER.writeValueAsString(f));
+            out.newLine();
+        }
+
+        /**
+         * Заменяет сохраненный перечень записанным.
+         */
+        public void commit() throws IOException {
+            out.close();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalId = newJournalId;
+            sequence = newSequence;
+        }
+
+        /**
+         * Отменяет запись; сохраненный перечень не меняется.
+         */
+        @Override
+        public void close() {
+            try {
+                out.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package sync;
+
+import files.ManifestOrder;
+import files.SimpleFile;
+import io.netty.channel.Channel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Перечень файлов пользователя на сервере, читаемый по мере поступления порций (в порядке ManifestOrder).
+ * Если получено больше cloudstorage.manifest.bufferedChunks непрочитанных порций, чтение из канала приостанавливается,
+ * поэтому в памяти клиента находится лишь несколько порций, а не весь перечень.
+ * Прочитанный перечень сохраняется в ManifestCache. Если сервер передает только изменения, порции сливаются
+ * с сохраненным перечнем: его файлы по удаленным путям пропускаются, а файлы с теми же путями заменяются новыми.
+ */
+public class ServerManifest {
+
+    private static final List<SimpleFile> END = List.of();
+
+    private final int maxBufferedChunks = Integer.getInteger("cloudstorage.manifest.bufferedChunks", 4);
+    private final LinkedBlockingQueue<List<SimpleFile>> chunks = new LinkedBlockingQueue<>();
+    private final Channel channel;
+    private volatile String failure;
+    private List<SimpleFile> current = List.of();
+    private int position;
+    private boolean finished;
+    private ManifestCache.Writer cacheWriter;
+    private ManifestCache base;
+    private ManifestCache.Reader baseReader;
+    private SimpleFile baseNext;
+    private volatile List<String> removed = List.of();
+    private int removedPosition;
+    private SimpleFile next;
+    private boolean nextReady;
+
+    /**
+     * @param channel канал, из которого приходят порции (null - перечень уже получен целиком)
+     */
+    public ServerManifest(Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Создает перечень из полученного целиком списка.
+     *
+     * @param files файлы на сервере
+     * @return перечень
+     */
+    public static ServerManifest of(List<SimpleFile> files) {
+        ServerManifest result = new ServerManifest(null);
+        List<SimpleFile> sorted = new ArrayList<>(files);
+        sorted.sort(ManifestOrder.BY_PATH);
+        result.offer(sorted, true);
+        return result;
+    }
+
+    /**
+     * Создает перечень, порции которого приходят из канала, и сохраняет его по мере чтения.
+     *
+     * @param channel   канал
+     * @param cache     сохраненный перечень (null - перечень не сохраняется)
+     * @param journalId журнал изменений сервера
+     * @param sequence  номер последнего изменения на сервере
+     * @param delta     порции содержат только изменения относительно сохраненного перечня
+     * @return перечень
+     */
+    public static ServerManifest streamed(Channel channel, ManifestCache cache, long journalId, long sequence, boolean delta) {
+        ServerManifest result = new ServerManifest(channel);
+        if (cache == null) return result;
+        if (delta) result.base = cache;
+        try {
+            result.cacheWriter = cache.openWriter(journalId, sequence);
+        } catch (IOException e) {
+            System.out.println("Server manifest will not be saved: " + e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * Добавляет полученную порцию (вызывается в потоке канала).
+     *
+     * @param files файлы порции
+     * @param last  последняя ли это порция
+     */
+    public void offer(List<SimpleFile> files, boolean last) {
+        if (!files.isEmpty()) chunks.add(files);
+        if (last) chunks.add(END);
+        else if (channel != null && chunks.size() >= maxBufferedChunks) channel.config().setAutoRead(false);
+    }
+
+    /**
+     * Добавляет пути, удаленные на сервере после сохранения перечня (приходят в первой порции изменений).
+     *
+     * @param keys пути в порядке ManifestOrder
+     */
+    public void offerRemoved(List<String> keys) {
+        if (keys != null && !keys.isEmpty()) removed = keys;
+    }
+
+    /**
+     * Прерывает чтение перечня (например, при разрыве соединения).
+     */
+    public void fail(String message) {
+        failure = message;
+        chunks.add(END);
+    }
+
+    /**
+     * @return следующий файл перечня, не извлекая его, или null, если перечень закончился
+     * @throws InterruptedException если ожидание порции прервано
+     */
+    public SimpleFile peek() throws InterruptedException {
+        if (!nextReady) {
+            try {
+                next = base == null ? takeReceived() : takeMerged();
+            } catch (IOException e) {
+                closeCache(false);
+                base.invalidate();
+                throw new IllegalStateException("Saved server manifest is unreadable: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                closeCache(false);
+                throw e;
+            }
+            nextReady = true;
+            if (next == null) closeCache(true);
+        }
+        return next;
+    }
+
+    /**
+     * @return следующий файл перечня или null, если перечень закончился
+     * @throws InterruptedException если ожидание порции прервано
+     */
+    public SimpleFile take() throws InterruptedException {
+        SimpleFile result = peek();
+        if (result == null) return null;
+        nextReady = false;
+        if (cacheWriter != null) {
+            try {
+                cacheWriter.write(result);
+            } catch (IOException e) {
+                System.out.println("Server manifest will not be saved: " + e.getMessage());
+                closeCache(false);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Дочитывает перечень до конца (он сохраняется в ManifestCache), не передавая его для сравнения.
+     */
+    public void drain() {
+        try {
+            while (take() != null) ;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Слияние сохраненного перечня с полученными изменениями.
+     */
+    private SimpleFile takeMerged() throws InterruptedException, IOException {
+        if (baseReader == null) {
+            // удаленные пути приходят в первой порции, поэтому ее нужно дождаться до чтения сохраненного перечня
+            peekReceived();
+            baseReader = base.openReader();
+            baseNext = nextBase();
+        }
+        SimpleFile received = peekReceived();
+        if (baseNext == null && received == null) return null;
+        int cmp = baseNext == null ? 1 : received == null ? -1 : ManifestOrder.compare(baseNext.getAbsolutePath(), received.getAbsolutePath());
+        if (cmp < 0) {
+            SimpleFile result = baseNext;
+            baseNext = nextBase();
+            return result;
+        }
+        // файл с тем же путем заменяется полученным
+        if (cmp == 0) baseNext = nextBase();
+        position++;
+        return received;
+    }
+
+    /**
+     * @return следующий файл сохраненного перечня, не попадающий под удаленные пути
+     */
+    private SimpleFile nextBase() throws IOException {
+        SimpleFile f;
+        while ((f = baseReader.next()) != null) {
+            String key = f.getAbsolutePath();
+            while (removedPosition < removed.size() && ManifestOrder.compare(removed.get(removedPosition), key) < 0
+                    && !isUnder(key, removed.get(removedPosition))) {
+                removedPosition++;
+            }
+            if (removedPosition == removed.size() || !isUnder(key, removed.get(removedPosition))) return f;
+        }
+        return null;
+    }
+
+    private static boolean isUnder(String key, String prefix) {
+        return key.startsWith(prefix) && (key.length() == prefix.length() || key.charAt(prefix.length()) == '\\');
+    }
+
+    private SimpleFile takeReceived() throws InterruptedException {
+        SimpleFile result = peekReceived();
+        if (result != null) position++;
+        return result;
+    }
+
+    private SimpleFile peekReceived() throws InterruptedException {
+        while (position == current.size()) {
+            if (finished) return null;
+            List<SimpleFile> next = chunks.take();
+            if (channel != null && chunks.size() <= maxBufferedChunks / 2 && !channel.config().isAutoRead()) {
+                channel.config().setAutoRead(true);
+            }
+            if (next == END) {
+                finished = true;
+                if (failure != null) throw new IllegalStateException("Server manifest is incomplete: " + failure);
+            }
+            current = next;
+            position = 0;
+        }
+        return current.get(position);
+    }
+
+    private void closeCache(boolean commit) {
+        if (baseReader != null) {
+            try {
+                baseReader.close();
+            } catch (IOException e) {
+                //do nothing
+            }
+        }
+        if (cacheWriter == null) return;
+        try {
+            if (commit) cacheWriter.commit();
+        } catch (IOException e) {
+            System.out.println("Server manifest was not saved: " + e.getMessage());
+        } finally {
+            cacheWriter.close();
+            cacheWriter = null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package sync;
+
+import files.FileTreeSnapshot;
+import files.FlatFileTree;
+import files.SnapshotDirectory;
+import files.SnapshotFile;
+import files.SnapshotNode;
+import files.SnapshotVersion;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Обход файлов "снимка" в порядке ManifestOrder (в глубину, дочерние элементы по имени) без создания объектов
+ * на каждый файл: путь файла собирается в общем буфере, параметры текущего файла доступны через геттеры.
+ */
+public abstract class SnapshotCursor {
+
+    protected final StringBuilder key = new StringBuilder();
+    protected int[] keyLengths = new int[16];
+    protected int depth;
+    protected final String rootPath;
+    private final char separator;
+    protected String name;
+    protected long size;
+    protected long lastModified;
+    protected long crc32Hash;
+
+    private SnapshotCursor(Path rootPath) {
+        this.rootPath = rootPath.toString();
+        this.separator = rootPath.getFileSystem().getSeparator().charAt(0);
+    }
+
+    public static SnapshotCursor of(FileTreeSnapshot snapshot) {
+        return snapshot.isCompact() ? new FlatCursor(snapshot.getFlatTree()) : new VersionCursor(snapshot.currentVersion());
+    }
+
+    /**
+     * Переходит к следующему файлу.
+     *
+     * @return false, если файлов больше нет
+     */
+    public abstract boolean advance();
+
+    /**
+     * @return путь текущего файла относительно корня в виде "\a\b" (буфер меняется при advance())
+     */
+    public CharSequence getKey() {
+        return key;
+    }
+
+    /**
+     * @return полный путь текущего файла (разделитель ключа заменяется разделителем файловой системы)
+     */
+    public Path getPath() {
+        return Path.of(rootPath + (separator == '\\' ? key.toString() : key.toString().replace('\\', separator)));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getCrc32Hash() {
+        return crc32Hash;
+    }
+
+    protected void push(String childName) {
+        if (depth == keyLengths.length) keyLengths = Arrays.copyOf(keyLengths, depth * 2);
+        keyLengths[depth++] = key.length();
+        key.append('\\').append(childName);
+    }
+
+    protected void pop() {
+        key.setLength(keyLengths[--depth]);
+    }
+
+    private static class VersionCursor extends SnapshotCursor {
+        private SnapshotDirectory[] dirs = new SnapshotDirectory[16];
+        private int[] positions = new int[16];
+        private int levels;
+        private boolean onFile;
+
+        private VersionCursor(SnapshotVersion version) {
+            super(version.getRootPath());
+            dirs[levels++] = version.getRoot();
+        }
+
+        @Override
+        public boolean advance() {
+            if (onFile) {
+                pop();
+                onFile = false;
+            }
+            while (levels > 0) {
+                int top = levels - 1;
+                SnapshotDirectory dir = dirs[top];
+                int i = positions[top];
+                if (i == dir.getChildCount()) {
+                    dirs[top] = null;
+                    levels--;
+                    if (levels > 0) pop();
+                    continue;
+                }
+                positions[top] = i + 1;
+                SnapshotNode child = dir.getChild(i);
+                push(child.getName());
+                if (child instanceof SnapshotDirectory sub) {
+                    if (levels == dirs.length) {
+                        dirs = Arrays.copyOf(dirs, levels * 2);
+                        positions = Arrays.copyOf(positions, levels * 2);
+                    }
+                    dirs[levels] = sub;
+                    positions[levels++] = 0;
+                } else {
+                    SnapshotFile f = (SnapshotFile) child;
+                    name = f.getName();
+                    size = f.getSize();
+                    lastModified = f.getLastModified();
+                    crc32Hash = f.getCrc32Hash();
+                    onFile = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class FlatCursor extends SnapshotCursor {
+        private final FlatFileTree tree;
+        private int[] dirs = new int[16];
+        private int[] positions = new int[16];
+        private int levels;
+        private boolean onFile;
+
+        private FlatCursor(FlatFileTree tree) {
+            super(tree.getRootPath());
+            this.tree = tree;
+            dirs[levels++] = tree.root();
+        }
+
+        @Override
+        public boolean advance() {
+            if (onFile) {
+                pop();
+                onFile = false;
+            }
+            while (levels > 0) {
+                int top = levels - 1;
+                int dir = dirs[top];
+                int i = positions[top];
+                if (i == tree.childCount(dir)) {
+                    levels--;
+                    if (levels > 0) pop();
+                    continue;
+                }
+                positions[top] = i + 1;
+                int child = tree.firstChild(dir) + i;
+                push(tree.name(child));
+                if (tree.isDirectory(child)) {
+                    if (levels == dirs.length) {
+                        dirs = Arrays.copyOf(dirs, levels * 2);
+                        positions = Arrays.copyOf(positions, levels * 2);
+                    }
+                    dirs[levels] = child;
+                    positions[levels++] = 0;
+                } else {
+                    name = tree.name(child);
+                    size = tree.size(child);
+                    lastModified = tree.lastModified(child);
+                    crc32Hash = tree.hash(child);
+                    onFile = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
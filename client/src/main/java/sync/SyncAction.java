@@ -0,0 +1,119 @@
+package sync;
+
+import operations.FileOperation;
+import pipeline.UploadTask;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Одно действие плана синхронизации.
+ * Действие выполняется только после всех действий, от которых оно зависит (getDependencies()).
+ */
+public class SyncAction {
+
+    public enum Type {
+        CREATE, MODIFY, COPY, DELETE
+    }
+
+    private final Type type;
+    private final String key;
+    private final Path path;
+    private final Path source;
+    private final long size;
+    private final long lastModified;
+    private final long crc32Hash;
+    private final List<SyncAction> dependencies = new ArrayList<>(0);
+
+    /**
+     * @param type         вид действия
+     * @param key          путь относительно корня (в виде, в котором его передает сервер), по нему строятся зависимости
+     * @param path         путь, к которому применяется действие
+     * @param source       исходный путь на сервере для COPY (иначе null)
+     * @param size         размер файла
+     * @param lastModified время изменения файла
+     * @param crc32Hash    хеш-сумма файла
+     */
+    SyncAction(Type type, String key, Path path, Path source, long size, long lastModified, long crc32Hash) {
+        this.type = type;
+        this.key = key;
+        this.path = path;
+        this.source = source;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.crc32Hash = crc32Hash;
+    }
+
+    /**
+     * @return количество байт, которое нужно передать на сервер для выполнения действия
+     */
+    public long getEstimatedBytes() {
+        return type == Type.CREATE || type == Type.MODIFY ? Math.max(0, size) : 0;
+    }
+
+    /**
+     * @return задача для TransferScheduler
+     */
+    public UploadTask toUploadTask() {
+        FileOperation operation = switch (type) {
+            case CREATE -> FileOperation.create(FileOperation.Entity.FILE, path);
+            case MODIFY -> FileOperation.modify(FileOperation.Entity.FILE, path);
+            case COPY -> FileOperation.copy(FileOperation.Entity.FILE, source, path);
+            case DELETE -> FileOperation.delete(FileOperation.Entity.FILE, path);
+        };
+        UploadTask task = new UploadTask(operation);
+        task.setSize(size);
+        task.setLastModified(lastModified);
+        task.setCrc32Hash(crc32Hash);
+        return task;
+    }
+
+    /**
+     * @return копия действия без зависимостей
+     */
+    SyncAction withoutDependencies() {
+        return new SyncAction(type, key, path, source, size, lastModified, crc32Hash);
+    }
+
+    void dependOn(SyncAction action) {
+        if (action != this && !dependencies.contains(action)) dependencies.add(action);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public Path getSource() {
+        return source;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getCrc32Hash() {
+        return crc32Hash;
+    }
+
+    public List<SyncAction> getDependencies() {
+        return dependencies;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + (source == null ? "" : source + " -> ") + path + (getEstimatedBytes() > 0 ? " (" + size + " bytes)" : "");
+    }
+}
@@ -0,0 +1,63 @@
+package sync;
+
+import pipeline.TransferScheduler;
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Выполняет план синхронизации через TransferScheduler: действие ставится в очередь передач, как только завершены
+ * все действия, от которых оно зависит. Число одновременных передач и их очередность определяет TransferScheduler
+ * (cloudstorage.transfer.concurrency, cloudstorage.transfer.policy).
+ */
+public class SyncExecutor {
+
+    private final TransferScheduler transfers;
+
+    public SyncExecutor(TransferScheduler transfers) {
+        this.transfers = transfers;
+    }
+
+    /**
+     * Выполняет план и дожидается завершения всех его действий.
+     *
+     * @param plan план синхронизации
+     * @return количество действий, выполнить которые не удалось
+     * @throws InterruptedException если ожидание прервано
+     */
+    public int execute(SyncPlan plan) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        Map<SyncAction, AtomicInteger> waitingFor = new IdentityHashMap<>();
+        Map<SyncAction, List<SyncAction>> dependents = new IdentityHashMap<>();
+        LinkedBlockingQueue<SyncAction> ready = new LinkedBlockingQueue<>();
+        for (SyncAction a : plan.getActions()) {
+            waitingFor.put(a, new AtomicInteger(a.getDependencies().size()));
+            for (SyncAction d : a.getDependencies()) dependents.computeIfAbsent(d, k -> new ArrayList<>(1)).add(a);
+            if (a.getDependencies().isEmpty()) ready.add(a);
+        }
+        LinkedBlockingQueue<SyncAction> finished = new LinkedBlockingQueue<>();
+        LongAdder failed = new LongAdder();
+        int remaining = plan.size();
+        while (remaining > 0) {
+            // ставим в очередь все готовые действия, затем ждем завершения хотя бы одного
+            SyncAction a;
+            while ((a = ready.poll()) != null) {
+                SyncAction action = a;
+                transfers.submit(action.toUploadTask()).whenComplete((task, e) -> {
+                    if (e != null) failed.increment();
+                    finished.add(action);
+                });
+            }
+            SyncAction done = finished.take();
+            remaining--;
+            for (SyncAction d : dependents.getOrDefault(done, List.of())) {
+                if (waitingFor.get(d).decrementAndGet() == 0) ready.add(d);
+            }
+        }
+        System.out.printf("Synchronization complete: %d operations, %.1f MB, %d failed (%.3f sec).%n",
+                plan.size(), plan.getEstimatedBytes() / 1024.0 / 1024.0, failed.sum(), (System.currentTimeMillis() - start) / 1000.0);
+        return failed.intValue();
+    }
+}
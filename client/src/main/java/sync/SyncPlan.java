@@ -0,0 +1,65 @@
+package sync;
+
+import java.util.*;
+
+/**
+ * Полный план синхронизации: действия в порядке, совместимом с их зависимостями.
+ * План можно просмотреть (print()) до выполнения - так работает пробный запуск (cloudstorage.sync.dryRun).
+ */
+public class SyncPlan {
+
+    private final List<SyncAction> actions;
+    private final EnumMap<SyncAction.Type, Integer> counts = new EnumMap<>(SyncAction.Type.class);
+    private final long estimatedBytes;
+    private final long planningMillis;
+
+    SyncPlan(List<SyncAction> actions, long planningMillis) {
+        this.actions = Collections.unmodifiableList(actions);
+        this.planningMillis = planningMillis;
+        long bytes = 0;
+        for (SyncAction a : actions) {
+            counts.merge(a.getType(), 1, Integer::sum);
+            bytes += a.getEstimatedBytes();
+        }
+        this.estimatedBytes = bytes;
+    }
+
+    public List<SyncAction> getActions() {
+        return actions;
+    }
+
+    public int size() {
+        return actions.size();
+    }
+
+    public int getCount(SyncAction.Type type) {
+        return counts.getOrDefault(type, 0);
+    }
+
+    /**
+     * @return количество байт, которое будет передано на сервер
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public boolean isEmpty() {
+        return actions.isEmpty();
+    }
+
+    /**
+     * Выводит все действия плана.
+     */
+    public void print() {
+        for (SyncAction a : actions) {
+            System.out.println(a + (a.getDependencies().isEmpty() ? "" : " | after: " + a.getDependencies()));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Sync plan: %d create, %d modify, %d copy, %d delete; %.1f MB to upload (planned in %.3f sec).",
+                getCount(SyncAction.Type.CREATE), getCount(SyncAction.Type.MODIFY), getCount(SyncAction.Type.COPY),
+                getCount(SyncAction.Type.DELETE), estimatedBytes / 1024.0 / 1024.0, planningMillis / 1000.0);
+    }
+}
@@ -0,0 +1,159 @@
+package sync;
+
+import files.FileTreeSnapshot;
+import files.ManifestOrder;
+import files.SimpleFile;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Строит план синхронизации "снимка" клиента с перечнем файлов на сервере.
+ * "Снимок" (SnapshotCursor) и перечень сервера (ServerManifest) читаются в одном порядке (ManifestOrder)
+ * и сравниваются за один проход слиянием, поэтому в памяти хранятся только различия, а не весь перечень:
+ * файл есть только у клиента - CREATE, только на сервере - DELETE, на обоих, но различается - MODIFY.
+ * Затем передача файла заменяется копированием на сервере (COPY), если там есть файл с такими же хеш-суммой,
+ * размером и расширением: среди удаляемых файлов (переименование, перемещение) и среди неизмененных
+ * (не более cloudstorage.sync.copyIndexEntries).
+ * Действие, изменяющее путь, который служит источником копирования, выполняется после этого копирования.
+ */
+public class SyncPlanner {
+
+    private final int copyIndexEntries = Integer.getInteger("cloudstorage.sync.copyIndexEntries", 100_000);
+    private final ServerManifest manifest;
+    private final Map<Long, SimpleFile> unchangedByHash = new HashMap<>();
+    private final Set<String> keysOnServer = new HashSet<>();
+
+    /**
+     * @param manifest перечень файлов пользователя на сервере
+     */
+    public SyncPlanner(ServerManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * @param clientFTS "снимок" клиента
+     * @return план синхронизации
+     * @throws InterruptedException если ожидание перечня сервера прервано
+     */
+    public SyncPlan plan(FileTreeSnapshot clientFTS) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<SyncAction> actions = new ArrayList<>();
+        SnapshotCursor client = SnapshotCursor.of(clientFTS);
+        boolean hasClient = client.advance();
+        SimpleFile server = manifest.take();
+        String serverKey = server == null ? null : server.getAbsolutePath();
+        while (hasClient || server != null) {
+            int cmp = !hasClient ? 1 : server == null ? -1 : ManifestOrder.compare(client.getKey(), serverKey);
+            if (cmp < 0) {
+                actions.add(action(SyncAction.Type.CREATE, client));
+                hasClient = client.advance();
+                continue;
+            }
+            if (cmp > 0) {
+                actions.add(new SyncAction(SyncAction.Type.DELETE, serverKey, Path.of(serverKey), null, server.getSize(), 0, server.getCrc32Hash()));
+            } else {
+                if (server.getCrc32Hash() == client.getCrc32Hash() && server.getSize() == client.getSize()) {
+                    if (unchangedByHash.size() < copyIndexEntries) unchangedByHash.putIfAbsent(server.getCrc32Hash(), server);
+                } else {
+                    keysOnServer.add(serverKey);
+                    actions.add(action(SyncAction.Type.MODIFY, client));
+                }
+                hasClient = client.advance();
+            }
+            server = manifest.take();
+            serverKey = server == null ? null : server.getAbsolutePath();
+        }
+        actions = useCopies(actions);
+        return new SyncPlan(order(actions), System.currentTimeMillis() - start);
+    }
+
+    private static SyncAction action(SyncAction.Type type, SnapshotCursor client) {
+        return new SyncAction(type, client.getKey().toString(), client.getPath(), null, client.getSize(), client.getLastModified(), client.getCrc32Hash());
+    }
+
+    /**
+     * Заменяет передачу файла копированием на сервере, если там есть такой же файл.
+     */
+    private List<SyncAction> useCopies(List<SyncAction> actions) {
+        Map<Long, List<SyncAction>> deletedByHash = new HashMap<>();
+        for (SyncAction a : actions) {
+            if (a.getType() == SyncAction.Type.DELETE) deletedByHash.computeIfAbsent(a.getCrc32Hash(), h -> new ArrayList<>(1)).add(a);
+        }
+        List<SyncAction> result = new ArrayList<>(actions.size());
+        for (SyncAction a : actions) {
+            String source = a.getType() == SyncAction.Type.DELETE ? null : findCopySource(a, deletedByHash);
+            result.add(source == null ? a
+                    : new SyncAction(SyncAction.Type.COPY, a.getKey(), a.getPath(), Path.of(source), a.getSize(), a.getLastModified(), a.getCrc32Hash()));
+        }
+        return result;
+    }
+
+    private String findCopySource(SyncAction a, Map<Long, List<SyncAction>> deletedByHash) {
+        for (SyncAction d : deletedByHash.getOrDefault(a.getCrc32Hash(), List.of())) {
+            if (d.getSize() == a.getSize() && extension(d.getKey()).equalsIgnoreCase(extension(a.getKey()))) return d.getKey();
+        }
+        SimpleFile f = unchangedByHash.get(a.getCrc32Hash());
+        if (f != null && f.getSize() == a.getSize() && f.getFileExtension().equalsIgnoreCase(extension(a.getKey()))) return f.getAbsolutePath();
+        return null;
+    }
+
+    private static String extension(String key) {
+        int dot = key.lastIndexOf('.');
+        return dot <= Math.max(key.lastIndexOf('\\'), key.lastIndexOf('/')) ? "" : key.substring(dot + 1);
+    }
+
+    /**
+     * Расставляет зависимости и упорядочивает действия так, чтобы каждое шло после тех, от которых зависит.
+     * Копирования, образующие цикл (например, файлы поменялись содержимым), заменяются передачей файла.
+     */
+    private List<SyncAction> order(List<SyncAction> actions) {
+        while (true) {
+            addDependencies(actions);
+            Map<SyncAction, Integer> indegree = new IdentityHashMap<>();
+            Map<SyncAction, List<SyncAction>> dependents = new IdentityHashMap<>();
+            ArrayDeque<SyncAction> ready = new ArrayDeque<>();
+            for (SyncAction a : actions) {
+                indegree.put(a, a.getDependencies().size());
+                for (SyncAction d : a.getDependencies()) dependents.computeIfAbsent(d, k -> new ArrayList<>(1)).add(a);
+                if (a.getDependencies().isEmpty()) ready.add(a);
+            }
+            List<SyncAction> result = new ArrayList<>(actions.size());
+            while (!ready.isEmpty()) {
+                SyncAction a = ready.poll();
+                result.add(a);
+                for (SyncAction d : dependents.getOrDefault(a, List.of())) {
+                    if (indegree.merge(d, -1, Integer::sum) == 0) ready.add(d);
+                }
+            }
+            if (result.size() == actions.size()) return result;
+            List<SyncAction> replaced = new ArrayList<>(actions.size());
+            for (SyncAction a : actions) {
+                boolean inCycle = indegree.get(a) > 0;
+                replaced.add(inCycle && a.getType() == SyncAction.Type.COPY ? asUpload(a) : a.withoutDependencies());
+            }
+            actions = replaced;
+        }
+    }
+
+    private SyncAction asUpload(SyncAction copy) {
+        SyncAction.Type type = keysOnServer.contains(copy.getKey()) ? SyncAction.Type.MODIFY : SyncAction.Type.CREATE;
+        return new SyncAction(type, copy.getKey(), copy.getPath(), null, copy.getSize(), copy.getLastModified(), copy.getCrc32Hash());
+    }
+
+    /**
+     * Действие, изменяющее путь (CREATE, MODIFY, DELETE и COPY в этот путь), зависит от копирований из этого пути.
+     */
+    private static void addDependencies(List<SyncAction> actions) {
+        Map<String, List<SyncAction>> readers = new HashMap<>();
+        for (SyncAction a : actions) {
+            if (a.getType() == SyncAction.Type.COPY) {
+                readers.computeIfAbsent(a.getSource().toString(), k -> new ArrayList<>(1)).add(a);
+            }
+        }
+        if (readers.isEmpty()) return;
+        for (SyncAction a : actions) {
+            for (SyncAction reader : readers.getOrDefault(a.getKey(), List.of())) a.dependOn(reader);
+        }
+    }
+}
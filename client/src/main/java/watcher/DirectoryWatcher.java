@@ -1,48 +1,61 @@
 package watcher;
 
-import com.sun.nio.file.ExtendedWatchEventModifier;
-import handlers.MessageHandler;
+import client.Client;
 import handlers.SessionHandler;
+import metrics.Counter;
+import metrics.Metrics;
 import operations.FileOperation;
 import operations.OperationType;
 import files.ClientDirectory;
 import files.ClientFile;
 import files.FileSystemElement;
 import files.FileTreeSnapshot;
-import utils.CRC32Hash;
+import files.ParallelTreeScanner;
+import files.SnapshotDirectory;
+import files.SnapshotFile;
+import files.SnapshotNode;
+import pipeline.DedupIndex;
+import pipeline.PendingQueue;
+import pipeline.StageStatistics;
+import pipeline.TransferScheduler;
+import pipeline.UploadPipeline;
 
 import java.io.IOException;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
-
-import static java.nio.file.StandardWatchEventKinds.*;
 
 public class DirectoryWatcher {
 
+    private static final Counter DETECTED_OPERATIONS = Metrics.counter("watcher.detected.operations");
+
     private static DirectoryWatcher currentWatcher;
 
-    private final WatchService watcher;
+    private final WatchBackend watcher;
     private final FileTreeSnapshot snapshot;
     private final SessionHandler session;
     private final Path rootDirectory;
-    private List<FileOperation> operationsList;
-    private final ReentrantLock lock;
-    private Timer timer;
+    private final EventCoalescer coalescer;
+    private final DedupIndex dedupIndex = new DedupIndex();
+    private final UploadPipeline pipeline;
+    private final PendingQueue pending;
+    private final RecentDeletes recentDeletes = new RecentDeletes();
 
     private DirectoryWatcher(FileTreeSnapshot fts, SessionHandler session) throws IOException {
-        this.watcher = FileSystems.getDefault().newWatchService();
+        this.watcher = WatchBackend.create();
         this.snapshot = fts;
         this.session = session;
         this.rootDirectory = fts.getInitialPath();
-        this.operationsList = new ArrayList<>();
-        this.lock = new ReentrantLock();
-        this.timer = new Timer();
-        this.rootDirectory.register(watcher,
-                new WatchEvent.Kind[]{ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW},
-                ExtendedWatchEventModifier.FILE_TREE);
+        TransferScheduler transfers = Client.getTransferScheduler() != null ? Client.getTransferScheduler() : new TransferScheduler(session);
+        this.pipeline = new UploadPipeline(transfers, fts, dedupIndex);
+        this.pending = new PendingQueue(Path.of(Client.getStateDirPath() + "\\pending_" + session.getUsername()),
+                pipeline::submit, () -> session.isAlive() && session.isAuthorized());
+        this.coalescer = new EventCoalescer(op -> {
+            DETECTED_OPERATIONS.increment();
+            pending.add(op);
+        });
+        this.watcher.start(rootDirectory);
+        registerMetrics();
         currentWatcher = this;
         FileOperation.setWatcherRootPath(rootDirectory);
     }
@@ -54,199 +67,214 @@ public class DirectoryWatcher {
     }
 
     public void shutdown() throws IOException {
-        this.timer.cancel();
-        this.lock.unlock();
+        this.coalescer.flush();
+        this.coalescer.close();
+        this.pending.shutdown();
+        this.pipeline.shutdown();
         this.watcher.close();
+        for (StageStatistics stage : getPipelineStatistics()) {
+            if (!stage.getName().equals("schedule") || Client.getTransferScheduler() == null) Metrics.removeGauges("pipeline." + stage.getName() + ".");
+        }
         FileOperation.setWatcherRootPath(null);
         currentWatcher = null;
     }
 
     public void start() throws IOException {
-        WatchEvent<?> prevEvent = null;
-        FileSystemElement prevElement = null;
-        System.out.println("Watcher started.");
+        snapshot.ready().join();
+        if (snapshot.isCompact()) dedupIndex.registerAll(snapshot.getFlatTree());
+        else if (snapshot.currentVersion() != null) dedupIndex.registerAll(snapshot.currentVersion());
+        pipeline.start();
+        pending.start();
+        System.out.println("Watcher started (" + watcher.getName() + ").");
 
         while (true) {
-            WatchKey key;
+            List<FileEvent> events;
 
             try {
-                while (FileTreeSnapshot.isComputing()) {
-                    synchronized (this) {
-                        this.wait(500);
-                    }
-                }
-                key = watcher.take();
-                lock.lock();
-            } catch (InterruptedException e) {
-                shutdown();
-                return;
+                events = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
             }
 
-            for (WatchEvent<?> currEvent : key.pollEvents()) {
-                WatchEvent.Kind<?> kind = currEvent.kind();
-                if (kind == OVERFLOW) continue;
-                Path currElementPath = getChangedPath(key, currEvent);
-                ClientDirectory currElementParentDir = snapshot.getDirectory(currElementPath.getParent());
-                String currElementName = currElementPath.getFileName().toString();
-                FileSystemElement currElement;
-
-                if (kind == ENTRY_CREATE) {
-                    if (Files.isDirectory(currElementPath)) {
-                        if (prevEvent != null && prevEvent.kind() == ENTRY_DELETE && !operationsList.isEmpty() && prevElement instanceof ClientDirectory prevDir) {
-                            if (isDirectoryRename(currElementPath, prevDir)) {
-                                Path prevPath = prevDir.getPath();
-                                prevDir.rename(currElementName);
-                                currElement = currElementParentDir.addSubdirectory(prevDir);
-                                addOperation(OperationType.RENAME, FileOperation.Entity.DIRECTORY, prevPath, prevDir.getPath());
-                            } else if (isDirectoryMoved(currElementPath, prevDir)) {
-                                Path prevPath = prevDir.getPath();
-                                prevDir.moveTo(currElementParentDir);
-                                currElement = prevDir;
-                                addOperation(OperationType.MOVE_TO, FileOperation.Entity.DIRECTORY, prevPath, prevDir.getPath());
-                            } else {
-                                currElement = currElementParentDir.addSubdirectory(currElementName);
-                                addOperation(OperationType.CREATE, FileOperation.Entity.DIRECTORY, currElementPath);
-                            }
-                        } else {
-                            currElement = currElementParentDir.addSubdirectory(currElementName);
-                            addOperation(OperationType.CREATE, FileOperation.Entity.DIRECTORY, currElementPath);
-                        }
-                    } else {
-                        if (prevEvent != null && prevEvent.kind() == ENTRY_DELETE && !operationsList.isEmpty() && prevElement instanceof ClientFile prevClientFile) {
-                            if (isFileRename(currElementPath, prevClientFile)) {
-                                Path prevPath = prevClientFile.getFilePath();
-                                prevClientFile.rename(currElementName);
-                                currElement = currElementParentDir.addFile(prevClientFile);
-                                addOperation(OperationType.RENAME, FileOperation.Entity.FILE, prevPath, prevClientFile.getFilePath());
-                            } else if (isFileMoved(currElementPath, prevClientFile)) {
-                                Path prevPath = prevClientFile.getFilePath();
-                                prevClientFile.moveTo(currElementParentDir);
-                                currElement = prevClientFile;
-                                addOperation(OperationType.MOVE_TO, FileOperation.Entity.FILE, prevPath, prevClientFile.getFilePath());
-                            } else {
-                                currElement = currElementParentDir.addFile(currElementPath);
-                                addOperation(OperationType.CREATE, FileOperation.Entity.FILE, currElementPath);
-                            }
-                        } else {
-                            currElement = currElementParentDir.addFile(currElementPath);
-                            addOperation(OperationType.CREATE, FileOperation.Entity.FILE, currElementPath);
-                        }
-                    }
-                } else if (kind == ENTRY_DELETE) {
-                    if (currElementParentDir.containsSubdirectory(currElementName)) {
-                        currElement = currElementParentDir.removeSubdirectory(currElementName);
-                        addOperation(OperationType.DELETE, FileOperation.Entity.DIRECTORY, currElementPath);
-                    } else {
-                        currElement = currElementParentDir.removeFile(currElementName);
-                        addOperation(OperationType.DELETE, FileOperation.Entity.FILE, currElementPath);
-                    }
-                } else if (kind == ENTRY_MODIFY) {
-                    if (Files.isDirectory(currElementPath)) {
-                        currElementParentDir.getSubdirectory(currElementName).updateLastModified();
-                        addOperation(OperationType.MODIFY, FileOperation.Entity.DIRECTORY, currElementPath);
-                    } else {
-                        currElementParentDir.getFile(currElementName).updateInfoAfterModifying();
-
-                        addOperation(OperationType.MODIFY, FileOperation.Entity.FILE, currElementPath);
-                    }
-                    continue;
-                } else {
-                    throw new UnsupportedOperationException("Unknown operation with entry");
+            for (FileEvent currEvent : events) {
+                try {
+                    handle(currEvent);
+                } catch (IOException e) {
+                    System.out.println("Problem with file: " + currEvent.getPath() + " (" + e.getMessage() + ")");
                 }
-                prevEvent = currEvent;
-                prevElement = currElement;
             }
-            resetTimer();
-            lock.unlock();
-            if (!key.reset()) break;
         }
         shutdown();
     }
 
-    private void addOperation(OperationType type, FileOperation.Entity entity, Path pathToEntity) {
-        addOperation(type, entity, pathToEntity, null);
+    /**
+     * @return состояние стадий отправки изменений: detect (операции, ожидающие в EventCoalescer),
+     * pending (сохраненная очередь операций) и стадии конвейера
+     */
+    public List<StageStatistics> getPipelineStatistics() {
+        List<StageStatistics> result = new ArrayList<>();
+        result.add(StageStatistics.ofQueue("detect", coalescer.getPendingCount()));
+        result.add(pending.getStatistics());
+        result.addAll(pipeline.getStatistics());
+        return result;
     }
 
-    private void addOperation(OperationType type, FileOperation.Entity entity, Path oldPath, Path newPath) {
-        switch (type) {
-            case CREATE -> operationsList.add(FileOperation.create(entity, oldPath));
-            case DELETE -> operationsList.add(FileOperation.delete(entity, oldPath));
-            case MODIFY -> operationsList.add(FileOperation.modify(entity, oldPath));
-            case RENAME -> {
-                operationsList.remove(operationsList.size() - 1);
-                operationsList.add(FileOperation.rename(entity, oldPath, newPath));
-            }
-            case MOVE_TO -> {
-                operationsList.remove(operationsList.size() - 1);
-                operationsList.add(FileOperation.moveTo(entity, oldPath, newPath));
-            }
+    /**
+     * Регистрирует длины очередей стадий отправки изменений как метрики pipeline.стадия.queued и .inFlight
+     * (метрики общего с Client планировщика передач при остановке наблюдения остаются).
+     */
+    private void registerMetrics() {
+        for (StageStatistics stage : getPipelineStatistics()) {
+            String name = stage.getName();
+            Metrics.gauge("pipeline." + name + ".queued", () -> stageStatistics(name).getQueued());
+            Metrics.gauge("pipeline." + name + ".inFlight", () -> stageStatistics(name).getInFlight());
         }
     }
 
-    private void sendOperations() throws IOException {
-        if (lock.tryLock()) {
-            for (FileOperation op : operationsList) {
-                System.out.println("SENDING: " + op);
-                new MessageHandler().send(op, session);
-            }
-            operationsList = new ArrayList<>();
-            lock.unlock();
+    private StageStatistics stageStatistics(String name) {
+        for (StageStatistics stage : getPipelineStatistics()) {
+            if (stage.getName().equals(name)) return stage;
         }
+        throw new IllegalStateException("No stage " + name);
     }
 
-    private void resetTimer() {
-        timer.cancel();
-        (timer = new Timer()).schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    sendOperations();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }, 100);
-    }
+    private void handle(FileEvent currEvent) throws IOException {
+        FileEvent.Kind kind = currEvent.getKind();
+        Path currElementPath = currEvent.getPath();
+        if (kind == FileEvent.Kind.OVERFLOW) {
+            recover(currElementPath);
+            return;
+        }
 
-    private boolean isFileMoved(Path newFile, ClientFile prevClientFile) throws IOException {
-        return newFile.getFileName().toString().equals(prevClientFile.getName())
-                && isFilesEqual(newFile, prevClientFile);
+        if (kind == FileEvent.Kind.CREATE) {
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(currElementPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                return; // элемент уже удален - придет событие удаления
+            }
+            FileSystemElement existing = snapshot.get(currElementPath);
+            if (existing != null && RecentDeletes.isSameElement(existing, attrs)) return;
+            FileOperation.Entity entity = attrs.isDirectory() ? FileOperation.Entity.DIRECTORY : FileOperation.Entity.FILE;
+            RecentDeletes.Deleted deleted = recentDeletes.match(attrs);
+            if (deleted != null) {
+                Path prevPath = deleted.getPath();
+                snapshot.reattach(deleted.getElement(), currElementPath);
+                OperationType type = prevPath.getParent().equals(currElementPath.getParent()) ? OperationType.RENAME : OperationType.MOVE_TO;
+                addOperation(type, entity, prevPath, currElementPath);
+            } else if (attrs.isDirectory()) {
+                snapshot.addDirectory(currElementPath);
+                addOperation(OperationType.CREATE, entity, currElementPath);
+            } else {
+                snapshot.addFile(currElementPath, false);
+                addOperation(OperationType.CREATE, entity, currElementPath);
+            }
+        } else if (kind == FileEvent.Kind.DELETE) {
+            FileSystemElement removed = snapshot.remove(currElementPath);
+            if (removed == null) return;
+            recentDeletes.add(removed, currElementPath);
+            FileOperation.Entity entity = removed instanceof ClientDirectory ? FileOperation.Entity.DIRECTORY : FileOperation.Entity.FILE;
+            addOperation(OperationType.DELETE, entity, currElementPath);
+        } else if (kind == FileEvent.Kind.MODIFY) {
+            FileSystemElement element = snapshot.modify(currElementPath, false);
+            if (element instanceof ClientDirectory) {
+                addOperation(OperationType.MODIFY, FileOperation.Entity.DIRECTORY, currElementPath);
+            } else if (element instanceof ClientFile) {
+                addOperation(OperationType.MODIFY, FileOperation.Entity.FILE, currElementPath);
+            } else if (Files.isRegularFile(currElementPath)) {
+                // событие создания было пропущено
+                snapshot.addFile(currElementPath, false);
+                addOperation(OperationType.CREATE, FileOperation.Entity.FILE, currElementPath);
+            }
+        }
     }
 
-    private boolean isFileRename(Path newFile, ClientFile prevClientFile) throws IOException {
-        return newFile.getParent().equals(prevClientFile.getParentPath())
-                && isFilesEqual(newFile, prevClientFile);
+    /**
+     * Восстановление после потери событий: поддерево пересканируется (ParallelTreeScanner) и сравнивается
+     * с текущим состоянием "снимка"; для каждого различия формируется одна операция.
+     *
+     * @param subtree корень поддерева, события в котором были потеряны
+     */
+    private void recover(Path subtree) throws IOException {
+        long start = System.currentTimeMillis();
+        SnapshotNode known = snapshot.find(subtree);
+        SnapshotDirectory actual;
+        try {
+            actual = ParallelTreeScanner.scan(subtree);
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            actual = null;
+        }
+        if (actual == null && subtree.equals(rootDirectory)) return;
+        int operations = reconcile(subtree, known, actual);
+        System.out.printf("Events lost in %s, rescanned: %d operations (%.3f sec).%n", subtree, operations, (System.currentTimeMillis() - start) / 1000.0);
     }
 
-    private boolean isFilesEqual(Path newFile, ClientFile prevClientFile) throws IOException {
-        BasicFileAttributes bfa = Files.getFileAttributeView(newFile, BasicFileAttributeView.class).readAttributes();
-        return new Date(bfa.creationTime().toMillis()).equals(prevClientFile.getCreationTime())
-                && new Date(bfa.lastModifiedTime().toMillis()).equals(prevClientFile.getLastModifiedTime())
-                && bfa.size() == prevClientFile.getSize()
-                && CRC32Hash.calculateCrc32Hash(newFile) == prevClientFile.getCrc32Hash();
+    private int reconcile(Path path, SnapshotNode known, SnapshotNode actual) throws IOException {
+        if (actual == null) return known == null ? 0 : reconcileDeleted(path, known);
+        if (known == null) return reconcileCreated(path, actual);
+        if (known.isDirectory() != actual.isDirectory()) return reconcileDeleted(path, known) + reconcileCreated(path, actual);
+        if (actual instanceof SnapshotDirectory actualDir) {
+            SnapshotDirectory knownDir = (SnapshotDirectory) known;
+            int operations = 0;
+            int i = 0;
+            int j = 0;
+            while (i < knownDir.getChildCount() || j < actualDir.getChildCount()) {
+                SnapshotNode k = i < knownDir.getChildCount() ? knownDir.getChild(i) : null;
+                SnapshotNode a = j < actualDir.getChildCount() ? actualDir.getChild(j) : null;
+                int cmp = k == null ? 1 : a == null ? -1 : k.getName().compareTo(a.getName());
+                if (cmp < 0) {
+                    operations += reconcile(path.resolve(k.getName()), k, null);
+                    i++;
+                } else if (cmp > 0) {
+                    operations += reconcile(path.resolve(a.getName()), null, a);
+                    j++;
+                } else {
+                    operations += reconcile(path.resolve(k.getName()), k, a);
+                    i++;
+                    j++;
+                }
+            }
+            return operations;
+        }
+        SnapshotFile knownFile = (SnapshotFile) known;
+        SnapshotFile actualFile = (SnapshotFile) actual;
+        if (knownFile.getSize() == actualFile.getSize() && knownFile.getLastModified() == actualFile.getLastModified()) return 0;
+        snapshot.modify(path, false);
+        addOperation(OperationType.MODIFY, FileOperation.Entity.FILE, path);
+        return 1;
     }
 
-    private boolean isDirectoryMoved(Path newDirectory, ClientDirectory prevClientDirectory) throws IOException {
-        return newDirectory.getFileName().toString().equals(prevClientDirectory.getName())
-                && isDirectoriesEqual(newDirectory, prevClientDirectory);
+    private int reconcileCreated(Path path, SnapshotNode actual) throws IOException {
+        if (actual instanceof SnapshotDirectory dir) {
+            snapshot.addDirectory(path);
+            addOperation(OperationType.CREATE, FileOperation.Entity.DIRECTORY, path);
+            int operations = 1;
+            for (int i = 0; i < dir.getChildCount(); i++) {
+                operations += reconcileCreated(path.resolve(dir.getChild(i).getName()), dir.getChild(i));
+            }
+            return operations;
+        }
+        snapshot.addFile(path, false);
+        addOperation(OperationType.CREATE, FileOperation.Entity.FILE, path);
+        return 1;
     }
 
-    private boolean isDirectoryRename(Path newDirectory, ClientDirectory prevClientDirectory) throws IOException {
-        return newDirectory.getParent().equals(prevClientDirectory.getParentPath())
-                && isDirectoriesEqual(newDirectory, prevClientDirectory);
+    private int reconcileDeleted(Path path, SnapshotNode known) {
+        snapshot.remove(path);
+        addOperation(OperationType.DELETE, known.isDirectory() ? FileOperation.Entity.DIRECTORY : FileOperation.Entity.FILE, path);
+        return 1;
     }
 
-    private boolean isDirectoriesEqual(Path newDirectory, ClientDirectory prevClientDirectory) throws IOException {
-        BasicFileAttributes bfa = Files.getFileAttributeView(newDirectory, BasicFileAttributeView.class).readAttributes();
-        return new Date(bfa.creationTime().toMillis()).equals(prevClientDirectory.getCreationTime())
-                && new Date(bfa.lastModifiedTime().toMillis()).equals(prevClientDirectory.getLastModifiedTime())
-                && !prevClientDirectory.isEmpty();
+    private void addOperation(OperationType type, FileOperation.Entity entity, Path pathToEntity) {
+        addOperation(type, entity, pathToEntity, null);
     }
 
-    @SuppressWarnings("unchecked")
-    private Path getChangedPath(WatchKey key, WatchEvent<?> event) {
-        WatchEvent<Path> ev = (WatchEvent<Path>) event;
-        Path filename = ev.context();
-        return ((Path) key.watchable()).resolve(filename);
+    private void addOperation(OperationType type, FileOperation.Entity entity, Path oldPath, Path newPath) {
+        switch (type) {
+            case CREATE -> coalescer.created(entity, oldPath);
+            case DELETE -> coalescer.deleted(entity, oldPath);
+            case MODIFY -> coalescer.modified(entity, oldPath);
+            case RENAME, MOVE_TO -> coalescer.moved(type, entity, oldPath, newPath);
+        }
     }
 }
@@ -0,0 +1,252 @@
+package watcher;
+
+import operations.FileOperation;
+import operations.OperationType;
+import utils.ThreadPool;
+import utils.WorkloadType;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Объединяет изменения одного пути, пришедшие в течение "периода тишины" (cloudstorage.watch.quietMillis),
+ * в одну итоговую операцию: CREATE + MODIFY* = CREATE, MODIFY* = MODIFY, MODIFY + DELETE = DELETE,
+ * CREATE + DELETE = ничего, DELETE + CREATE (файл) = MODIFY.
+ * Операция отправляется, когда по ее пути не было изменений в течение периода тишины; операции родительских
+ * директорий всегда отправляются раньше операций их содержимого. Все таймеры выполняются в общем планировщике ThreadPool.
+ * Создание и изменение файла, запись в который еще продолжается, откладываются до ее окончания (см. WriteStabilityTracker),
+ * поэтому растущий файл хешируется и отправляется один раз.
+ */
+public class EventCoalescer {
+
+    private final long quietMillis = Long.getLong("cloudstorage.watch.quietMillis", 300);
+    private final Consumer<FileOperation> sink;
+    private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<>();
+    private final ArrayDeque<FileOperation> outbox = new ArrayDeque<>();
+    private final Object sendLock = new Object();
+    private final WriteStabilityTracker stability = new WriteStabilityTracker();
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * @param sink получатель итоговых операций (вызывается последовательно, в порядке операций)
+     */
+    public EventCoalescer(Consumer<FileOperation> sink) {
+        this.sink = sink;
+    }
+
+    public void created(FileOperation.Entity entity, Path path) {
+        offer(entity, path, OperationType.CREATE);
+    }
+
+    public void modified(FileOperation.Entity entity, Path path) {
+        offer(entity, path, OperationType.MODIFY);
+    }
+
+    public void deleted(FileOperation.Entity entity, Path path) {
+        offer(entity, path, OperationType.DELETE);
+    }
+
+    /**
+     * Переименование или перемещение, распознанное после события удаления по прежнему пути.
+     *
+     * @param type    RENAME или MOVE_TO
+     * @param entity  тип элемента
+     * @param oldPath прежний путь
+     * @param newPath новый путь
+     */
+    public void moved(OperationType type, FileOperation.Entity entity, Path oldPath, Path newPath) {
+        synchronized (this) {
+            Pending p = pending.remove(oldPath);
+            OperationType before = p == null ? null : (p.type == OperationType.DELETE ? p.beforeDelete : p.type);
+            if (p == null || before == OperationType.CREATE) {
+                // на сервере этого элемента нет (или удаление уже отправлено) - достаточно создать его по новому пути
+                fold(entity, newPath, OperationType.CREATE);
+            } else {
+                List<Path> order = new ArrayList<>(pending.keySet());
+                for (Path path : order) {
+                    if (!path.startsWith(oldPath)) emit(path);
+                }
+                outbox.add(type == OperationType.RENAME
+                        ? FileOperation.rename(entity, oldPath, newPath)
+                        : FileOperation.moveTo(entity, oldPath, newPath));
+                if (before == OperationType.MODIFY) fold(entity, newPath, OperationType.MODIFY);
+            }
+            rekeyDescendants(oldPath, newPath);
+            stability.move(oldPath, newPath);
+            scheduleFlush(quietMillis);
+        }
+        drain();
+    }
+
+    /**
+     * Немедленно отправляет все накопленные операции.
+     */
+    public void flush() {
+        synchronized (this) {
+            for (Path path : new ArrayList<>(pending.keySet())) emit(path);
+        }
+        drain();
+    }
+
+    public synchronized void close() {
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+        pending.clear();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return количество файлов, окончания записи в которые ожидают операции
+     */
+    public int getWaitingForStabilityCount() {
+        return stability.getTrackedCount();
+    }
+
+    private void offer(FileOperation.Entity entity, Path path, OperationType type) {
+        synchronized (this) {
+            fold(entity, path, type);
+            scheduleFlush(quietMillis);
+        }
+        drain();
+    }
+
+    private void fold(FileOperation.Entity entity, Path path, OperationType type) {
+        long now = System.currentTimeMillis();
+        Pending p = pending.get(path);
+        if (p == null) {
+            pending.put(path, new Pending(entity, type, now));
+            return;
+        }
+        p.lastEvent = now;
+        switch (type) {
+            case CREATE -> {
+                if (p.type != OperationType.DELETE) return;
+                if (p.beforeDelete == OperationType.CREATE) {
+                    p.type = OperationType.CREATE;
+                } else if (entity == FileOperation.Entity.FILE && p.entity == FileOperation.Entity.FILE) {
+                    p.type = OperationType.MODIFY;
+                } else {
+                    // директория пересоздана - прежнее содержимое на сервере нужно удалить
+                    emit(path);
+                    pending.put(path, new Pending(entity, OperationType.CREATE, now));
+                }
+                p.beforeDelete = null;
+            }
+            case MODIFY -> {
+                if (p.type == OperationType.DELETE) p.type = OperationType.MODIFY;
+            }
+            case DELETE -> {
+                if (p.type != OperationType.DELETE) {
+                    p.beforeDelete = p.type;
+                    p.type = OperationType.DELETE;
+                    p.entity = entity;
+                }
+            }
+        }
+    }
+
+    /**
+     * Переносит в outbox итоговую операцию пути, предварительно - операции его родительских директорий.
+     */
+    private void emit(Path path) {
+        Pending p = pending.remove(path);
+        if (p == null) return;
+        if (p.entity == FileOperation.Entity.FILE || p.type == OperationType.DELETE) stability.forget(path);
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (pending.containsKey(parent)) emit(parent);
+        }
+        switch (p.type) {
+            case CREATE -> outbox.add(FileOperation.create(p.entity, path));
+            case MODIFY -> outbox.add(FileOperation.modify(p.entity, path));
+            case DELETE -> {
+                if (p.beforeDelete == OperationType.CREATE) return;
+                outbox.add(FileOperation.delete(p.entity, path));
+                if (p.entity == FileOperation.Entity.DIRECTORY) pending.keySet().removeIf(k -> k.startsWith(path));
+            }
+        }
+    }
+
+    private void rekeyDescendants(Path oldPath, Path newPath) {
+        List<Map.Entry<Path, Pending>> moved = new ArrayList<>();
+        Iterator<Map.Entry<Path, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Pending> e = it.next();
+            if (e.getKey().startsWith(oldPath)) {
+                moved.add(e);
+                it.remove();
+            }
+        }
+        for (Map.Entry<Path, Pending> e : moved) {
+            pending.put(newPath.resolve(oldPath.relativize(e.getKey())), e.getValue());
+        }
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (scheduledFlush != null || pending.isEmpty()) return;
+        scheduledFlush = ThreadPool.schedule(() -> ThreadPool.addTask(WorkloadType.NETWORK, this::flushExpired),
+                delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flushExpired() {
+        synchronized (this) {
+            scheduledFlush = null;
+            long now = System.currentTimeMillis();
+            long nextDeadline = Long.MAX_VALUE;
+            for (Path path : new ArrayList<>(pending.keySet())) {
+                Pending p = pending.get(path);
+                if (p == null) continue;
+                if (now - p.lastEvent < quietMillis) {
+                    nextDeadline = Math.min(nextDeadline, p.lastEvent + quietMillis);
+                    continue;
+                }
+                long recheck = isUpload(p) ? stability.check(path) : 0;
+                if (recheck == 0) emit(path);
+                else nextDeadline = Math.min(nextDeadline, now + recheck);
+            }
+            if (nextDeadline != Long.MAX_VALUE) scheduleFlush(Math.max(1, nextDeadline - now));
+        }
+        drain();
+    }
+
+    private static boolean isUpload(Pending p) {
+        return p.entity == FileOperation.Entity.FILE && (p.type == OperationType.CREATE || p.type == OperationType.MODIFY);
+    }
+
+    /**
+     * Передает операции получателю строго в порядке их появления в outbox.
+     */
+    private void drain() {
+        synchronized (sendLock) {
+            FileOperation op;
+            while ((op = pollOutbox()) != null) {
+                try {
+                    sink.accept(op);
+                } catch (RuntimeException e) {
+                    System.out.println("Problem occurred while sending " + op + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized FileOperation pollOutbox() {
+        return outbox.poll();
+    }
+
+    private static class Pending {
+        private FileOperation.Entity entity;
+        private OperationType type;
+        private OperationType beforeDelete;
+        private long lastEvent;
+
+        private Pending(FileOperation.Entity entity, OperationType type, long lastEvent) {
+            this.entity = entity;
+            this.type = type;
+            this.lastEvent = lastEvent;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package watcher;
+
+import java.nio.file.Path;
+
+/**
+ * Изменение в наблюдаемом дереве файлов, полученное от WatchBackend.
+ */
+public final class FileEvent {
+
+    public enum Kind {
+        CREATE, DELETE, MODIFY,
+        /**
+         * Часть событий потеряна; path - корень поддерева, которое нужно пересканировать.
+         */
+        OVERFLOW
+    }
+
+    private final Kind kind;
+    private final Path path;
+
+    public FileEvent(Kind kind, Path path) {
+        this.kind = kind;
+        this.path = path;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + path;
+    }
+}
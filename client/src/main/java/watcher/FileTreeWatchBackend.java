@@ -0,0 +1,55 @@
+package watcher;
+
+import com.sun.nio.file.ExtendedWatchEventModifier;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Наблюдение за всем деревом одной регистрацией (ExtendedWatchEventModifier.FILE_TREE, поддерживается только на Windows).
+ */
+public class FileTreeWatchBackend implements WatchBackend {
+
+    private WatchService watcher;
+    private Path root;
+
+    @Override
+    public void start(Path root) throws IOException {
+        this.root = root;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        root.register(watcher,
+                new WatchEvent.Kind[]{ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY, OVERFLOW},
+                ExtendedWatchEventModifier.FILE_TREE);
+    }
+
+    @Override
+    public List<FileEvent> take() throws InterruptedException {
+        while (true) {
+            WatchKey key = watcher.take();
+            List<FileEvent> events = new ArrayList<>();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    events.add(new FileEvent(FileEvent.Kind.OVERFLOW, root));
+                } else {
+                    events.add(new FileEvent(RecursiveWatchBackend.toKind(event.kind()), root.resolve((Path) event.context())));
+                }
+            }
+            key.reset();
+            if (!events.isEmpty()) return events;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) watcher.close();
+    }
+
+    @Override
+    public String getName() {
+        return "tree";
+    }
+}
@@ -0,0 +1,154 @@
+package watcher;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Наблюдение за деревом периодическим обходом (cloudstorage.watch.pollMillis).
+ * Содержимое директории перечитывается, только если изменилось время модификации самой директории;
+ * для остальных директорий проверяются только атрибуты уже известных файлов.
+ */
+public class PollingWatchBackend implements WatchBackend {
+
+    private final long pollMillis = Long.getLong("cloudstorage.watch.pollMillis", 2000);
+    private final Map<Path, DirectoryState> directories = new HashMap<>();
+    private Path root;
+    private volatile boolean closed;
+
+    @Override
+    public void start(Path root) throws IOException {
+        this.root = root;
+        poll(root, new ArrayList<>());
+    }
+
+    @Override
+    public List<FileEvent> take() throws InterruptedException {
+        while (true) {
+            if (closed) throw new ClosedWatchServiceException();
+            Thread.sleep(pollMillis);
+            List<FileEvent> events = new ArrayList<>();
+            poll(root, events);
+            if (!events.isEmpty()) return events;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public String getName() {
+        return "polling";
+    }
+
+    private void poll(Path dir, List<FileEvent> events) {
+        long mtime;
+        try {
+            mtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).toMillis();
+        } catch (IOException e) {
+            forget(dir);
+            return;
+        }
+        DirectoryState state = directories.get(dir);
+        if (state == null || state.lastModified != mtime) {
+            Map<String, Entry> entries = list(dir);
+            if (state != null) diff(dir, state.entries, entries, events);
+            state = new DirectoryState(mtime, entries);
+            directories.put(dir, state);
+        } else {
+            checkFiles(dir, state, events);
+        }
+        for (Map.Entry<String, Entry> e : state.entries.entrySet()) {
+            if (e.getValue().directory) poll(dir.resolve(e.getKey()), events);
+        }
+    }
+
+    private void diff(Path dir, Map<String, Entry> before, Map<String, Entry> after, List<FileEvent> events) {
+        for (Map.Entry<String, Entry> e : before.entrySet()) {
+            if (!after.containsKey(e.getKey())) {
+                Path path = dir.resolve(e.getKey());
+                events.add(new FileEvent(FileEvent.Kind.DELETE, path));
+                if (e.getValue().directory) forget(path);
+            }
+        }
+        for (Map.Entry<String, Entry> e : after.entrySet()) {
+            Entry old = before.get(e.getKey());
+            Path path = dir.resolve(e.getKey());
+            if (old == null) {
+                events.add(new FileEvent(FileEvent.Kind.CREATE, path));
+                // содержимое новой директории будет передано событиями CREATE при ее обходе ниже
+                if (e.getValue().directory) directories.put(path, new DirectoryState(-1, Map.of()));
+            } else if (!e.getValue().directory && (old.size != e.getValue().size || old.lastModified != e.getValue().lastModified)) {
+                events.add(new FileEvent(FileEvent.Kind.MODIFY, path));
+            }
+        }
+    }
+
+    private void checkFiles(Path dir, DirectoryState state, List<FileEvent> events) {
+        for (Map.Entry<String, Entry> e : state.entries.entrySet()) {
+            Entry old = e.getValue();
+            if (old.directory) continue;
+            Path path = dir.resolve(e.getKey());
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.size() != old.size || attrs.lastModifiedTime().toMillis() != old.lastModified) {
+                    e.setValue(new Entry(false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    events.add(new FileEvent(FileEvent.Kind.MODIFY, path));
+                }
+            } catch (IOException ex) {
+                // файл удален - это будет обнаружено по времени модификации директории
+            }
+        }
+    }
+
+    private Map<String, Entry> list(Path dir) {
+        Map<String, Entry> result = new HashMap<>();
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.forEach(p -> {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    result.put(p.getFileName().toString(), new Entry(attrs.isDirectory(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+                } catch (IOException e) {
+                    // файл удален во время обхода
+                }
+            });
+        } catch (IOException e) {
+            System.out.println("Problem with directory: " + dir);
+        }
+        return result;
+    }
+
+    private void forget(Path dir) {
+        DirectoryState state = directories.remove(dir);
+        if (state == null) return;
+        for (Map.Entry<String, Entry> e : state.entries.entrySet()) {
+            if (e.getValue().directory) forget(dir.resolve(e.getKey()));
+        }
+    }
+
+    private static class DirectoryState {
+        private final long lastModified;
+        private final Map<String, Entry> entries;
+
+        private DirectoryState(long lastModified, Map<String, Entry> entries) {
+            this.lastModified = lastModified;
+            this.entries = entries;
+        }
+    }
+
+    private static class Entry {
+        private final boolean directory;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(boolean directory, long size, long lastModified) {
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package watcher;
+
+import files.ClientDirectory;
+import files.ClientFile;
+import files.FileSystemElement;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Недавно удаленные элементы "снимка" - для распознавания переименования и перемещения:
+ * событие создания, чей идентификатор файла (BasicFileAttributes.fileKey()) совпадает с недавно удаленным элементом,
+ * означает, что элемент был перемещен. Идентификаторы (номера inode) быстро используются повторно, поэтому
+ * дополнительно должны совпасть тип и размер и время изменения файла (у директории - время создания);
+ * иначе создание считается новым элементом и отправляется как DELETE + CREATE. Содержимое файлов не читается.
+ * Если файловая система не предоставляет идентификатор (или его нет у удаленного элемента - например,
+ * у элемента компактного "снимка"), элементы сравниваются по атрибутам (тип, размер, время создания и изменения).
+ * Элементы хранятся cloudstorage.watch.moveWindowMillis миллисекунд.
+ */
+public class RecentDeletes {
+
+    private final long ttlMillis = Long.getLong("cloudstorage.watch.moveWindowMillis", 2000);
+    private final Map<Object, Deleted> byKey = new HashMap<>();
+    private final ArrayDeque<Deleted> withoutKey = new ArrayDeque<>();
+    private final ArrayDeque<Deleted> order = new ArrayDeque<>();
+
+    public static class Deleted {
+        private final FileSystemElement element;
+        private final Path path;
+        private final long deletedAt;
+
+        private Deleted(FileSystemElement element, Path path, long deletedAt) {
+            this.element = element;
+            this.path = path;
+            this.deletedAt = deletedAt;
+        }
+
+        public FileSystemElement getElement() {
+            return element;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+    }
+
+    /**
+     * Запоминает удаленный элемент.
+     *
+     * @param element элемент, удаленный из "снимка"
+     * @param path    путь, по которому он находился
+     */
+    public synchronized void add(FileSystemElement element, Path path) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Deleted d = new Deleted(element, path, now);
+        Object key = fileKey(element);
+        if (key != null) byKey.put(key, d);
+        else withoutKey.add(d);
+        order.add(d);
+    }
+
+    /**
+     * Ищет недавно удаленный элемент, которому соответствует созданный элемент, и убирает его из таблицы.
+     *
+     * @param attrs атрибуты созданного элемента
+     * @return удаленный элемент или null
+     */
+    public synchronized Deleted match(BasicFileAttributes attrs) {
+        expire(System.currentTimeMillis());
+        Object key = attrs.fileKey();
+        if (key != null) {
+            Deleted d = byKey.get(key);
+            if (d != null && sameMovedAttributes(d.element, attrs)) {
+                byKey.remove(key);
+                order.remove(d);
+                return d;
+            }
+            if (d != null) return null;
+        }
+        Iterator<Deleted> it = withoutKey.iterator();
+        while (it.hasNext()) {
+            Deleted d = it.next();
+            if (sameAttributes(d.element, attrs)) {
+                it.remove();
+                order.remove(d);
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true, если созданный элемент - это уже известный "снимку" элемент
+     * (например, содержимое перемещенной директории, о котором сообщено повторно)
+     */
+    public static boolean isSameElement(FileSystemElement element, BasicFileAttributes attrs) {
+        Object key = fileKey(element);
+        return key != null ? key.equals(attrs.fileKey()) && sameMovedAttributes(element, attrs) : sameAttributes(element, attrs);
+    }
+
+    public synchronized int size() {
+        return order.size();
+    }
+
+    private void expire(long now) {
+        while (!order.isEmpty() && now - order.peek().deletedAt > ttlMillis) {
+            Deleted d = order.poll();
+            Object key = fileKey(d.element);
+            if (key != null) byKey.remove(key, d);
+            else withoutKey.remove(d);
+        }
+    }
+
+    private static Object fileKey(FileSystemElement element) {
+        if (element instanceof ClientFile f) return f.getFileKey();
+        if (element instanceof ClientDirectory d) return d.getFileKey();
+        return null;
+    }
+
+    /**
+     * Перемещение не меняет размер и время изменения файла; время изменения директории может измениться
+     * (при перемещении в другую директорию), поэтому у нее сравнивается время создания.
+     */
+    private static boolean sameMovedAttributes(FileSystemElement element, BasicFileAttributes attrs) {
+        if (element instanceof ClientFile f) {
+            return !attrs.isDirectory()
+                    && f.getSize() == attrs.size()
+                    && f.getLastModifiedTime().getTime() == attrs.lastModifiedTime().toMillis();
+        }
+        if (element instanceof ClientDirectory d) {
+            return attrs.isDirectory()
+                    && d.getCreationTime().getTime() == attrs.creationTime().toMillis();
+        }
+        return false;
+    }
+
+    private static boolean sameAttributes(FileSystemElement element, BasicFileAttributes attrs) {
+        if (element instanceof ClientFile f) {
+            return !attrs.isDirectory()
+                    && f.getSize() == attrs.size()
+                    && f.getCreationTime().getTime() == attrs.creationTime().toMillis()
+                    && f.getLastModifiedTime().getTime() == attrs.lastModifiedTime().toMillis();
+        }
+        if (element instanceof ClientDirectory d) {
+            return attrs.isDirectory()
+                    && d.getCreationTime().getTime() == attrs.creationTime().toMillis()
+                    && d.getLastModifiedTime().getTime() == attrs.lastModifiedTime().toMillis();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,212 @@
+package watcher;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Наблюдение за деревом регистрацией каждой директории (Linux/inotify, macOS и др.).
+ * Новые поддиректории регистрируются по мере появления; файлы, созданные в них до регистрации,
+ * передаются как события CREATE. Потеря событий (OVERFLOW) в нескольких директориях сообщается одним событием
+ * для их общего предка, а поддиректории, появившиеся за это время, регистрируются.
+ * Если исчерпан системный лимит регистраций (fs.inotify.max_user_watches) или превышен
+ * cloudstorage.watch.maxDirectories, наблюдение переключается на PollingWatchBackend.
+ */
+public class RecursiveWatchBackend implements WatchBackend {
+
+    private final int maxDirectories = Integer.getInteger("cloudstorage.watch.maxDirectories", Integer.MAX_VALUE);
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final Map<Path, WatchKey> registered = new ConcurrentHashMap<>();
+    private WatchService watcher;
+    private Path root;
+    private volatile PollingWatchBackend fallback;
+
+    @Override
+    public void start(Path root) throws IOException {
+        this.root = root;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        try {
+            registerTree(root, null);
+        } catch (WatchLimitException e) {
+            switchToPolling(e);
+        }
+    }
+
+    @Override
+    public List<FileEvent> take() throws InterruptedException {
+        while (true) {
+            if (fallback != null) return fallback.take();
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (ClosedWatchServiceException e) {
+                if (fallback != null) continue;
+                throw e;
+            }
+            List<FileEvent> events = new ArrayList<>();
+            Path lost = null;
+            // при переполнении очереди OVERFLOW получают все регистрации сразу: готовые ключи выбираются
+            // без ожидания, а потери объединяются в одно пересканирование их общего предка
+            while (key != null) {
+                Path dir = keys.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        lost = commonAncestor(lost, dir == null ? root : dir);
+                        continue;
+                    }
+                    if (dir == null) continue;
+                    Path path = dir.resolve((Path) event.context());
+                    events.add(new FileEvent(toKind(event.kind()), path));
+                    if (event.kind() == ENTRY_DELETE && registered.containsKey(path)) unregisterTree(path);
+                    if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            registerTree(path, events);
+                        } catch (WatchLimitException e) {
+                            return overflowAfterPolling(e);
+                        } catch (IOException e) {
+                            System.out.println("Problem with directory: " + path);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    keys.remove(key);
+                    if (dir != null) registered.remove(dir, key);
+                }
+                key = watcher.poll();
+            }
+            if (lost != null) {
+                Path subtree = lost;
+                events.removeIf(e -> e.getPath().startsWith(subtree));
+                try {
+                    // директории, созданные во время переполнения, иначе остались бы без регистрации
+                    registerTree(subtree, null);
+                } catch (WatchLimitException e) {
+                    return overflowAfterPolling(e);
+                } catch (IOException e) {
+                    System.out.println("Problem with directory: " + subtree);
+                }
+                events.add(new FileEvent(FileEvent.Kind.OVERFLOW, subtree));
+            }
+            if (!events.isEmpty()) return events;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (watcher != null) watcher.close();
+        if (fallback != null) fallback.close();
+    }
+
+    @Override
+    public String getName() {
+        return fallback == null ? "recursive" : "recursive -> " + fallback.getName();
+    }
+
+    public int getRegisteredDirectories() {
+        return keys.size();
+    }
+
+    private List<FileEvent> overflowAfterPolling(WatchLimitException cause) {
+        try {
+            switchToPolling(cause);
+        } catch (IOException e) {
+            System.out.println("Problem occurred while switching to polling: " + e.getMessage());
+        }
+        // события из остальных регистраций потеряны вместе с закрытым WatchService
+        List<FileEvent> events = new ArrayList<>();
+        events.add(new FileEvent(FileEvent.Kind.OVERFLOW, root));
+        return events;
+    }
+
+    private Path commonAncestor(Path current, Path dir) {
+        if (current == null) return dir;
+        Path result = current;
+        while (result != null && !dir.startsWith(result)) {
+            result = result.getParent();
+        }
+        return result == null ? root : result;
+    }
+
+    /**
+     * Регистрирует директорию и все ее поддиректории (уже зарегистрированные пропускаются).
+     *
+     * @param start  корень регистрируемого поддерева
+     * @param events если не null - сюда добавляются события CREATE для уже существующего содержимого поддерева
+     */
+    private void registerTree(Path start, List<FileEvent> events) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                WatchKey known = registered.get(dir);
+                if (known == null || !known.isValid()) {
+                    if (keys.size() >= maxDirectories) throw new WatchLimitException("cloudstorage.watch.maxDirectories reached");
+                    try {
+                        WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                        keys.put(key, dir);
+                        registered.put(dir, key);
+                    } catch (IOException e) {
+                        if (e.getMessage() != null && e.getMessage().contains("inotify")) throw new WatchLimitException(e.getMessage());
+                        throw e;
+                    }
+                }
+                if (events != null && !dir.equals(start)) events.add(new FileEvent(FileEvent.Kind.CREATE, dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (events != null) events.add(new FileEvent(FileEvent.Kind.CREATE, file));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                System.out.println("Problem with file: " + file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Отменяет регистрации удаленной (или перемещенной) директории и ее поддиректорий:
+     * регистрация следует за директорией при перемещении и сообщала бы события по прежнему пути.
+     */
+    private void unregisterTree(Path dir) {
+        registered.entrySet().removeIf(e -> {
+            if (!e.getKey().startsWith(dir)) return false;
+            e.getValue().cancel();
+            keys.remove(e.getValue());
+            return true;
+        });
+    }
+
+    private void switchToPolling(WatchLimitException cause) throws IOException {
+        System.out.println("Watch limit reached (" + cause.getMessage() + ") after " + keys.size() + " directories, switching to polling.");
+        PollingWatchBackend polling = new PollingWatchBackend();
+        polling.start(root);
+        fallback = polling;
+        keys.clear();
+        registered.clear();
+        watcher.close();
+    }
+
+    static FileEvent.Kind toKind(WatchEvent.Kind<?> kind) {
+        if (kind == ENTRY_CREATE) return FileEvent.Kind.CREATE;
+        if (kind == ENTRY_DELETE) return FileEvent.Kind.DELETE;
+        return FileEvent.Kind.MODIFY;
+    }
+
+    private static class WatchLimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private WatchLimitException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package watcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Источник событий об изменениях в дереве файлов для DirectoryWatcher.
+ * Реализация выбирается системным свойством cloudstorage.watch.backend:
+ * tree (Windows, одна регистрация на все дерево), recursive (регистрация каждой директории),
+ * polling (периодический обход) или auto (по умолчанию: tree на Windows, recursive в остальных случаях).
+ */
+public interface WatchBackend {
+
+    /**
+     * Начинает наблюдение за деревом файлов.
+     *
+     * @param root корневая директория
+     * @throws IOException если наблюдение начать не удалось
+     */
+    void start(Path root) throws IOException;
+
+    /**
+     * Ожидает очередную порцию событий.
+     *
+     * @return непустой список событий
+     * @throws InterruptedException если ожидание прервано
+     * @throws java.nio.file.ClosedWatchServiceException если наблюдение остановлено
+     */
+    List<FileEvent> take() throws InterruptedException;
+
+    void close() throws IOException;
+
+    String getName();
+
+    static WatchBackend create() {
+        String mode = System.getProperty("cloudstorage.watch.backend", "auto").toLowerCase();
+        return switch (mode) {
+            case "tree" -> new FileTreeWatchBackend();
+            case "recursive" -> new RecursiveWatchBackend();
+            case "polling" -> new PollingWatchBackend();
+            default -> System.getProperty("os.name").toLowerCase().startsWith("windows")
+                    ? new FileTreeWatchBackend()
+                    : new RecursiveWatchBackend();
+        };
+    }
+}
@@ -0,0 +1,125 @@
+package watcher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Отслеживает файлы, запись в которые еще продолжается (загрузки, рендеринг видео и т.п.).
+ * Файл считается записанным, когда его размер и время изменения не менялись в течение cloudstorage.watch.stableMillis
+ * и его удается открыть на запись с блокировкой. В Windows, где другие процессы удерживают файл без совместного доступа,
+ * файл, не изменившийся с прошлой проверки и доступный для блокировки, считается записанным, не дожидаясь конца интервала.
+ * Если файл меняется дольше cloudstorage.watch.maxStabilityWaitMillis, он отправляется в текущем состоянии.
+ */
+public class WriteStabilityTracker {
+
+    private static final boolean IS_WINDOWS = System.getProperty("os.name").toLowerCase().startsWith("windows");
+
+    private final long stableMillis = Long.getLong("cloudstorage.watch.stableMillis", 1000);
+    private final long maxWaitMillis = Long.getLong("cloudstorage.watch.maxStabilityWaitMillis", 10 * 60 * 1000);
+    private final Map<Path, State> states = new HashMap<>();
+
+    /**
+     * Проверяет, закончена ли запись в файл.
+     *
+     * @param path путь до файла
+     * @return 0, если файл можно хешировать и отправлять, иначе - через сколько миллисекунд проверить снова
+     */
+    public synchronized long check(Path path) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            states.remove(path);
+            return 0; // файла уже нет - придет событие удаления
+        }
+        if (!attrs.isRegularFile()) {
+            states.remove(path);
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        State state = states.get(path);
+        boolean unchanged = state != null && state.size == size && state.lastModified == lastModified;
+        if (state == null) {
+            state = new State(size, lastModified, Math.min(now, lastModified), now);
+            states.put(path, state);
+        } else if (!unchanged) {
+            state.size = size;
+            state.lastModified = lastModified;
+            state.lastChange = now;
+        }
+        if (maxWaitMillis > 0 && now - state.firstCheck >= maxWaitMillis) {
+            System.out.println("File is still being written, sending current state: " + path);
+            states.remove(path);
+            return 0;
+        }
+        long quietFor = now - state.lastChange;
+        boolean stable = quietFor >= stableMillis || (IS_WINDOWS && unchanged);
+        if (stable && isLockable(path)) {
+            states.remove(path);
+            return 0;
+        }
+        return stable ? stableMillis : stableMillis - quietFor;
+    }
+
+    public synchronized void forget(Path path) {
+        states.keySet().removeIf(p -> p.startsWith(path));
+    }
+
+    public synchronized void move(Path oldPath, Path newPath) {
+        List<Map.Entry<Path, State>> moved = new ArrayList<>();
+        Iterator<Map.Entry<Path, State>> it = states.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, State> e = it.next();
+            if (e.getKey().startsWith(oldPath)) {
+                moved.add(e);
+                it.remove();
+            }
+        }
+        for (Map.Entry<Path, State> e : moved) {
+            states.put(newPath.resolve(oldPath.relativize(e.getKey())), e.getValue());
+        }
+    }
+
+    public synchronized int getTrackedCount() {
+        return states.size();
+    }
+
+    /**
+     * @return false, если файл открыт другим процессом без совместного доступа или заблокирован им
+     */
+    private static boolean isLockable(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.tryLock();
+            if (lock == null) return false;
+            lock.release();
+            return true;
+        } catch (AccessDeniedException | NoSuchFileException e) {
+            return true; // файл только для чтения или уже удален - судить о записи можно лишь по времени изменения
+        } catch (OverlappingFileLockException e) {
+            return false;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static class State {
+        private long size;
+        private long lastModified;
+        private long lastChange;
+        private final long firstCheck;
+
+        private State(long size, long lastModified, long lastChange, long firstCheck) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lastChange = lastChange;
+            this.firstCheck = firstCheck;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package files;
+
+import java.util.Comparator;
+
+/**
+ * Порядок путей в перечне файлов (manifest), общий для клиента и сервера: пути сравниваются по компонентам,
+ * имена внутри директории - как строки. Это порядок обхода дерева в глубину с дочерними элементами,
+ * отсортированными по имени, поэтому содержимое директории идет подряд.
+ * Для сравнения по компонентам без разбиения пути разделитель ('\\' или '/') считается меньше любого символа,
+ * а разные разделители - равными.
+ */
+public final class ManifestOrder {
+
+    public static final Comparator<SimpleFile> BY_PATH = (a, b) -> compare(a.getAbsolutePath(), b.getAbsolutePath());
+
+    private ManifestOrder() {
+    }
+
+    public static int compare(CharSequence a, CharSequence b) {
+        int len = Math.min(a.length(), b.length());
+        for (int i = 0; i < len; i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x == y) continue;
+            if (isSeparator(x)) {
+                if (isSeparator(y)) continue;
+                return -1;
+            }
+            if (isSeparator(y)) return 1;
+            return x - y;
+        }
+        return a.length() - b.length();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '\\' || c == '/';
+    }
+}
@@ -20,11 +20,19 @@ public class SimpleFile implements FileSystemElement {
     }
 
     public SimpleFile(Path path) throws IOException {
+        this(path, true);
+    }
+
+    /**
+     * @param path        путь до файла
+     * @param computeHash рассчитывать ли хеш-сумму сразу; если false - её нужно установить позже через setCrc32Hash()
+     */
+    public SimpleFile(Path path, boolean computeHash) throws IOException {
         this.path = path.getParent().toString();
         this.name = path.getFileName().toString();
         BasicFileAttributes bfa = Files.getFileAttributeView(path, BasicFileAttributeView.class).readAttributes();
         this.size = bfa.size();
-        crc32Hash = CRC32Hash.calculateCrc32Hash(path);
+        if (computeHash) crc32Hash = CRC32Hash.calculateCrc32Hash(path);
     }
 
     public boolean compare(SimpleFile anotherFile) {
@@ -0,0 +1,27 @@
+package metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Монотонно растущий счетчик. Увеличение не блокирует потоки и почти не конкурирует между ними (LongAdder),
+ * поэтому счетчик можно увеличивать в горячих участках кода, например, в потоках канала.
+ */
+public class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
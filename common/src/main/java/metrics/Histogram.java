@@ -0,0 +1,99 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Гистограмма неотрицательных значений (обычно длительностей в наносекундах) с логарифмически-линейными корзинами:
+ * значения до 64 хранятся точно, а каждый следующий интервал [2^k, 2^(k+1)) делится на 32 равные корзины.
+ * Поэтому относительная погрешность процентилей не превышает 1/32 (~3%) во всем диапазоне long, а гистограмма
+ * занимает постоянный объем памяти (1888 счетчиков) независимо от числа значений.
+ * Запись значения не блокирует потоки: увеличиваются счетчик корзины, сумма и максимум.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+    }
+
+    /**
+     * @param value значение (отрицательные значения считаются нулем)
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Записывает время, прошедшее с момента start.
+     *
+     * @param start значение System.nanoTime() в начале измеряемого действия
+     */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return срез гистограммы: количество, сумма, максимум и процентили 50, 90, 99 и 99.9
+     */
+    public MetricValue snapshot(String name) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        long maxValue = max.get();
+        return MetricValue.histogram(name, count, sum.sum(), maxValue,
+                percentile(counts, count, 0.5, maxValue),
+                percentile(counts, count, 0.9, maxValue),
+                percentile(counts, count, 0.99, maxValue),
+                percentile(counts, count, 0.999, maxValue));
+    }
+
+    /**
+     * @return наибольшее значение корзины, в которую попадает процентиль (не больше максимума)
+     */
+    private static long percentile(long[] counts, long count, double quantile, long maxValue) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestValue(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    /**
+     * Номер корзины: для значений меньше 64 - само значение, иначе 32 * k + (value >>> k), где k - сдвиг,
+     * оставляющий в значении 6 старших бит (то есть value >>> k лежит в [32, 64)).
+     */
+    static int index(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS + 1);
+        return SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    static long highestValue(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
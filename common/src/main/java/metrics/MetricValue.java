@@ -0,0 +1,108 @@
+package metrics;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * Значение метрики на момент запроса. Передается клиенту в ответе на STATS_REQUEST.
+ * Для счетчика и показателя задано только value; для гистограммы - количество, сумма, максимум и процентили.
+ */
+public class MetricValue {
+
+    public enum Kind {
+        COUNTER, GAUGE, HISTOGRAM
+    }
+
+    private String name;
+    private Kind kind;
+    private long value;
+    private long count;
+    private long sum;
+    private long max;
+    private long p50;
+    private long p90;
+    private long p99;
+    private long p999;
+
+    public MetricValue() {
+    }
+
+    static MetricValue counter(String name, long value) {
+        MetricValue result = new MetricValue();
+        result.name = name;
+        result.kind = Kind.COUNTER;
+        result.value = value;
+        return result;
+    }
+
+    static MetricValue gauge(String name, long value) {
+        MetricValue result = counter(name, value);
+        result.kind = Kind.GAUGE;
+        return result;
+    }
+
+    static MetricValue histogram(String name, long count, long sum, long max, long p50, long p90, long p99, long p999) {
+        MetricValue result = new MetricValue();
+        result.name = name;
+        result.kind = Kind.HISTOGRAM;
+        result.count = count;
+        result.sum = sum;
+        result.max = max;
+        result.p50 = p50;
+        result.p90 = p90;
+        result.p99 = p99;
+        result.p999 = p999;
+        return result;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @JsonIgnore
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getP999() {
+        return p999;
+    }
+
+    @Override
+    public String toString() {
+        if (kind != Kind.HISTOGRAM) return name + " = " + value;
+        return String.format("%s: count %d, mean %.1f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+                name, count, getMean(), p50, p90, p99, p999, max);
+    }
+}
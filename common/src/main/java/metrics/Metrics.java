@@ -0,0 +1,95 @@
+package metrics;
+
+import utils.PoolStatistics;
+import utils.ThreadPool;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Реестр метрик приложения: счетчики, гистограммы и показатели (значения, вычисляемые в момент запроса,
+ * например длины очередей). Метрика создается при первом обращении по имени; имена состоят из частей,
+ * разделенных точкой, а для гистограмм длительностей заканчиваются единицей измерения (".nanos").
+ * Срез всех метрик вместе со статистикой пулов ThreadPool доступен через JMX (cloudstorage:type=Metrics)
+ * и по протоколу (STATS_REQUEST).
+ */
+public class Metrics {
+
+    public static final String OBJECT_NAME = "cloudstorage:type=Metrics";
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private static volatile boolean registered;
+
+    public static Counter counter(String name) {
+        return counters.computeIfAbsent(name, k -> new Counter());
+    }
+
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Регистрирует показатель; показатель с тем же именем заменяется.
+     *
+     * @param name  имя
+     * @param value вычисление значения (вызывается при каждом запросе метрик)
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Удаляет показатели, имена которых начинаются с prefix (например, при закрытии сессии).
+     */
+    public static void removeGauges(String prefix) {
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * @return значения всех метрик, упорядоченные по имени
+     */
+    public static List<MetricValue> snapshot() {
+        List<MetricValue> result = new ArrayList<>();
+        counters.forEach((name, counter) -> result.add(MetricValue.counter(name, counter.get())));
+        histograms.forEach((name, histogram) -> result.add(histogram.snapshot(name)));
+        gauges.forEach((name, gauge) -> {
+            try {
+                result.add(MetricValue.gauge(name, gauge.getAsLong()));
+            } catch (RuntimeException e) {
+                //do nothing
+            }
+        });
+        for (PoolStatistics pool : ThreadPool.getStatistics()) {
+            String prefix = "pool." + pool.getName() + ".";
+            result.add(MetricValue.gauge(prefix + "active", pool.getActive()));
+            result.add(MetricValue.gauge(prefix + "queued", pool.getQueued()));
+            result.add(MetricValue.counter(prefix + "completed", pool.getCompleted()));
+            result.add(MetricValue.counter(prefix + "failed", pool.getFailed()));
+            result.add(MetricValue.counter(prefix + "rejected", pool.getRejected()));
+        }
+        result.sort(Comparator.comparing(MetricValue::getName));
+        return result;
+    }
+
+    /**
+     * Регистрирует метрики в MBeanServer платформы (повторный вызов ничего не делает).
+     */
+    public static synchronized void registerMBean() {
+        if (registered) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName(OBJECT_NAME));
+            registered = true;
+        } catch (JMException e) {
+            System.out.println("Metrics are not available over JMX: " + e.getMessage());
+        }
+    }
+}
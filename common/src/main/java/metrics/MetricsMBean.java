@@ -0,0 +1,74 @@
+package metrics;
+
+import javax.management.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Представление реестра Metrics в JMX. Набор атрибутов меняется вместе с реестром: у счетчика и показателя
+ * один атрибут с его именем, у гистограммы - атрибуты "имя.count", "имя.mean", "имя.p50", "имя.p90",
+ * "имя.p99", "имя.p999" и "имя.max". Атрибуты доступны только для чтения.
+ */
+class MetricsMBean implements DynamicMBean {
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = attributes().get(attribute);
+        if (value == null) throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> all = attributes();
+        AttributeList result = new AttributeList();
+        for (String name : names) {
+            if (all.containsKey(name)) result.add(new Attribute(name, all.get(name)));
+        }
+        return result;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> all = attributes();
+        MBeanAttributeInfo[] info = new MBeanAttributeInfo[all.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> e : all.entrySet()) {
+            info[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+        }
+        return new MBeanInfo(Metrics.class.getName(), "Cloud storage metrics", info, null, null, null);
+    }
+
+    private static Map<String, Object> attributes() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (MetricValue m : Metrics.snapshot()) {
+            if (m.getKind() != MetricValue.Kind.HISTOGRAM) {
+                result.put(m.getName(), m.getValue());
+                continue;
+            }
+            result.put(m.getName() + ".count", m.getCount());
+            result.put(m.getName() + ".mean", m.getMean());
+            result.put(m.getName() + ".p50", m.getP50());
+            result.put(m.getName() + ".p90", m.getP90());
+            result.put(m.getName() + ".p99", m.getP99());
+            result.put(m.getName() + ".p999", m.getP999());
+            result.put(m.getName() + ".max", m.getMax());
+        }
+        return result;
+    }
+}
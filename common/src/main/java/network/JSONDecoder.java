@@ -7,6 +7,9 @@ import com.fasterxml.jackson.databind.type.CollectionType;
 import com.fasterxml.jackson.databind.type.TypeFactory;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -14,11 +17,17 @@ import java.util.List;
 
 public class JSONDecoder extends MessageToMessageDecoder<byte[]> {
     private static ObjectMapper objectMapper = new ObjectMapper();
+    private static final Histogram DECODE_TIME = Metrics.histogram("codec.decode.nanos");
+    private static final Counter DECODED_BYTES = Metrics.counter("codec.decode.bytes");
 
     @Override
     protected void decode(ChannelHandlerContext ctx, byte[] msg, List<Object> out) throws Exception {
         objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
-        out.add(objectMapper.readValue(msg, Message.class));
+        long start = System.nanoTime();
+        Message decoded = objectMapper.readValue(msg, Message.class);
+        DECODE_TIME.recordSince(start);
+        DECODED_BYTES.add(msg.length);
+        out.add(decoded);
     }
 
     private ArrayList<?> deserializeArrayList(byte[] msg, Class<?> objectClass) throws IOException {
@@ -5,15 +5,24 @@ import com.fasterxml.jackson.annotation.PropertyAccessor;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageEncoder;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
 
 import java.util.List;
 
 public class JSONEncoder extends MessageToMessageEncoder<Message> {
     private static ObjectMapper objectMapper = new ObjectMapper();
+    private static final Histogram ENCODE_TIME = Metrics.histogram("codec.encode.nanos");
+    private static final Counter ENCODED_BYTES = Metrics.counter("codec.encode.bytes");
 
     @Override
     protected void encode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
         objectMapper.setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.ANY);
-        out.add(objectMapper.writeValueAsBytes(msg));
+        long start = System.nanoTime();
+        byte[] encoded = objectMapper.writeValueAsBytes(msg);
+        ENCODE_TIME.recordSince(start);
+        ENCODED_BYTES.add(encoded.length);
+        out.add(encoded);
     }
 }
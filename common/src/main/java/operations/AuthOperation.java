@@ -9,6 +9,21 @@ public class AuthOperation extends Operation {
     private String username;
     private List<SimpleFile> userFilesList;
     private String message;
+    /**
+     * В запросе - клиент умеет принимать перечень файлов порциями (ManifestOperation);
+     * в ответе - перечень будет передан порциями после AUTH_SUCCESS, userFilesList пуст.
+     */
+    private boolean manifestStreamed;
+    /**
+     * Журнал изменений на сервере: в запросе - журнал и последний номер изменения, известные клиенту (0 - неизвестны);
+     * в ответе - текущие журнал и номер, которые клиент должен запомнить вместе с перечнем.
+     */
+    private long journalId;
+    private long sequence;
+    /**
+     * В ответе - порции содержат только изменения после sequence из запроса, а не весь перечень.
+     */
+    private boolean delta;
 
     public AuthOperation() {
     }
@@ -48,14 +63,82 @@ public class AuthOperation extends Operation {
         return userFilesList;
     }
 
+    public boolean isManifestStreamed() {
+        return manifestStreamed;
+    }
+
+    public void setManifestStreamed(boolean manifestStreamed) {
+        this.manifestStreamed = manifestStreamed;
+    }
+
+    public long getJournalId() {
+        return journalId;
+    }
+
+    public void setJournalId(long journalId) {
+        this.journalId = journalId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
     public static AuthOperation createAuthRequest(String username) {
-        return new AuthOperation(OperationType.AUTH_REQUEST, username);
+        return createAuthRequest(username, 0, 0);
+    }
+
+    /**
+     * @param journalId журнал изменений, по которому получен сохраненный клиентом перечень (0 - перечня нет)
+     * @param sequence  номер последнего изменения, отраженного в сохраненном перечне
+     */
+    public static AuthOperation createAuthRequest(String username, long journalId, long sequence) {
+        AuthOperation result = new AuthOperation(OperationType.AUTH_REQUEST, username);
+        result.manifestStreamed = true;
+        result.journalId = journalId;
+        result.sequence = sequence;
+        return result;
     }
 
     public static AuthOperation createAuthSuccess(String username, List<SimpleFile> userSimpleFiles) {
         return new AuthOperation(OperationType.AUTH_SUCCESS, username, userSimpleFiles);
     }
 
+    /**
+     * Ответ об успешной авторизации, после которого перечень файлов передается порциями.
+     */
+    public static AuthOperation createAuthSuccessStreamed(String username) {
+        AuthOperation result = new AuthOperation(OperationType.AUTH_SUCCESS, username, List.of());
+        result.manifestStreamed = true;
+        return result;
+    }
+
+    /**
+     * Ответ об успешной авторизации, после которого порциями передается перечень или изменения в нем.
+     *
+     * @param journalId журнал изменений пользователя
+     * @param sequence  номер последнего изменения в журнале
+     * @param delta     передаются только изменения после номера из запроса
+     */
+    public static AuthOperation createAuthSuccessStreamed(String username, long journalId, long sequence, boolean delta) {
+        AuthOperation result = createAuthSuccessStreamed(username);
+        result.journalId = journalId;
+        result.sequence = sequence;
+        result.delta = delta;
+        return result;
+    }
+
     public static AuthOperation createAuthFailed(String username, String message) {
         return new AuthOperation(OperationType.AUTH_FAILED, username, message);
     }
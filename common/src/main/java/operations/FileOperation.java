@@ -15,7 +15,10 @@ public class FileOperation extends Operation {
     private Entity entity;
     private String oldEntityPath;
     private String newEntityPath;
-
+    /**
+     * Ожидаемый размер содержимого файла для операций CREATE и MODIFY (-1 - неизвестен).
+     */
+    private long size = -1;
 
     public FileOperation() {
     }
@@ -88,6 +91,44 @@ public class FileOperation extends Operation {
         throw new RuntimeException("Unsupported combination (ENTITY = " + operation.getEntity() + ", TYPE = " + operation.getType() + ") for this operation.");
     }
 
+    /**
+     * Сообщение о завершении передачи содержимого файла, после которого сервер может зафиксировать файл.
+     *
+     * @param operation операция CREATE или MODIFY, для которой передавалось содержимое
+     * @return операция FILE_WRITTEN
+     */
+    public static FileOperation fileWritten(FileOperation operation) {
+        if (operation.getEntity() == Entity.FILE) {
+            if (operation.getType() == OperationType.CREATE || operation.getType() == OperationType.MODIFY) {
+                return new FileOperation(Entity.FILE, OperationType.FILE_WRITTEN, operation.oldEntityPath);
+            }
+        }
+        throw new RuntimeException("Unsupported combination (ENTITY = " + operation.getEntity() + ", TYPE = " + operation.getType() + ") for this operation.");
+    }
+
+    /**
+     * Сообщение об отмене передачи содержимого файла (файл не удалось прочитать целиком);
+     * сервер отбрасывает принятую часть и не меняет файл.
+     *
+     * @param operation операция CREATE или MODIFY, для которой передавалось содержимое
+     * @return операция FILE_ABORTED
+     */
+    public static FileOperation aborted(FileOperation operation) {
+        return new FileOperation(Entity.FILE, OperationType.FILE_ABORTED, operation.oldEntityPath);
+    }
+
+    /**
+     * Ответ сервера об отказе принять содержимое файла (например, из-за превышения квоты).
+     *
+     * @param operation отклоненная операция CREATE или MODIFY
+     * @return операция FILE_REJECTED
+     */
+    public static FileOperation rejected(FileOperation operation) {
+        FileOperation result = new FileOperation(operation.getEntity(), OperationType.FILE_REJECTED, operation.oldEntityPath);
+        result.size = operation.size;
+        return result;
+    }
+
     public static Path getWatcherRootPath() {
         return watcherRootPath;
     }
@@ -104,6 +145,14 @@ public class FileOperation extends Operation {
         return newEntityPath;
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
     public void setOldEntityPath(String oldEntityPath) {
         this.oldEntityPath = oldEntityPath;
     }
@@ -0,0 +1,54 @@
+package operations;
+
+import files.SimpleFile;
+
+import java.util.List;
+
+/**
+ * Порция перечня файлов пользователя на сервере. Порции передаются после AUTH_SUCCESS, если клиент запросил
+ * потоковую передачу перечня; файлы во всех порциях вместе упорядочены по files.ManifestOrder.
+ * Если сервер передает только изменения (AuthOperation.isDelta()), removed содержит пути, которые нужно удалить
+ * из сохраненного клиентом перечня вместе со всем вложенным, а files - файлы, которые нужно добавить или заменить.
+ */
+public class ManifestOperation extends Operation {
+
+    private int chunk;
+    private boolean last;
+    private List<SimpleFile> files;
+    private List<String> removed;
+
+    public ManifestOperation() {
+    }
+
+    private ManifestOperation(int chunk, boolean last, List<SimpleFile> files, List<String> removed) {
+        super(OperationType.MANIFEST_CHUNK);
+        this.chunk = chunk;
+        this.last = last;
+        this.files = files;
+        this.removed = removed;
+    }
+
+    public static ManifestOperation chunk(int chunk, boolean last, List<SimpleFile> files) {
+        return new ManifestOperation(chunk, last, files, List.of());
+    }
+
+    public static ManifestOperation deltaChunk(int chunk, boolean last, List<SimpleFile> files, List<String> removed) {
+        return new ManifestOperation(chunk, last, files, removed);
+    }
+
+    public int getChunk() {
+        return chunk;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public List<SimpleFile> getFiles() {
+        return files;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+}
@@ -8,7 +8,9 @@ import com.fasterxml.jackson.annotation.JsonTypeInfo;
         property = "type")
 @JsonSubTypes({
         @JsonSubTypes.Type(value = AuthOperation.class, name = "authOp"),
-        @JsonSubTypes.Type(value = FileOperation.class, name = "fileOp")
+        @JsonSubTypes.Type(value = FileOperation.class, name = "fileOp"),
+        @JsonSubTypes.Type(value = ManifestOperation.class, name = "manifestOp"),
+        @JsonSubTypes.Type(value = StatsOperation.class, name = "statsOp")
 })
 public class Operation {
 
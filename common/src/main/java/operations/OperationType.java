@@ -1,5 +1,5 @@
 package operations;
 
 public enum OperationType {
-    CREATE, DELETE, MODIFY, RENAME, COPY, MOVE_TO, FILE_WRITING, AUTH_REQUEST, AUTH_SUCCESS, AUTH_FAILED
+    CREATE, DELETE, MODIFY, RENAME, COPY, MOVE_TO, FILE_WRITING, FILE_WRITTEN, FILE_ABORTED, FILE_REJECTED, AUTH_REQUEST, AUTH_SUCCESS, AUTH_FAILED, MANIFEST_CHUNK, STATS_REQUEST, STATS_RESPONSE
 }
@@ -0,0 +1,34 @@
+package operations;
+
+import metrics.MetricValue;
+
+import java.util.List;
+
+/**
+ * Запрос метрик (STATS_REQUEST) и ответ с их значениями (STATS_RESPONSE).
+ * Сервер отвечает только после авторизации; показатели сессий других пользователей в ответ не входят.
+ */
+public class StatsOperation extends Operation {
+
+    private List<MetricValue> metrics;
+
+    public StatsOperation() {
+    }
+
+    private StatsOperation(OperationType type, List<MetricValue> metrics) {
+        super(type);
+        this.metrics = metrics;
+    }
+
+    public static StatsOperation request() {
+        return new StatsOperation(OperationType.STATS_REQUEST, List.of());
+    }
+
+    public static StatsOperation response(List<MetricValue> metrics) {
+        return new StatsOperation(OperationType.STATS_RESPONSE, metrics);
+    }
+
+    public List<MetricValue> getMetrics() {
+        return metrics;
+    }
+}
@@ -1,5 +1,9 @@
 package utils;
 
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.Metrics;
+
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -8,7 +12,9 @@ import java.nio.file.Path;
 import java.util.zip.CRC32;
 
 /**
- * Вспомогательный класс для расчета хеш-суммы файла с помощью алгоритма CRC32
+ * Вспомогательный класс для расчета хеш-суммы файла с помощью алгоритма CRC32.
+ * Время расчета и объем прочитанных данных учитываются в метриках hash.crc32.*; показатель
+ * hash.crc32.bytesPerSecond - средняя скорость расчета (объем, деленный на суммарное время расчета).
  */
 public class CRC32Hash {
 
@@ -17,6 +23,16 @@ public class CRC32Hash {
      */
     private static final int BUFFER_SIZE = 0x00040000; //(256 KB)
 
+    private static final Histogram HASH_TIME = Metrics.histogram("hash.crc32.nanos");
+    private static final Counter HASHED_BYTES = Metrics.counter("hash.crc32.bytes");
+
+    static {
+        Metrics.gauge("hash.crc32.bytesPerSecond", () -> {
+            long nanos = HASH_TIME.getSum();
+            return nanos == 0 ? 0 : (long) (HASHED_BYTES.get() * 1_000_000_000.0 / nanos);
+        });
+    }
+
     /**
      * Расчитывает значение хеш-суммы для переданного файла.
      *
@@ -24,6 +40,8 @@ public class CRC32Hash {
      * @return хеш-сумма файла
      */
     public static long calculateCrc32Hash(Path path) {
+        long start = System.nanoTime();
+        long total = 0;
         CRC32 crc = new CRC32();
         try {
             @SuppressWarnings("resource")
@@ -35,6 +53,7 @@ public class CRC32Hash {
                 int bytesRead;
                 while ((bytesRead = channel.read(ByteBuffer.wrap(buffer))) != -1) {
                     crc.update(buffer, 0, bytesRead);
+                    total += bytesRead;
                 }
             } catch (Exception e) {
                 //do nothing
@@ -44,6 +63,8 @@ public class CRC32Hash {
         } catch (Exception e) {
             //do nothing
         }
+        HASH_TIME.recordSince(start);
+        HASHED_BYTES.add(total);
         return crc.getValue();
     }
 }
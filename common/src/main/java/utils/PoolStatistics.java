@@ -0,0 +1,82 @@
+package utils;
+
+/**
+ * Срез метрик пула потоков на момент запроса.
+ */
+public class PoolStatistics {
+
+    private final String name;
+    private final boolean virtual;
+    private final int maxConcurrency;
+    private final int active;
+    private final int queued;
+    private final long submitted;
+    private final long completed;
+    private final long failed;
+    private final long rejected;
+    private final long totalTaskNanos;
+
+    PoolStatistics(String name, boolean virtual, int maxConcurrency, int active, int queued,
+                   long submitted, long completed, long failed, long rejected, long totalTaskNanos) {
+        this.name = name;
+        this.virtual = virtual;
+        this.maxConcurrency = maxConcurrency;
+        this.active = active;
+        this.queued = queued;
+        this.submitted = submitted;
+        this.completed = completed;
+        this.failed = failed;
+        this.rejected = rejected;
+        this.totalTaskNanos = totalTaskNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getActive() {
+        return active;
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return количество задач, которые не поместились в очередь и были выполнены в вызывающем потоке
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    public double getAverageTaskMillis() {
+        long finished = completed + failed;
+        return finished == 0 ? 0 : totalTaskNanos / 1_000_000.0 / finished;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Pool{name='%s', mode=%s, maxConcurrency=%d, active=%d, queued=%d, submitted=%d, completed=%d, failed=%d, rejected=%d, avgTask=%.3f ms}",
+                name, virtual ? "virtual" : "platform", maxConcurrency, active, queued, submitted, completed, failed, rejected, getAverageTaskMillis());
+    }
+}
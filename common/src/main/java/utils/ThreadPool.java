@@ -1,16 +1,81 @@
 package utils;
 
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Точка доступа к пулам потоков приложения. Для каждого класса нагрузки (WorkloadType) создается свой пул,
+ * поэтому, например, расчет хеш-сумм не может занять потоки, нужные для работы с сетью.
+ * Если JVM поддерживает виртуальные потоки и задано системное свойство cloudstorage.threads=virtual,
+ * задачи, связанные с вводом-выводом, выполняются на виртуальных потоках.
+ */
 public class ThreadPool {
-    private static final ExecutorService POOL = Executors.newCachedThreadPool();
+    private static final boolean VIRTUAL_MODE = "virtual".equalsIgnoreCase(System.getProperty("cloudstorage.threads", "platform"))
+            && WorkloadExecutor.isVirtualThreadsSupported();
+    private static final Map<WorkloadType, WorkloadExecutor> POOLS = new EnumMap<>(WorkloadType.class);
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread t = new Thread(runnable, "scheduler");
+        t.setDaemon(true);
+        return t;
+    });
 
-    public static void addTask(Runnable task) {
-        POOL.execute(task);
+    static {
+        for (WorkloadType type : WorkloadType.values()) {
+            POOLS.put(type, VIRTUAL_MODE && type.isIoBound()
+                    ? WorkloadExecutor.virtual(type.getPoolName(), type.getThreads() * 16)
+                    : WorkloadExecutor.bounded(type.getPoolName(), type.getThreads(), type.getQueueCapacity()));
+        }
+    }
+
+    public static void addTask(WorkloadType type, Runnable task) {
+        POOLS.get(type).execute(task);
+    }
+
+    public static <T> CompletableFuture<T> submit(WorkloadType type, Callable<T> task) {
+        return POOLS.get(type).submit(task);
+    }
+
+    /**
+     * Планирует отложенное выполнение короткой задачи в общем потоке-планировщике.
+     * Длительную работу задача должна передавать в один из пулов.
+     *
+     * @param task  задача
+     * @param delay задержка
+     * @param unit  единицы измерения задержки
+     * @return дескриптор запланированной задачи
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return SCHEDULER.schedule(task, delay, unit);
+    }
+
+    public static WorkloadExecutor getExecutor(WorkloadType type) {
+        return POOLS.get(type);
+    }
+
+    public static boolean isVirtualMode() {
+        return VIRTUAL_MODE;
+    }
+
+    public static List<PoolStatistics> getStatistics() {
+        List<PoolStatistics> result = new ArrayList<>();
+        for (WorkloadExecutor executor : POOLS.values()) {
+            result.add(executor.getStatistics());
+        }
+        return result;
     }
 
     public static void shutdown() {
-        POOL.shutdownNow();
+        SCHEDULER.shutdownNow();
+        for (WorkloadExecutor executor : POOLS.values()) {
+            executor.shutdown();
+        }
     }
 }
@@ -0,0 +1,85 @@
+package utils;
+
+/**
+ * Потокобезопасное "ведро маркеров" (token bucket) для ограничения скорости.
+ * Если запрашиваемое количество больше емкости ведра, оно выдается при полном ведре, а недостача
+ * погашается последующим пополнением - так крупные порции данных не блокируются навсегда.
+ * Скорость 0 или меньше означает отсутствие ограничения.
+ */
+public class TokenBucket {
+
+    private double tokensPerNano;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param ratePerSecond скорость пополнения в единицах в секунду
+     * @param burst         емкость ведра (максимальный "всплеск")
+     */
+    public TokenBucket(long ratePerSecond, long burst) {
+        this.lastRefill = System.nanoTime();
+        setRate(ratePerSecond, burst);
+        this.tokens = capacity;
+    }
+
+    /**
+     * Меняет параметры ограничения. Накопленный запас обрезается до новой емкости.
+     *
+     * @param ratePerSecond скорость пополнения в единицах в секунду
+     * @param burst         емкость ведра
+     */
+    public synchronized void setRate(long ratePerSecond, long burst) {
+        refill();
+        this.tokensPerNano = ratePerSecond <= 0 ? 0 : ratePerSecond / 1_000_000_000.0;
+        this.capacity = Math.max(1, burst);
+        this.tokens = Math.min(tokens, capacity);
+    }
+
+    public synchronized boolean isUnlimited() {
+        return tokensPerNano == 0;
+    }
+
+    /**
+     * @param amount запрашиваемое количество
+     * @return через сколько наносекунд запрашиваемое количество станет доступным (0 - доступно сейчас)
+     */
+    public synchronized long nanosUntilAvailable(long amount) {
+        if (isUnlimited()) return 0;
+        refill();
+        double required = Math.min(amount, capacity);
+        if (tokens >= required) return 0;
+        return (long) Math.ceil((required - tokens) / tokensPerNano);
+    }
+
+    /**
+     * Забирает запрашиваемое количество, если оно доступно.
+     *
+     * @param amount запрашиваемое количество
+     * @return true - если количество было выдано
+     */
+    public synchronized boolean tryConsume(long amount) {
+        if (nanosUntilAvailable(amount) > 0) return false;
+        consume(amount);
+        return true;
+    }
+
+    /**
+     * Безусловно забирает запрашиваемое количество, при необходимости уходя "в долг".
+     *
+     * @param amount запрашиваемое количество
+     */
+    public synchronized void consume(long amount) {
+        if (isUnlimited()) return;
+        refill();
+        tokens -= amount;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (tokensPerNano > 0) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,158 @@
+package utils;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Именованный ограниченный исполнитель задач с собственными метриками.
+ * Работает либо поверх пула платформенных потоков фиксированного размера с ограниченной очередью,
+ * либо в режиме "виртуальный поток на задачу" (JDK 21+), где число одновременно выполняемых задач ограничивается семафором.
+ * При переполнении очереди задача выполняется в вызывающем потоке, что притормаживает источник задач.
+ */
+public class WorkloadExecutor implements Executor {
+
+    private final String name;
+    private final int maxConcurrency;
+    private final ExecutorService delegate;
+    private final Semaphore virtualPermits;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalTaskNanos = new LongAdder();
+
+    private WorkloadExecutor(String name, int maxConcurrency, ExecutorService delegate, Semaphore virtualPermits) {
+        this.name = name;
+        this.maxConcurrency = maxConcurrency;
+        this.delegate = delegate;
+        this.virtualPermits = virtualPermits;
+    }
+
+    /**
+     * Создает пул платформенных потоков с именами вида "name-N".
+     *
+     * @param name          имя пула
+     * @param threads       количество потоков
+     * @param queueCapacity размер очереди ожидающих задач
+     * @return исполнитель
+     */
+    public static WorkloadExecutor bounded(String name, int threads, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                namedThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        WorkloadExecutor result = new WorkloadExecutor(name, threads, executor, null);
+        executor.setRejectedExecutionHandler((task, ex) -> {
+            result.rejected.increment();
+            if (!ex.isShutdown()) task.run();
+        });
+        return result;
+    }
+
+    /**
+     * Создает исполнитель, запускающий каждую задачу в отдельном виртуальном потоке.
+     *
+     * @param name           имя пула
+     * @param maxConcurrency максимальное число одновременно выполняемых задач
+     * @return исполнитель
+     * @throws UnsupportedOperationException если виртуальные потоки недоступны в текущей JVM
+     */
+    public static WorkloadExecutor virtual(String name, int maxConcurrency) {
+        if (!isVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require JDK 21+ (current: " + Runtime.version() + ")");
+        }
+        try {
+            ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return new WorkloadExecutor(name, maxConcurrency, executor, new Semaphore(maxConcurrency));
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unable to create virtual thread executor", e);
+        }
+    }
+
+    public static boolean isVirtualThreadsSupported() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submitted.increment();
+        waiting.incrementAndGet();
+        delegate.execute(() -> run(task));
+    }
+
+    /**
+     * Отправляет задачу на выполнение.
+     *
+     * @param task задача
+     * @return future, завершающийся результатом задачи
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+                throw e instanceof RuntimeException re ? re : new CompletionException(e);
+            }
+        });
+        return future;
+    }
+
+    private void run(Runnable task) {
+        if (virtualPermits != null) {
+            try {
+                virtualPermits.acquire();
+            } catch (InterruptedException e) {
+                waiting.decrementAndGet();
+                failed.increment();
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        waiting.decrementAndGet();
+        active.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            task.run();
+            completed.increment();
+        } catch (RuntimeException | Error e) {
+            failed.increment();
+            System.out.println("Task in pool \"" + name + "\" failed: " + e.getCause() + " | " + e.getMessage());
+        } finally {
+            totalTaskNanos.add(System.nanoTime() - start);
+            active.decrementAndGet();
+            if (virtualPermits != null) virtualPermits.release();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isVirtual() {
+        return virtualPermits != null;
+    }
+
+    public PoolStatistics getStatistics() {
+        return new PoolStatistics(name, isVirtual(), maxConcurrency, active.get(), Math.max(0, waiting.get()),
+                submitted.sum(), completed.sum(), failed.sum(), rejected.sum(), totalTaskNanos.sum());
+    }
+
+    public void shutdown() {
+        delegate.shutdownNow();
+    }
+
+    private static ThreadFactory namedThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread t = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
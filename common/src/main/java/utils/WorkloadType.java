@@ -0,0 +1,57 @@
+package utils;
+
+/**
+ * Классы нагрузки, для каждого из которых ThreadPool держит отдельный именованный ограниченный пул.
+ * Размеры пулов можно переопределить системными свойствами
+ * cloudstorage.pool.&lt;имя&gt;.threads и cloudstorage.pool.&lt;имя&gt;.queue.
+ */
+public enum WorkloadType {
+    /**
+     * Расчет хеш-сумм файлов (нагрузка на CPU).
+     */
+    HASHING("hashing", Runtime.getRuntime().availableProcessors(), 4096, false),
+    /**
+     * Обход файловой системы и построение "снимков".
+     */
+    SCANNING("scanning", Math.max(2, Runtime.getRuntime().availableProcessors() / 2), 1024, true),
+    /**
+     * Подключение к серверу и передача данных по сети.
+     */
+    NETWORK("network", 4, 256, true),
+    /**
+     * Операции с дисковым хранилищем.
+     */
+    STORAGE("storage", 8, 1024, true);
+
+    private final String poolName;
+    private final int defaultThreads;
+    private final int defaultQueueCapacity;
+    private final boolean ioBound;
+
+    WorkloadType(String poolName, int defaultThreads, int defaultQueueCapacity, boolean ioBound) {
+        this.poolName = poolName;
+        this.defaultThreads = defaultThreads;
+        this.defaultQueueCapacity = defaultQueueCapacity;
+        this.ioBound = ioBound;
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getThreads() {
+        return Integer.getInteger("cloudstorage.pool." + poolName + ".threads", defaultThreads);
+    }
+
+    public int getQueueCapacity() {
+        return Integer.getInteger("cloudstorage.pool." + poolName + ".queue", defaultQueueCapacity);
+    }
+
+    /**
+     * @return true - если задачи этого класса большую часть времени ждут ввода-вывода
+     * и могут выполняться на виртуальных потоках
+     */
+    public boolean isIoBound() {
+        return ioBound;
+    }
+}
@@ -0,0 +1,194 @@
+package files;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Журнал изменений файлов пользователя. Каждое изменение пути получает следующий номер; журнал дописывается в файл
+ * строками "номер путь" и переживает перезапуск сервера. Клиент, запомнивший номер последнего известного ему
+ * изменения, при следующем подключении получает только пути, измененные позже.
+ * Для каждого пути хранится только последнее изменение, поэтому журнал растет с числом измененных путей, а не
+ * операций. Если путей больше cloudstorage.journal.maxEntries, самые старые отбрасываются, и клиентам с номером
+ * меньше отброшенного нужен полный перечень.
+ */
+public class ChangeJournal {
+
+    private static final int MAX_ENTRIES = Integer.getInteger("cloudstorage.journal.maxEntries", 100_000);
+
+    private final Path file;
+    private final TreeMap<Long, String> bySequence = new TreeMap<>();
+    private final Map<String, Long> byPath = new HashMap<>();
+    private long id;
+    private long truncatedSequence;
+    private long lastSequence;
+    private long fileLines;
+    private BufferedWriter writer;
+
+    /**
+     * @param file файл журнала; если его нет, создается новый журнал
+     */
+    public ChangeJournal(Path file) {
+        this.file = file;
+        try {
+            if (Files.exists(file)) load();
+            else reset();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Change journal " + file + " is unreadable, starting a new one: " + e.getMessage());
+            try {
+                reset();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String[] header = reader.readLine().split(" ");
+            id = Long.parseLong(header[0]);
+            truncatedSequence = Long.parseLong(header[1]);
+            lastSequence = truncatedSequence;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                // последняя строка может быть недописана, если сервер остановился во время записи
+                if (space <= 0) continue;
+                long sequence;
+                try {
+                    sequence = Long.parseLong(line.substring(0, space));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                put(sequence, line.substring(space + 1));
+                lastSequence = Math.max(lastSequence, sequence);
+                fileLines++;
+            }
+        }
+        if (bySequence.size() > MAX_ENTRIES) {
+            truncate();
+            rewrite();
+        } else {
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+    }
+
+    private void reset() throws IOException {
+        Files.createDirectories(file.getParent());
+        id = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        truncatedSequence = 0;
+        lastSequence = 0;
+        bySequence.clear();
+        byPath.clear();
+        rewrite();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Записывает изменение пути (файла или директории).
+     *
+     * @param key путь относительно директории пользователя в виде "\a\b"
+     * @return номер изменения
+     */
+    public synchronized long record(String key) {
+        long sequence = ++lastSequence;
+        put(sequence, key);
+        if (writer == null) return sequence;
+        try {
+            writer.write(sequence + " " + key);
+            writer.newLine();
+            writer.flush();
+            fileLines++;
+            if (bySequence.size() > MAX_ENTRIES) {
+                truncate();
+                rewrite();
+            } else if (fileLines > 2L * bySequence.size() + 1024) {
+                rewrite();
+            }
+        } catch (IOException e) {
+            System.out.println("Problem with change journal " + file + ", it is discarded: " + e.getMessage());
+            discard();
+        }
+        return sequence;
+    }
+
+    /**
+     * @param journalId журнал, известный клиенту
+     * @param sequence  номер последнего изменения, известного клиенту
+     * @return пути, измененные после sequence, или null, если по журналу их определить нельзя (журнал другой,
+     * нужные записи уже отброшены или файл журнала недоступен для записи) и клиенту нужен полный перечень
+     */
+    public synchronized List<String> changesSince(long journalId, long sequence) {
+        if (writer == null || journalId != id || sequence < truncatedSequence || sequence > lastSequence) return null;
+        return new ArrayList<>(bySequence.tailMap(sequence, false).values());
+    }
+
+    public synchronized void close() {
+        try {
+            if (writer != null) writer.close();
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+
+    /**
+     * Отказывается от журнала, который не удалось дописать: ответы по нему больше не даются, а файл удаляется,
+     * чтобы после перезапуска журнал с тем же идентификатором не выдал неполный список изменений.
+     */
+    private void discard() {
+        close();
+        writer = null;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            //do nothing
+        }
+    }
+
+    private void put(long sequence, String key) {
+        Long previous = byPath.put(key, sequence);
+        if (previous != null) bySequence.remove(previous);
+        bySequence.put(sequence, key);
+    }
+
+    private void truncate() {
+        while (bySequence.size() > MAX_ENTRIES / 2) {
+            Map.Entry<Long, String> oldest = bySequence.pollFirstEntry();
+            byPath.remove(oldest.getValue());
+            truncatedSequence = oldest.getKey();
+        }
+    }
+
+    /**
+     * Переписывает файл журнала, оставляя только последние изменения путей.
+     */
+    private void rewrite() throws IOException {
+        if (writer != null) writer.close();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write(id + " " + truncatedSequence);
+            out.newLine();
+            for (Map.Entry<Long, String> e : bySequence.entrySet()) {
+                out.write(e.getKey() + " " + e.getValue());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        fileLines = bySequence.size();
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+}
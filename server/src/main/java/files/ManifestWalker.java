@@ -0,0 +1,87 @@
+package files;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/**
+ * Обход директории пользователя в порядке ManifestOrder для потоковой передачи перечня файлов клиенту.
+ * Содержимое директории читается и сортируется по имени при входе в нее, а файлы (с расчетом хеш-суммы)
+ * создаются порциями по запросу: в памяти находятся только текущая порция и имена в директориях на пути обхода.
+ */
+public class ManifestWalker implements Iterator<List<SimpleFile>> {
+
+    private final Path userDir;
+    private final int chunkSize;
+    private final Deque<Iterator<Path>> directories = new ArrayDeque<>();
+    private Path nextFile;
+
+    /**
+     * @param userDir   директория пользователя
+     * @param chunkSize число файлов в порции
+     */
+    public ManifestWalker(Path userDir, int chunkSize) {
+        this.userDir = userDir;
+        this.chunkSize = chunkSize;
+        enter(userDir);
+        nextFile = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextFile != null;
+    }
+
+    /**
+     * @return следующая порция файлов (пути относительно директории пользователя)
+     */
+    @Override
+    public List<SimpleFile> next() {
+        if (nextFile == null) throw new NoSuchElementException();
+        List<SimpleFile> chunk = new ArrayList<>(Math.min(chunkSize, 1024));
+        while (nextFile != null && chunk.size() < chunkSize) {
+            try {
+                SimpleFile f = new SimpleFile(nextFile);
+                f.setPath(f.getPath().replace(userDir.toString(), ""));
+                chunk.add(f);
+            } catch (IOException e) {
+                System.out.println("Problem with file: " + nextFile);
+            }
+            nextFile = advance();
+        }
+        return chunk;
+    }
+
+    private Path advance() {
+        while (!directories.isEmpty()) {
+            Iterator<Path> entries = directories.peek();
+            if (!entries.hasNext()) {
+                directories.pop();
+                continue;
+            }
+            Path entry = entries.next();
+            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) enter(entry);
+            else return entry;
+        }
+        return null;
+    }
+
+    private void enter(Path dir) {
+        try (Stream<Path> entries = Files.list(dir)) {
+            directories.push(entries
+                    .sorted((a, b) -> ManifestOrder.compare(a.getFileName().toString(), b.getFileName().toString()))
+                    .toList().iterator());
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Problem with directory: " + dir);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package files;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Объем файлов пользователя (для проверки квоты), общий для всех его сессий. Значение хранится в файле рядом
+ * с журналом изменений: при открытии из файла берется сохраненный объем, а в файл записывается отметка "dirty";
+ * пока счетчик открыт, объем меняется только в памяти (при фиксации загрузок, удалении, копировании),
+ * а при закрытии сохраняется снова. Если сервер остановился, не закрыв счетчик, при следующем открытии
+ * файл содержит "dirty", и объем считается заново обходом директории пользователя.
+ */
+public class UsageCounter {
+
+    private static final String DIRTY = "dirty";
+
+    private final Path file;
+    private final AtomicLong usedBytes;
+    private boolean closed;
+
+    /**
+     * @param file          файл счетчика
+     * @param userDirectory директория пользователя (обходится, если сохраненного объема нет)
+     */
+    public UsageCounter(Path file, Path userDirectory) {
+        this.file = file;
+        long saved = load();
+        this.usedBytes = new AtomicLong(saved >= 0 ? saved : measure(userDirectory));
+        write(DIRTY);
+    }
+
+    public long get() {
+        return usedBytes.get();
+    }
+
+    public void add(long delta) {
+        usedBytes.addAndGet(delta);
+    }
+
+    /**
+     * Сохраняет объем в файл.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        write(Long.toString(usedBytes.get()));
+    }
+
+    /**
+     * @return сохраненный объем или -1, если файла нет или счетчик не был закрыт
+     */
+    private long load() {
+        try {
+            if (!Files.exists(file)) return -1;
+            String value = Files.readString(file, StandardCharsets.UTF_8).trim();
+            return value.equals(DIRTY) ? -1 : Long.parseLong(value);
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void write(String value) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, value, StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Problem with usage file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Считает объем файлов пользователя без расчета хеш-сумм.
+     */
+    private static long measure(Path userDirectory) {
+        if (!Files.isDirectory(userDirectory)) return 0;
+        try (Stream<Path> files = Files.walk(userDirectory)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> {
+                try {
+                    return Files.size(f);
+                } catch (IOException e) {
+                    System.out.println("Problem with file: " + f);
+                    return 0;
+                }
+            }).sum();
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Problem occurred while measuring user's directory: " + e.getMessage());
+            return 0;
+        }
+    }
+}
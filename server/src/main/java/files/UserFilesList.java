@@ -1,15 +1,18 @@
 package files;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 public class UserFilesList {
 
@@ -64,6 +67,57 @@ public class UserFilesList {
         return list;
     }
 
+    /**
+     * Определяет текущее состояние путей, измененных по журналу. Путь, которого больше нет или который является
+     * директорией, попадает в removed (клиент удаляет его из своего перечня вместе с вложенными), а все файлы
+     * по измененным путям (включая файлы внутри директорий) возвращаются для добавления.
+     *
+     * @param userDir директория пользователя
+     * @param keys    измененные пути относительно userDir в виде "\a\b"
+     * @param removed сюда добавляются удаляемые пути (упорядочены по ManifestOrder)
+     * @return файлы для передачи клиенту, упорядоченные по ManifestOrder
+     */
+    public static List<SimpleFile> getChangedFilesForTransfer(Path userDir, Collection<String> keys, List<String> removed) {
+        Map<String, SimpleFile> changed = new HashMap<>();
+        for (String key : keys) {
+            Path path = Path.of(userDir + key);
+            if (Files.isRegularFile(path)) {
+                addForTransfer(userDir, path, changed);
+                continue;
+            }
+            removed.add(key);
+            if (!Files.isDirectory(path)) continue;
+            try (Stream<Path> files = Files.walk(path)) {
+                files.filter(Files::isRegularFile).forEach(f -> addForTransfer(userDir, f, changed));
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Problem with directory: " + path);
+            }
+        }
+        removed.sort(ManifestOrder::compare);
+        List<SimpleFile> result = new ArrayList<>(changed.values());
+        result.sort(ManifestOrder.BY_PATH);
+        return result;
+    }
+
+    private static void addForTransfer(Path userDir, Path file, Map<String, SimpleFile> changed) {
+        if (changed.containsKey(file.toString())) return;
+        try {
+            SimpleFile f = new SimpleFile(file);
+            f.setPath(f.getPath().replace(userDir.toString(), ""));
+            changed.put(file.toString(), f);
+        } catch (IOException e) {
+            System.out.println("Problem with file: " + file);
+        }
+    }
+
+    public long getTotalSize() {
+        long result = 0;
+        for (SimpleFile f : userFiles.values()) {
+            result += f.getSize();
+        }
+        return result;
+    }
+
     public List<SimpleFile> getFilesByHashSum(long hashSum) {
         return fileHashes.get(hashSum);
     }
@@ -1,34 +1,99 @@
 package handlers;
 
+import files.ChangeJournal;
+import files.ManifestWalker;
+import files.SimpleFile;
+import files.UserFilesList;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import network.Message;
 import server.Server;
 import operations.AuthOperation;
+import operations.ManifestOperation;
 import operations.OperationType;
+import storage.StorageVolume;
+import utils.ThreadPool;
+import utils.WorkloadType;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 public class AuthenticateHandler extends SimpleChannelInboundHandler<Message> {
 
+    private static final int MANIFEST_CHUNK_SIZE = Integer.getInteger("cloudstorage.manifest.chunkSize", 1000);
+
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, Message message) {
         if (message.getOperation().getType() == OperationType.AUTH_REQUEST) {
             AuthOperation request = (AuthOperation) message.getOperation();
-            AuthOperation response;
             if (Server.getSession(channelHandlerContext.channel().id().asShortText()) == null) {
-                SessionHandler session = new SessionHandler(channelHandlerContext.channel(), request.getUsername());
-                Server.addSession(channelHandlerContext.channel().id().asShortText(), session);
-                response = AuthOperation.createAuthSuccess(request.getUsername(), session.getUserFiles().getFilesListForTransfer());
-                channelHandlerContext.pipeline().removeLast();
-                channelHandlerContext.pipeline().addLast(new FileHandler());
+                // авторизация читает файлы пользователя (объем, журнал, перечень), поэтому выполняется не в потоке канала
+                Server.getVolumeManager().acquire(request.getUsername()).thenAccept(volume ->
+                        ThreadPool.addTask(WorkloadType.STORAGE, () -> authorize(channelHandlerContext, request, volume)));
+            } else {
+                respond(channelHandlerContext, AuthOperation.createAuthFailed(request.getUsername(), "Already logged in"));
+            }
+        }
+    }
+
+    private void authorize(ChannelHandlerContext channelHandlerContext, AuthOperation request, StorageVolume volume) {
+        SessionHandler session = new SessionHandler(channelHandlerContext.channel(), request.getUsername(), volume);
+        Server.addSession(channelHandlerContext.channel().id().asShortText(), session);
+        channelHandlerContext.pipeline().removeLast();
+        channelHandlerContext.pipeline().addLast(new FileHandler());
+        if (request.isManifestStreamed()) {
+            // номер берется до чтения файлов: изменения, сделанные во время чтения, клиент получит в следующий раз
+            ChangeJournal journal = session.getJournal();
+            long sequence = journal.getLastSequence();
+            List<String> changes = journal.changesSince(request.getJournalId(), request.getSequence());
+            respond(channelHandlerContext, AuthOperation.createAuthSuccessStreamed(request.getUsername(), journal.getId(), sequence, changes != null));
+            if (changes == null) {
+                sendManifest(channelHandlerContext, new ManifestWalker(session.getUserDirectory(), MANIFEST_CHUNK_SIZE), List.of(), 0);
             } else {
-                response = AuthOperation.createAuthFailed(request.getUsername(), "Already logged in");
+                List<String> removed = new ArrayList<>();
+                List<SimpleFile> changed = UserFilesList.getChangedFilesForTransfer(session.getUserDirectory(), changes, removed);
+                System.out.println("Sending " + changes.size() + " changes since " + request.getSequence() + " to " + request.getUsername());
+                sendManifest(channelHandlerContext, chunks(changed), removed, 0);
             }
-            Message m = new Message();
-            m.setOperation(response);
-            channelHandlerContext.channel().writeAndFlush(m);
+        } else {
+            respond(channelHandlerContext, AuthOperation.createAuthSuccess(request.getUsername(), session.getUserFiles().getFilesListForTransfer()));
         }
     }
 
+    /**
+     * Передает перечень файлов порциями; следующая порция читается (в пуле WorkloadType.STORAGE) и отправляется
+     * после записи предыдущей, чтобы перечень целиком не накапливался ни в памяти, ни в буфере канала.
+     * Удаляемые пути (при передаче изменений) отправляются в первой порции.
+     */
+    private void sendManifest(ChannelHandlerContext channelHandlerContext, Iterator<List<SimpleFile>> chunks, List<String> removed, int chunk) {
+        List<SimpleFile> files = chunks.hasNext() ? chunks.next() : List.of();
+        boolean last = !chunks.hasNext();
+        Message m = new Message();
+        m.setOperation(chunk == 0 && !removed.isEmpty()
+                ? ManifestOperation.deltaChunk(chunk, last, files, removed)
+                : ManifestOperation.chunk(chunk, last, files));
+        channelHandlerContext.channel().writeAndFlush(m).addListener(f -> {
+            if (f.isSuccess() && !last) {
+                ThreadPool.addTask(WorkloadType.STORAGE, () -> sendManifest(channelHandlerContext, chunks, removed, chunk + 1));
+            }
+        });
+    }
+
+    private static Iterator<List<SimpleFile>> chunks(List<SimpleFile> files) {
+        List<List<SimpleFile>> chunks = new ArrayList<>();
+        for (int from = 0; from < files.size(); from += MANIFEST_CHUNK_SIZE) {
+            chunks.add(files.subList(from, Math.min(files.size(), from + MANIFEST_CHUNK_SIZE)));
+        }
+        return chunks.iterator();
+    }
+
+    private void respond(ChannelHandlerContext channelHandlerContext, AuthOperation response) {
+        Message m = new Message();
+        m.setOperation(response);
+        channelHandlerContext.channel().writeAndFlush(m);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         System.out.println("Inside AuthenticateHandler: " + cause.getCause() + " | " + cause.getMessage());
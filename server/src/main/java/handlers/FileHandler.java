@@ -2,82 +2,198 @@ package handlers;
 
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageDecoder;
+import metrics.Metrics;
 import network.Message;
 import server.Server;
 import operations.FileOperation;
+import operations.OperationType;
+import storage.Upload;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
+/**
+ * Применяет операции клиента к файлам пользователя. Время применения каждого вида операций учитывается в метриках
+ * server.apply.сущность.операция.nanos (для FILE_WRITTEN - время фиксации загруженного файла).
+ */
 public class FileHandler extends MessageToMessageDecoder<Message> {
     @Override
     protected void decode(ChannelHandlerContext ctx, Message msg, List<Object> out) throws Exception {
         if (msg.getOperation() instanceof FileOperation fo) {
-            Path oldPath = Paths.get(Server.getWorkDirectory(), "\\", fo.getOldEntityPath());
-            Path newPath = Paths.get(Server.getWorkDirectory(), "\\", fo.getNewEntityPath());
-
-            if (fo.getEntity() == FileOperation.Entity.FILE) {
-                switch (msg.getOperation().getType()) {
-                    case CREATE, MODIFY -> checkFile(oldPath, true);
-                    case FILE_WRITING -> {
-                        checkFile(oldPath, false);
-                        ctx.pipeline().addLast(new FileWriteHandler());
-                        out.add(msg);
-                    }
-                    case DELETE -> {
-                        if (Files.exists(oldPath)) {
-                            Path toRecycle = Path.of(Server.getUserRecycleBinDirectory(ctx.channel().id().asShortText()) + addPrefixForDeletingFile(oldPath.getFileName()));
-                            Files.move(oldPath, toRecycle);
-                        }
+            if (fo.getEntity() == FileOperation.Entity.FILE && fo.getType() == OperationType.FILE_WRITING) {
+                ctx.pipeline().addLast(new FileWriteHandler());
+                out.add(msg);
+                return;
+            }
+            SessionHandler session = Server.getSession(ctx.channel().id().asShortText());
+            if (fo.getEntity() == FileOperation.Entity.FILE && fo.getType() == OperationType.FILE_WRITTEN) {
+                // очередь пользователя не ждет фиксации: после нее выполняются только операции с тем же путем
+                session.getVolume().getWriteScheduler().submit(session.getUsername(), ctx.channel(), 0, 0, () -> {
+                    long start = System.nanoTime();
+                    CompletableFuture<Path> committed = finishUpload(session, fo);
+                    if (committed != null) committed.whenComplete((p, e) -> Metrics.histogram(applyMetric(fo)).recordSince(start));
+                });
+                return;
+            }
+            if (fo.getEntity() == FileOperation.Entity.FILE && fo.getType() == OperationType.FILE_ABORTED) {
+                // клиент не смог дочитать файл - принятая часть отбрасывается, файл на сервере не меняется
+                session.getVolume().getWriteScheduler().submit(session.getUsername(), ctx.channel(), 0, 0,
+                        () -> session.abortUpload(session.getVolume().resolve(fo.getOldEntityPath())));
+                return;
+            }
+            session.getVolume().getWriteScheduler().submitAsync(session.getUsername(), ctx.channel(), 0, 1, () -> {
+                CompletableFuture<Void> committed = session.getVolume().awaitCommits(affectedPaths(session, fo));
+                if (committed == null) {
+                    applyMeasured(session, fo);
+                    return null;
+                }
+                return committed.thenRunAsync(() -> {
+                    try {
+                        applyMeasured(session, fo);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
                     }
-                    case RENAME -> {
-                        if (Files.exists(oldPath)) Files.move(oldPath, oldPath.resolveSibling(newPath.getFileName()));
+                }, session.getVolume().getExecutor());
+            });
+        }
+    }
+
+    /**
+     * @return пути, фиксацию загрузок в которые операция должна дождаться
+     */
+    private static Path[] affectedPaths(SessionHandler session, FileOperation fo) {
+        Path oldPath = session.getVolume().resolve(fo.getOldEntityPath());
+        return switch (fo.getType()) {
+            case RENAME -> new Path[]{oldPath, oldPath.resolveSibling(session.getVolume().resolve(fo.getNewEntityPath()).getFileName())};
+            case MOVE_TO, COPY -> new Path[]{oldPath, session.getVolume().resolve(fo.getNewEntityPath())};
+            default -> new Path[]{oldPath};
+        };
+    }
+
+    private void applyMeasured(SessionHandler session, FileOperation fo) throws IOException {
+        long start = System.nanoTime();
+        try {
+            apply(session, fo);
+        } finally {
+            Metrics.histogram(applyMetric(fo)).recordSince(start);
+        }
+    }
+
+    private void apply(SessionHandler session, FileOperation fo) throws IOException {
+        Path oldPath = session.getVolume().resolve(fo.getOldEntityPath());
+        Path newPath = session.getVolume().resolve(fo.getNewEntityPath());
+
+        if (fo.getEntity() == FileOperation.Entity.FILE) {
+            switch (fo.getType()) {
+                case CREATE, MODIFY -> {
+                    String reason = session.checkUploadAllowed(oldPath, fo.getSize());
+                    if (reason == null) {
+                        session.startUpload(oldPath, fo.getSize());
+                    } else {
+                        System.out.println("Upload rejected (" + reason + "): " + fo);
+                        session.rejectUpload(oldPath);
+                        Message m = new Message();
+                        m.setOperation(FileOperation.rejected(fo));
+                        session.getChannel().writeAndFlush(m);
                     }
-                    case COPY -> {
-                        if (Files.exists(oldPath)) Files.copy(oldPath, newPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+                case DELETE -> {
+                    if (Files.exists(oldPath)) {
+                        session.addUsedBytes(-Files.size(oldPath));
+                        Path toRecycle = Path.of(session.getUserRecycleBinDirectory() + addPrefixForDeletingFile(oldPath.getFileName()));
+                        Files.move(oldPath, toRecycle);
+                        session.recordChange(oldPath);
                     }
-                    case MOVE_TO -> {
-                        if (Files.exists(oldPath)) Files.move(oldPath, newPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+                case RENAME -> {
+                    if (Files.exists(oldPath)) moved(session, oldPath, Files.move(oldPath, oldPath.resolveSibling(newPath.getFileName())));
+                }
+                case COPY -> {
+                    if (Files.exists(oldPath)) {
+                        long replaced = Files.exists(newPath) ? Files.size(newPath) : 0;
+                        session.getVolume().getCloner().clone(oldPath, newPath);
+                        session.addUsedBytes(Files.size(newPath) - replaced);
+                        session.recordChange(newPath);
                     }
                 }
-            } else if (fo.getEntity() == FileOperation.Entity.DIRECTORY) {
-                switch (msg.getOperation().getType()) {
-                    case CREATE -> checkDirectory(oldPath);
-                    case DELETE -> Files.deleteIfExists(oldPath);
-                    case RENAME -> {
-                        if (Files.exists(oldPath)) Files.move(oldPath, oldPath.resolveSibling(newPath.getFileName()));
+                case MOVE_TO -> {
+                    if (Files.exists(oldPath)) {
+                        // заменяемый файл перестает занимать место пользователя
+                        if (Files.isRegularFile(newPath) && !Files.isSameFile(oldPath, newPath)) session.addUsedBytes(-Files.size(newPath));
+                        moved(session, oldPath, Files.move(oldPath, newPath, StandardCopyOption.REPLACE_EXISTING));
                     }
-                    case MOVE_TO -> {
-                        if (Files.exists(oldPath)) Files.move(oldPath, newPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } else if (fo.getEntity() == FileOperation.Entity.DIRECTORY) {
+            switch (fo.getType()) {
+                case CREATE -> {
+                    checkDirectory(oldPath);
+                    session.recordChange(oldPath);
+                }
+                case DELETE -> {
+                    if (Files.exists(oldPath)) {
+                        session.addUsedBytes(-directorySize(oldPath));
+                        Path toRecycle = Path.of(session.getUserRecycleBinDirectory() + addPrefixForDeletingFile(oldPath.getFileName()));
+                        Files.move(oldPath, toRecycle);
+                        session.recordChange(oldPath);
                     }
                 }
+                case RENAME -> {
+                    if (Files.exists(oldPath)) moved(session, oldPath, Files.move(oldPath, oldPath.resolveSibling(newPath.getFileName())));
+                }
+                case MOVE_TO -> {
+                    if (Files.exists(oldPath)) moved(session, oldPath, Files.move(oldPath, newPath, StandardCopyOption.REPLACE_EXISTING));
+                }
             }
         }
     }
 
+    private CompletableFuture<Path> finishUpload(SessionHandler session, FileOperation fo) {
+        Path path = session.getVolume().resolve(fo.getOldEntityPath());
+        Upload upload = session.removeUpload(path);
+        if (upload == null) {
+            if (!session.clearRejectedUpload(path)) System.out.println("No active upload for " + fo.getOldEntityPath());
+            return null;
+        }
+        session.getVolume().getWriteBehind().flush(upload);
+        return session.getVolume().commit(upload)
+                .thenApply(p -> {
+                    session.addUsedBytes(upload.getLength() - upload.getReplacedSize());
+                    session.recordChange(p);
+                    return p;
+                });
+    }
+
+    private static String applyMetric(FileOperation fo) {
+        return "server.apply." + fo.getEntity().name().toLowerCase() + "." + fo.getType().name().toLowerCase() + ".nanos";
+    }
+
+    private void moved(SessionHandler session, Path from, Path to) {
+        session.recordChange(from);
+        session.recordChange(to);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         super.exceptionCaught(ctx, cause);
     }
 
-    private void checkFile(Path path, boolean forceCreate) throws IOException {
-        checkDirectory(path.getParent());
-        if (forceCreate) {
-            Files.deleteIfExists(path);
-        }
-        if (!Files.exists(path)) {
-            Files.createFile(path);
-        }
-    }
-
     private void checkDirectory(Path path) throws IOException {
         Files.createDirectories(path);
     }
 
+    private long directorySize(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
     private String addPrefixForDeletingFile(Path filename) {
         return "\\$" + System.currentTimeMillis() + "_" + filename.toString();
     }
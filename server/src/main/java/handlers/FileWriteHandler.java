@@ -5,16 +5,26 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import network.Message;
 import server.Server;
 import operations.FileOperation;
+import storage.Upload;
 
-import java.io.RandomAccessFile;
+import java.nio.file.Path;
 
 public class FileWriteHandler extends SimpleChannelInboundHandler<Message> {
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, Message msg) throws Exception {
-        try (RandomAccessFile accessFile = new RandomAccessFile(Server.getWorkDirectory() + "\\" + ((FileOperation) msg.getOperation()).getOldEntityPath(), "rw")) {
-            accessFile.seek(msg.getPosition());
-            accessFile.write(msg.getFile());
-        }
+        SessionHandler session = Server.getSession(ctx.channel().id().asShortText());
+        Path path = session.getVolume().resolve(((FileOperation) msg.getOperation()).getOldEntityPath());
+        byte[] data = msg.getFile() == null ? new byte[0] : msg.getFile();
+        long position = msg.getPosition();
+        session.addBytesReceived(data.length);
+        session.getVolume().getWriteScheduler().submit(session.getUsername(), ctx.channel(), data.length, 0, () -> {
+            Upload upload = session.getUpload(path);
+            if (upload == null) {
+                if (!session.isUploadRejected(path)) System.out.println("No active upload for " + path);
+                return;
+            }
+            session.getVolume().getWriteBehind().write(upload, position, data);
+        });
         ctx.pipeline().remove(this);
     }
 
@@ -1,28 +1,71 @@
 package handlers;
 
+import files.ChangeJournal;
+import files.UsageCounter;
 import files.UserFilesList;
 import io.netty.channel.Channel;
+import metrics.Counter;
+import metrics.Metrics;
 import server.Server;
+import storage.StorageVolume;
+import storage.Upload;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Сессия авторизованного пользователя. Пока сессия открыта, ее объем принятых данных и средняя скорость приема
+ * доступны в метриках session.пользователь.канал.bytesReceived и .bytesPerSecond.
+ */
 public class SessionHandler {
 
+    private static final long FREE_SPACE_RESERVE = Long.getLong("cloudstorage.storage.reserveBytes", 64L * 1024 * 1024);
+    private static final Counter RECEIVED_BYTES = Metrics.counter("server.received.bytes");
+
     private final Channel channel;
     private final String username;
+    private final StorageVolume volume;
     private final Path userDirectory;
     private final Path userRecycleBinDirectory;
-    private final UserFilesList userFiles;
+    private final ChangeJournal journal;
+    private UserFilesList userFiles;
+    private final Map<Path, Upload> uploads;
+    private final Set<Path> rejectedUploads;
+    private final UsageCounter usedBytes;
+    private final LongAdder bytesReceived = new LongAdder();
+    private final long startedAt = System.nanoTime();
 
-    public SessionHandler(Channel channel, String username) {
+    public SessionHandler(Channel channel, String username, StorageVolume volume) {
         this.channel = channel;
         this.username = username;
-        this.userDirectory = Path.of(Server.getWorkDirectory() + "\\" + username);
-        this.userRecycleBinDirectory = Path.of(Server.getWorkDirectory() + "\\$recycled\\" + username);
+        this.volume = volume;
+        this.userDirectory = volume.getUserDirectory(username);
+        this.userRecycleBinDirectory = volume.getUserRecycleBinDirectory(username);
+        this.journal = volume.getJournal(username);
         initUserDirs();
-        this.userFiles = new UserFilesList(userDirectory);
+        this.uploads = new ConcurrentHashMap<>();
+        this.rejectedUploads = ConcurrentHashMap.newKeySet();
+        this.usedBytes = volume.getUsage(username);
+        String metricsPrefix = "session." + username + "." + channel.id().asShortText() + ".";
+        Metrics.gauge(metricsPrefix + "bytesReceived", bytesReceived::sum);
+        Metrics.gauge(metricsPrefix + "bytesPerSecond", this::getBytesPerSecond);
+        channel.closeFuture().addListener(f -> Metrics.removeGauges(metricsPrefix));
+        channel.closeFuture().addListener(f -> volume.getWriteScheduler().submitAsync(username, null, 0, 0, () -> {
+            abortUploads();
+            // том освобождается (и пользователя можно переносить) только после фиксации уже принятых файлов
+            CompletableFuture<Void> committed = volume.awaitCommits(userDirectory);
+            if (committed == null) {
+                Server.getVolumeManager().release(username);
+                return null;
+            }
+            return committed.thenRun(() -> Server.getVolumeManager().release(username));
+        }));
     }
 
     private void initUserDirs() {
@@ -42,6 +85,10 @@ public class SessionHandler {
         return username;
     }
 
+    public StorageVolume getVolume() {
+        return volume;
+    }
+
     public Path getUserDirectory() {
         return userDirectory;
     }
@@ -50,7 +97,127 @@ public class SessionHandler {
         return userRecycleBinDirectory;
     }
 
-    public UserFilesList getUserFiles() {
+    /**
+     * Проверяет, можно ли принять файл заявленного размера с учетом квоты пользователя и свободного места на томе.
+     *
+     * @return причина отказа или null, если файл можно принять
+     */
+    public String checkUploadAllowed(Path target, long expectedSize) throws IOException {
+        if (expectedSize <= 0) return null;
+        long quota = Server.getIngestLimits().forUser(username).getQuotaBytes();
+        long replaced = Files.exists(target) ? Files.size(target) : 0;
+        if (quota > 0 && usedBytes.get() - replaced + expectedSize > quota) return "Quota exceeded";
+        if (volume.getUsableSpace() - expectedSize < FREE_SPACE_RESERVE) return "Not enough free space";
+        return null;
+    }
+
+    /**
+     * Начинает загрузку файла. Незавершенная загрузка того же файла прерывается.
+     */
+    public Upload startUpload(Path target, long expectedSize) throws IOException {
+        Upload previous = uploads.remove(target);
+        if (previous != null) abort(previous);
+        rejectedUploads.remove(target);
+        Upload upload = Upload.start(target, volume.newTempFile("upload"), expectedSize);
+        uploads.put(target, upload);
+        return upload;
+    }
+
+    public void rejectUpload(Path target) {
+        Upload previous = uploads.remove(target);
+        if (previous != null) abort(previous);
+        rejectedUploads.add(target);
+    }
+
+    /**
+     * @return true - если загрузка файла была отклонена, и его содержимое нужно пропускать
+     */
+    public boolean isUploadRejected(Path target) {
+        return rejectedUploads.contains(target);
+    }
+
+    public boolean clearRejectedUpload(Path target) {
+        return rejectedUploads.remove(target);
+    }
+
+    /**
+     * Учитывает изменение объема файлов пользователя (общего для всех его сессий).
+     */
+    public void addUsedBytes(long delta) {
+        usedBytes.add(delta);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Учитывает содержимое файла, принятое от клиента.
+     */
+    public void addBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+        RECEIVED_BYTES.add(bytes);
+    }
+
+    /**
+     * @return средняя скорость приема содержимого файлов с начала сессии
+     */
+    public long getBytesPerSecond() {
+        long nanos = System.nanoTime() - startedAt;
+        return nanos <= 0 ? 0 : (long) (bytesReceived.sum() * 1_000_000_000.0 / nanos);
+    }
+
+    public Upload getUpload(Path target) {
+        return uploads.get(target);
+    }
+
+    public Upload removeUpload(Path target) {
+        return uploads.remove(target);
+    }
+
+    /**
+     * Прерывает загрузку файла, если она есть (временный файл удаляется, целевой файл не меняется).
+     */
+    public void abortUpload(Path target) {
+        Upload upload = uploads.remove(target);
+        if (upload != null) abort(upload);
+        rejectedUploads.remove(target);
+    }
+
+    /**
+     * Прерывает все незавершенные загрузки сессии (например, при разрыве соединения).
+     */
+    public void abortUploads() {
+        for (Upload upload : uploads.values()) {
+            abort(upload);
+        }
+        uploads.clear();
+    }
+
+    private void abort(Upload upload) {
+        volume.getWriteBehind().discard(upload);
+        upload.abort();
+    }
+
+    /**
+     * Полный перечень файлов строится при первом обращении: клиенту, получающему изменения по журналу, он не нужен.
+     */
+    public synchronized UserFilesList getUserFiles() {
+        if (userFiles == null) userFiles = new UserFilesList(userDirectory);
         return userFiles;
     }
+
+    public ChangeJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Записывает в журнал изменение файла или директории пользователя.
+     *
+     * @param path абсолютный путь
+     */
+    public void recordChange(Path path) {
+        String key = path.toString().replace(userDirectory.toString(), "");
+        if (!key.isEmpty()) journal.record(key);
+    }
 }
@@ -0,0 +1,45 @@
+package handlers;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import metrics.MetricValue;
+import metrics.Metrics;
+import network.Message;
+import operations.OperationType;
+import operations.StatsOperation;
+import server.Server;
+import utils.ThreadPool;
+import utils.WorkloadType;
+
+import java.util.List;
+
+/**
+ * Отвечает на запрос метрик (STATS_REQUEST) срезом реестра Metrics; остальные сообщения передает дальше.
+ * Метрики отдаются только авторизованной сессии, причем из показателей сессий (session.*) - только показатели
+ * ее пользователя, чтобы ответ не раскрывал имена других пользователей. Срез собирается в пуле NETWORK,
+ * а не в потоке канала.
+ */
+public class StatsHandler extends ChannelInboundHandlerAdapter {
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof Message m && m.getOperation() != null && m.getOperation().getType() == OperationType.STATS_REQUEST) {
+            SessionHandler session = Server.getSession(ctx.channel().id().asShortText());
+            if (session == null) {
+                System.out.println("Stats request before authorization ignored: " + ctx.channel().remoteAddress());
+                return;
+            }
+            String ownSessions = "session." + session.getUsername() + ".";
+            ThreadPool.submit(WorkloadType.NETWORK, () -> {
+                List<MetricValue> metrics = Metrics.snapshot().stream()
+                        .filter(v -> !v.getName().startsWith("session.") || v.getName().startsWith(ownSessions))
+                        .toList();
+                Message response = new Message();
+                response.setOperation(StatsOperation.response(metrics));
+                return ctx.writeAndFlush(response);
+            });
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+}
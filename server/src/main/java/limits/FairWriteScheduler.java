@@ -0,0 +1,235 @@
+package limits;
+
+import io.netty.channel.Channel;
+import utils.ThreadPool;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Планировщик дисковой записи, справедливо распределяющий её между пользователями
+ * по алгоритму Deficit Round Robin с учетом весов и ограничений из IngestLimits.
+ * Задачи одного пользователя выполняются строго по очереди, в порядке поступления.
+ * Если у пользователя накопилось слишком много невыполненной работы, чтение из его канала
+ * приостанавливается (autoRead = false) до тех пор, пока очередь не разгрузится.
+ */
+public class FairWriteScheduler {
+
+    private static final long QUANTUM = 1024 * 1024;
+    private static final long METADATA_COST = 4 * 1024;
+    private static final int MAX_VISITS = 4096;
+
+    private final Executor executor;
+    private final int maxInFlight;
+    private final IngestLimits limits;
+    private final long highWatermark = Long.getLong("cloudstorage.ingest.highWatermark", 32L * 1024 * 1024);
+    private final long lowWatermark = Long.getLong("cloudstorage.ingest.lowWatermark", 8L * 1024 * 1024);
+    private final Map<String, UserQueue> queues = new HashMap<>();
+    private final ArrayDeque<UserQueue> ready = new ArrayDeque<>();
+    private int inFlight;
+    private ScheduledFuture<?> retry;
+    private long retryAt;
+
+    /**
+     * @param executor    пул, в котором выполняются задачи записи
+     * @param maxInFlight максимальное количество одновременно выполняемых задач
+     * @param limits      ограничения пользователей
+     */
+    public FairWriteScheduler(Executor executor, int maxInFlight, IngestLimits limits) {
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.limits = limits;
+    }
+
+    /**
+     * Ставит задачу в очередь пользователя.
+     *
+     * @param username   имя пользователя
+     * @param channel    канал, из которого пришла задача (для обратного давления)
+     * @param bytes      объем записываемых данных
+     * @param operations количество операций, учитываемых ограничением частоты операций
+     * @param task       задача
+     */
+    public void submit(String username, Channel channel, long bytes, int operations, IOTask task) {
+        submitAsync(username, channel, bytes, operations, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Ставит в очередь пользователя задачу, которая завершается асинхронно.
+     * Следующая задача пользователя не начнется, пока не завершится возвращенный задачей future,
+     * но поток пула освобождается сразу.
+     *
+     * @param username   имя пользователя
+     * @param channel    канал, из которого пришла задача (для обратного давления)
+     * @param bytes      объем записываемых данных
+     * @param operations количество операций, учитываемых ограничением частоты операций
+     * @param task       задача, возвращающая future своего завершения (или null, если она уже завершена)
+     */
+    public void submitAsync(String username, Channel channel, long bytes, int operations, AsyncIOTask task) {
+        WriteTask writeTask = new WriteTask(bytes, operations, task);
+        synchronized (this) {
+            UserQueue q = queues.computeIfAbsent(username, u -> new UserQueue(u, limits.forUser(u)));
+            boolean wasIdle = q.tasks.isEmpty() && !q.busy;
+            q.tasks.addLast(writeTask);
+            q.pendingBytes += writeTask.cost;
+            if (wasIdle) ready.addLast(q);
+            if (q.pendingBytes > highWatermark && channel != null && q.pausedChannels.add(channel)) {
+                channel.config().setAutoRead(false);
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * @return объем работы, ожидающей выполнения у всех пользователей
+     */
+    public synchronized long getPendingBytes() {
+        long result = 0;
+        for (UserQueue q : queues.values()) {
+            result += q.pendingBytes;
+        }
+        return result;
+    }
+
+    public synchronized long getPendingBytes(String username) {
+        UserQueue q = queues.get(username);
+        return q == null ? 0 : q.pendingBytes;
+    }
+
+    private void dispatch() {
+        List<Runnable> toRun = new ArrayList<>();
+        synchronized (this) {
+            long minWait = Long.MAX_VALUE;
+            while (inFlight < maxInFlight && !ready.isEmpty()) {
+                List<UserQueue> throttled = new ArrayList<>();
+                UserQueue picked = null;
+                for (int i = 0; picked == null && !ready.isEmpty() && i < MAX_VISITS; i++) {
+                    UserQueue q = ready.pollFirst();
+                    WriteTask head = q.tasks.peekFirst();
+                    long wait = q.limits.nanosUntilAllowed(head.bytes, head.operations);
+                    if (wait > 0) {
+                        throttled.add(q);
+                        minWait = Math.min(minWait, wait);
+                    } else if (q.deficit < head.cost) {
+                        q.deficit += QUANTUM * q.limits.getWeight();
+                        ready.addLast(q);
+                    } else {
+                        picked = q;
+                    }
+                }
+                ready.addAll(throttled);
+                if (picked == null) break;
+
+                WriteTask task = picked.tasks.pollFirst();
+                picked.deficit -= task.cost;
+                picked.limits.consume(task.bytes, task.operations);
+                picked.busy = true;
+                inFlight++;
+                UserQueue q = picked;
+                toRun.add(() -> run(q, task));
+            }
+            if (toRun.isEmpty() && minWait != Long.MAX_VALUE) scheduleRetry(minWait);
+        }
+        for (Runnable r : toRun) {
+            executor.execute(r);
+        }
+    }
+
+    private void run(UserQueue q, WriteTask task) {
+        CompletableFuture<?> pending = null;
+        try {
+            pending = task.task.run();
+        } catch (Exception e) {
+            logProblem(q, e);
+        } finally {
+            synchronized (this) {
+                inFlight--;
+            }
+            if (pending == null) {
+                complete(q, task);
+            } else {
+                dispatch();
+                pending.whenComplete((result, e) -> {
+                    if (e != null) logProblem(q, e);
+                    complete(q, task);
+                });
+            }
+        }
+    }
+
+    private void logProblem(UserQueue q, Throwable e) {
+        System.out.println("Problem occurred while processing task of user " + q.username + ": " + e.getCause() + " | " + e.getMessage());
+    }
+
+    private void complete(UserQueue q, WriteTask task) {
+        synchronized (this) {
+            q.busy = false;
+            q.pendingBytes -= task.cost;
+            if (!q.tasks.isEmpty()) {
+                ready.addLast(q);
+            } else {
+                q.deficit = 0;
+            }
+            if (q.pendingBytes <= lowWatermark && !q.pausedChannels.isEmpty()) {
+                for (Channel channel : q.pausedChannels) {
+                    channel.config().setAutoRead(true);
+                }
+                q.pausedChannels.clear();
+            }
+        }
+        dispatch();
+    }
+
+    private void scheduleRetry(long nanos) {
+        long at = System.nanoTime() + nanos;
+        if (retry != null && !retry.isDone() && retryAt <= at) return;
+        if (retry != null) retry.cancel(false);
+        retryAt = at;
+        retry = ThreadPool.schedule(this::dispatch, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @FunctionalInterface
+    public interface IOTask {
+        void run() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface AsyncIOTask {
+        CompletableFuture<?> run() throws Exception;
+    }
+
+    private static class WriteTask {
+        private final long bytes;
+        private final int operations;
+        private final long cost;
+        private final AsyncIOTask task;
+
+        private WriteTask(long bytes, int operations, AsyncIOTask task) {
+            this.bytes = bytes;
+            this.operations = operations;
+            this.cost = Math.max(bytes, METADATA_COST);
+            this.task = task;
+        }
+    }
+
+    private static class UserQueue {
+        private final String username;
+        private final UserLimits limits;
+        private final ArrayDeque<WriteTask> tasks = new ArrayDeque<>();
+        private final Set<Channel> pausedChannels = new HashSet<>();
+        private long deficit;
+        private long pendingBytes;
+        private boolean busy;
+
+        private UserQueue(String username, UserLimits limits) {
+            this.username = username;
+            this.limits = limits;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package limits;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Реестр ограничений на прием данных для всех пользователей.
+ * Значения по умолчанию задаются системными свойствами cloudstorage.ingest.bytesPerSecond,
+ * cloudstorage.ingest.operationsPerSecond, cloudstorage.ingest.weight и cloudstorage.quota.bytes (0 - без ограничения).
+ */
+public class IngestLimits {
+
+    private volatile long defaultBytesPerSecond = Long.getLong("cloudstorage.ingest.bytesPerSecond", 0);
+    private volatile long defaultOperationsPerSecond = Long.getLong("cloudstorage.ingest.operationsPerSecond", 0);
+    private volatile int defaultWeight = Integer.getInteger("cloudstorage.ingest.weight", 1);
+    private volatile long defaultQuotaBytes = Long.getLong("cloudstorage.quota.bytes", 0);
+    private final Map<String, UserLimits> users = new ConcurrentHashMap<>();
+
+    public UserLimits forUser(String username) {
+        return users.computeIfAbsent(username, u -> {
+            UserLimits limits = new UserLimits(defaultBytesPerSecond, defaultOperationsPerSecond, defaultWeight);
+            limits.setQuotaBytes(defaultQuotaBytes);
+            return limits;
+        });
+    }
+
+    /**
+     * Устанавливает квоту пользователя на объем файлов (0 - без ограничения).
+     */
+    public void setUserQuota(String username, long quotaBytes) {
+        forUser(username).setQuotaBytes(quotaBytes);
+    }
+
+    /**
+     * Меняет квоту по умолчанию для новых пользователей.
+     */
+    public void setDefaultQuota(long quotaBytes) {
+        this.defaultQuotaBytes = quotaBytes;
+    }
+
+    /**
+     * Устанавливает индивидуальные ограничения пользователя. Новые значения применяются сразу.
+     */
+    public void setUserLimits(String username, long bytesPerSecond, long operationsPerSecond, int weight) {
+        UserLimits limits = forUser(username);
+        limits.update(bytesPerSecond, operationsPerSecond, weight);
+        limits.setCustom(true);
+    }
+
+    /**
+     * Возвращает пользователю ограничения по умолчанию.
+     */
+    public void resetUserLimits(String username) {
+        UserLimits limits = forUser(username);
+        limits.setCustom(false);
+        limits.update(defaultBytesPerSecond, defaultOperationsPerSecond, defaultWeight);
+    }
+
+    /**
+     * Меняет ограничения по умолчанию, в том числе для всех пользователей без индивидуальных ограничений.
+     */
+    public void setDefaultLimits(long bytesPerSecond, long operationsPerSecond, int weight) {
+        this.defaultBytesPerSecond = bytesPerSecond;
+        this.defaultOperationsPerSecond = operationsPerSecond;
+        this.defaultWeight = weight;
+        for (UserLimits limits : users.values()) {
+            if (!limits.isCustom()) limits.update(bytesPerSecond, operationsPerSecond, weight);
+        }
+    }
+
+    public Map<String, UserLimits> getAllLimits() {
+        return Map.copyOf(users);
+    }
+}
@@ -0,0 +1,85 @@
+package limits;
+
+import utils.TokenBucket;
+
+/**
+ * Ограничения пользователя на прием данных: пропускная способность (байт/с), число операций в секунду,
+ * вес пользователя при распределении дисковой записи и квота на объем хранимых файлов.
+ * Значения можно менять во время работы сервера.
+ */
+public class UserLimits {
+
+    private final TokenBucket bandwidth;
+    private final TokenBucket operations;
+    private volatile long bytesPerSecond;
+    private volatile long operationsPerSecond;
+    private volatile int weight;
+    private volatile long quotaBytes;
+    private volatile boolean custom;
+
+    UserLimits(long bytesPerSecond, long operationsPerSecond, int weight) {
+        this.bandwidth = new TokenBucket(bytesPerSecond, bytesPerSecond);
+        this.operations = new TokenBucket(operationsPerSecond, operationsPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+        this.operationsPerSecond = operationsPerSecond;
+        this.weight = Math.max(1, weight);
+    }
+
+    void update(long bytesPerSecond, long operationsPerSecond, int weight) {
+        this.bandwidth.setRate(bytesPerSecond, bytesPerSecond);
+        this.operations.setRate(operationsPerSecond, operationsPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+        this.operationsPerSecond = operationsPerSecond;
+        this.weight = Math.max(1, weight);
+    }
+
+    long nanosUntilAllowed(long bytes, int operationsCount) {
+        return Math.max(bandwidth.nanosUntilAvailable(bytes), operations.nanosUntilAvailable(operationsCount));
+    }
+
+    void consume(long bytes, int operationsCount) {
+        if (bytes > 0) bandwidth.consume(bytes);
+        if (operationsCount > 0) operations.consume(operationsCount);
+    }
+
+    void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
+
+    boolean isCustom() {
+        return custom;
+    }
+
+    void setCustom(boolean custom) {
+        this.custom = custom;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getOperationsPerSecond() {
+        return operationsPerSecond;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return квота на объем файлов пользователя в байтах (0 - без ограничения)
+     */
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "UserLimits{" +
+                "bytesPerSecond=" + bytesPerSecond +
+                ", operationsPerSecond=" + operationsPerSecond +
+                ", weight=" + weight +
+                ", quotaBytes=" + quotaBytes +
+                '}';
+    }
+}
@@ -12,17 +12,33 @@ import handlers.AuthenticateHandler;
 import network.JSONDecoder;
 import network.JSONEncoder;
 import handlers.SessionHandler;
+import handlers.StatsHandler;
+import limits.IngestLimits;
+import metrics.Metrics;
+import storage.PlacementStrategy;
+import storage.RecycleBinManager;
+import storage.VolumeManager;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Server {
     private static final String WORK_DIRECTORY = System.getProperty("user.home") + "\\CloudStorageGBProject\\ServerDir";
-    private static final Map<String, SessionHandler> sessions = new HashMap<>();
+    private static final Map<String, SessionHandler> sessions = new ConcurrentHashMap<>();
+    private static final IngestLimits ingestLimits = new IngestLimits();
+    private static final VolumeManager volumeManager = createVolumeManager();
+    private static final RecycleBinManager recycleBinManager = new RecycleBinManager(volumeManager, ingestLimits);
 
 
     public void start() throws InterruptedException {
         startUtilizeTask();
+        Metrics.registerMBean();
+        Metrics.gauge("server.sessions", sessions::size);
+        recycleBinManager.start();
         NioEventLoopGroup bossGroup = new NioEventLoopGroup(1);
         NioEventLoopGroup workerGroup = new NioEventLoopGroup();
 
@@ -46,6 +62,7 @@ public class Server {
                                     new ByteArrayEncoder(),
                                     new JSONDecoder(),
                                     new JSONEncoder(),
+                                    new StatsHandler(),
                                     new AuthenticateHandler()
                             );
                         }
@@ -57,15 +74,13 @@ public class Server {
 
             channelFuture.channel().closeFuture().sync();
         } finally {
+            recycleBinManager.stop();
+            volumeManager.shutdown();
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
         }
     }
 
-    public static String getWorkDirectory() {
-        return WORK_DIRECTORY;
-    }
-
     public static SessionHandler getSession(String sessionId) {
         return sessions.get(sessionId);
     }
@@ -78,10 +93,39 @@ public class Server {
         return getSession(sessionId).getUserRecycleBinDirectory();
     }
 
+    public static IngestLimits getIngestLimits() {
+        return ingestLimits;
+    }
+
+    public static VolumeManager getVolumeManager() {
+        return volumeManager;
+    }
+
+    public static RecycleBinManager getRecycleBinManager() {
+        return recycleBinManager;
+    }
+
     public static void addSession(String sessionId, SessionHandler session) {
         sessions.put(sessionId, session);
     }
 
+    /**
+     * Тома хранилища задаются системным свойством cloudstorage.volumes (пути, разделенные File.pathSeparator),
+     * способ размещения пользователей - свойством cloudstorage.placement (CONSISTENT_HASH или LEAST_USED).
+     */
+    private static VolumeManager createVolumeManager() {
+        List<Path> roots = new ArrayList<>();
+        for (String root : System.getProperty("cloudstorage.volumes", WORK_DIRECTORY).split(File.pathSeparator)) {
+            if (!root.isBlank()) roots.add(Path.of(root.trim()));
+        }
+        PlacementStrategy strategy = PlacementStrategy.valueOf(System.getProperty("cloudstorage.placement", PlacementStrategy.CONSISTENT_HASH.name()));
+        try {
+            return new VolumeManager(roots, strategy, ingestLimits);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to initialize storage volumes", e);
+        }
+    }
+
     private void startUtilizeTask() {
         Timer utilizeTimer = new Timer(true);
         utilizeTimer.schedule(new TimerTask() {
@@ -0,0 +1,42 @@
+package storage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Кольцо согласованного хеширования с виртуальными узлами.
+ */
+class ConsistentHashRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, StorageVolume> ring = new TreeMap<>();
+
+    void add(StorageVolume volume) {
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(volume.getRoot() + "#" + i), volume);
+        }
+    }
+
+    StorageVolume locate(String key) {
+        if (ring.isEmpty()) return null;
+        Map.Entry<Long, StorageVolume> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xFF);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
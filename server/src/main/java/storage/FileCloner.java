@@ -0,0 +1,180 @@
+package storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Создание копий файлов внутри тома без копирования данных.
+ * Используется, по возможности, клонирование блоков (reflink: Btrfs, XFS, ...), иначе - обычное копирование,
+ * пропускающее нулевые блоки (они остаются "дырами").
+ * Клонирование выполняется командой "cp --reflink=always" (GNU coreutils, поэтому только в Linux) - отдельным процессом
+ * на каждую копию; оно используется, только если пробное клонирование на томе удалось.
+ * Жесткая ссылка (режим link) включается только явно: копией "при записи" она остается, пока зафиксированные файлы
+ * изменяются лишь через временный файл и переименование (см. Upload, GroupCommitter), а изменение на месте
+ * (например, вне сервера) затронет все копии; кроме того, в занятом пользователем объеме каждая ссылка
+ * учитывается как отдельный файл.
+ * Способ задается системным свойством cloudstorage.copy.mode (auto, reflink, link, copy).
+ */
+public class FileCloner {
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final boolean IS_LINUX = System.getProperty("os.name").toLowerCase().startsWith("linux");
+
+    private final Path volumeRoot;
+    private final Function<String, Path> tempFiles;
+    private final String configuredMode = System.getProperty("cloudstorage.copy.mode", "auto").toLowerCase();
+    private volatile Boolean reflinkSupported;
+    private volatile Boolean linkSupported;
+
+    /**
+     * @param volumeRoot корень тома
+     * @param tempFiles  источник путей временных файлов тома (StorageVolume.newTempFile)
+     */
+    FileCloner(Path volumeRoot, Function<String, Path> tempFiles) {
+        this.volumeRoot = volumeRoot;
+        this.tempFiles = tempFiles;
+    }
+
+    public enum Method {
+        REFLINK, HARD_LINK, SPARSE_COPY
+    }
+
+    /**
+     * Создает (или заменяет) target копией source.
+     *
+     * @param source исходный файл
+     * @param target файл-копия
+     * @return способ, которым была сделана копия
+     * @throws IOException если копию создать не удалось
+     */
+    public Method clone(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = tempFiles.apply("clone");
+        Files.deleteIfExists(temp);
+        Method method;
+        try {
+            if (isReflinkAllowed() && reflink(source, temp)) {
+                method = Method.REFLINK;
+            } else if (isLinkAllowed() && link(source, temp)) {
+                method = Method.HARD_LINK;
+            } else {
+                sparseCopy(source, temp);
+                method = Method.SPARSE_COPY;
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return method;
+    }
+
+    private boolean isReflinkAllowed() {
+        if (!configuredMode.equals("auto") && !configuredMode.equals("reflink")) return false;
+        if (reflinkSupported == null) {
+            reflinkSupported = IS_LINUX && probe(true);
+            if (!reflinkSupported && configuredMode.equals("reflink")) {
+                System.out.println("Reflink is not supported on " + volumeRoot + ", files will be copied.");
+            }
+        }
+        return reflinkSupported;
+    }
+
+    private boolean isLinkAllowed() {
+        if (!configuredMode.equals("link")) return false;
+        if (linkSupported == null) linkSupported = probe(false);
+        return linkSupported;
+    }
+
+    private boolean probe(boolean reflink) {
+        Path source = tempFiles.apply("probe");
+        Path target = tempFiles.apply("probe");
+        try {
+            Files.write(source, new byte[]{1});
+            Files.deleteIfExists(target);
+            return reflink ? reflink(source, target) : link(source, target);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(source);
+            } catch (IOException e) {
+                // do nothing
+            }
+        }
+    }
+
+    private static boolean reflink(Path source, Path target) {
+        try {
+            Process process = new ProcessBuilder("cp", "--reflink=always", source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                return false;
+            }
+            return process.exitValue() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean link(Path source, Path target) {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static void sparseCopy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             RandomAccessFile out = new RandomAccessFile(target.toFile(), "rw")) {
+            FileChannel outChannel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                buffer.clear();
+                int read = in.read(buffer, position);
+                if (read <= 0) break;
+                buffer.flip();
+                if (!isZeroBlock(buffer)) {
+                    long pos = position;
+                    while (buffer.hasRemaining()) {
+                        pos += outChannel.write(buffer, pos);
+                    }
+                }
+                position += read;
+            }
+            out.setLength(size);
+        }
+    }
+
+    private static boolean isZeroBlock(ByteBuffer buffer) {
+        int i = buffer.position();
+        int limit = buffer.limit();
+        for (; i + Long.BYTES <= limit; i += Long.BYTES) {
+            if (buffer.getLong(i) != 0) return false;
+        }
+        for (; i < limit; i++) {
+            if (buffer.get(i) != 0) return false;
+        }
+        return true;
+    }
+}
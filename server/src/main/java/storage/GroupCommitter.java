@@ -0,0 +1,125 @@
+package storage;
+
+import utils.ThreadPool;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Групповая фиксация завершенных загрузок тома.
+ * Загрузки копятся в пакет, который фиксируется по истечении интервала (cloudstorage.commit.intervalMillis)
+ * или при достижении размера (cloudstorage.commit.maxBatch): сначала данные всех файлов пакета сбрасываются на диск,
+ * затем временные файлы атомарно переименовываются в целевые, после чего сбрасываются затронутые директории.
+ * Данные каждого файла сбрасываются отдельным fsync (объединить их средствами Java нельзя); общими для пакета
+ * становятся сброс директорий - по одному на директорию, а не на файл, - и одно пробуждение потока тома на пакет.
+ */
+public class GroupCommitter {
+
+    private final Executor executor;
+    private final long intervalMillis = Long.getLong("cloudstorage.commit.intervalMillis", 20);
+    private final int maxBatch = Integer.getInteger("cloudstorage.commit.maxBatch", 64);
+    private List<PendingCommit> pending = new ArrayList<>();
+    private ScheduledFuture<?> scheduledFlush;
+
+    GroupCommitter(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Добавляет загрузку в текущий пакет.
+     *
+     * @param upload завершенная загрузка
+     * @return future, который завершится после того, как файл окажется на своем месте и будет сброшен на диск
+     */
+    public CompletableFuture<Path> commit(Upload upload) {
+        PendingCommit commit = new PendingCommit(upload);
+        boolean flushNow;
+        synchronized (this) {
+            pending.add(commit);
+            flushNow = pending.size() >= maxBatch;
+            if (flushNow) {
+                if (scheduledFlush != null) scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            } else if (scheduledFlush == null) {
+                scheduledFlush = ThreadPool.schedule(() -> executor.execute(this::flush), intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) executor.execute(this::flush);
+        return commit.future;
+    }
+
+    private void flush() {
+        List<PendingCommit> batch;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            scheduledFlush = null;
+        }
+        if (batch.isEmpty()) return;
+
+        for (PendingCommit c : batch) {
+            try {
+                c.upload.force();
+                c.upload.close();
+            } catch (IOException e) {
+                c.fail(e);
+            }
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        for (PendingCommit c : batch) {
+            if (c.future.isDone()) continue;
+            try {
+                moveIntoPlace(c.upload);
+                directories.add(c.upload.getTarget().getParent());
+            } catch (IOException e) {
+                c.fail(e);
+            }
+        }
+        for (Path dir : directories) {
+            syncDirectory(dir);
+        }
+        for (PendingCommit c : batch) {
+            c.future.complete(c.upload.getTarget());
+        }
+    }
+
+    private static void moveIntoPlace(Upload upload) throws IOException {
+        try {
+            Files.move(upload.getTemp(), upload.getTarget(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(upload.getTemp(), upload.getTarget(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // некоторые ОС (например, Windows) не позволяют открыть директорию как файл - там это и не требуется
+        }
+    }
+
+    private static class PendingCommit {
+        private final Upload upload;
+        private final CompletableFuture<Path> future = new CompletableFuture<>();
+
+        private PendingCommit(Upload upload) {
+            this.upload = upload;
+        }
+
+        private void fail(IOException e) {
+            upload.abort();
+            future.completeExceptionally(e);
+        }
+    }
+}
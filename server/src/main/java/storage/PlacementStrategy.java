@@ -0,0 +1,16 @@
+package storage;
+
+/**
+ * Способ выбора тома для нового пользователя.
+ */
+public enum PlacementStrategy {
+    /**
+     * Том определяется хешем имени пользователя на кольце согласованного хеширования.
+     * При добавлении тома переезжает лишь часть пользователей.
+     */
+    CONSISTENT_HASH,
+    /**
+     * Выбирается том с наименьшей долей занятого места.
+     */
+    LEAST_USED
+}
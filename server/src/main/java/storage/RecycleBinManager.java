@@ -0,0 +1,268 @@
+package storage;
+
+import limits.IngestLimits;
+import utils.ThreadPool;
+import utils.TokenBucket;
+import utils.WorkloadType;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Фоновая очистка корзин пользователей ($recycled/&lt;user&gt;).
+ * Удаляет элементы старше заданного возраста, а также самые старые элементы, если корзина пользователя
+ * превысила допустимый объем. Скорость удаления ограничена. Удаление выполняется планировщиком записи тома
+ * в очереди псевдопользователя PURGE_USER, поэтому при записи пользовательских данных очистка получает долю
+ * ввода-вывода по своему весу (cloudstorage.recycle.weight), а не ждет окончания записи.
+ * Если корзина превысила допустимый объем или том заполнен больше чем на cloudstorage.recycle.forcePurgeUsedPercent
+ * процентов, удаление выполняется сразу, без очереди.
+ * Параметры задаются системными свойствами cloudstorage.recycle.* и могут меняться во время работы.
+ */
+public class RecycleBinManager {
+
+    /**
+     * Имя, под которым очистка ставит задачи в планировщик записи тома (ограничения и вес - в IngestLimits).
+     */
+    public static final String PURGE_USER = "$recycle";
+
+    private final VolumeManager volumeManager;
+    private final IngestLimits limits;
+    private final TokenBucket purgeBytes;
+    private final TokenBucket purgeFiles;
+    private volatile long maxAgeMillis = TimeUnit.HOURS.toMillis(Long.getLong("cloudstorage.recycle.maxAgeHours", 24 * 30));
+    private volatile long maxBytesPerUser = Long.getLong("cloudstorage.recycle.maxBytes", 0);
+    private volatile long scanIntervalMillis = TimeUnit.MINUTES.toMillis(Long.getLong("cloudstorage.recycle.scanIntervalMinutes", 10));
+    private volatile double forcePurgeUsedFraction = Integer.getInteger("cloudstorage.recycle.forcePurgeUsedPercent", 90) / 100.0;
+    private volatile boolean running;
+    private ScheduledFuture<?> nextScan;
+
+    public RecycleBinManager(VolumeManager volumeManager, IngestLimits limits) {
+        this.volumeManager = volumeManager;
+        this.limits = limits;
+        setPurgeWeight(Integer.getInteger("cloudstorage.recycle.weight", 1));
+        long bytesPerSecond = Long.getLong("cloudstorage.recycle.purgeBytesPerSecond", 64L * 1024 * 1024);
+        long filesPerSecond = Long.getLong("cloudstorage.recycle.purgeFilesPerSecond", 200);
+        this.purgeBytes = new TokenBucket(bytesPerSecond, bytesPerSecond);
+        this.purgeFiles = new TokenBucket(filesPerSecond, filesPerSecond);
+    }
+
+    public synchronized void start() {
+        running = true;
+        scheduleNext(scanIntervalMillis);
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (nextScan != null) nextScan.cancel(false);
+    }
+
+    /**
+     * @param maxAgeMillis    максимальный срок хранения элемента в корзине (0 - без ограничения)
+     * @param maxBytesPerUser максимальный объем корзины пользователя (0 - без ограничения)
+     */
+    public void setRetention(long maxAgeMillis, long maxBytesPerUser) {
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytesPerUser = maxBytesPerUser;
+    }
+
+    public void setPurgeRate(long bytesPerSecond, long filesPerSecond) {
+        purgeBytes.setRate(bytesPerSecond, bytesPerSecond);
+        purgeFiles.setRate(filesPerSecond, filesPerSecond);
+    }
+
+    /**
+     * @param weight доля ввода-вывода очистки относительно пользователей (вес в планировщике записи)
+     */
+    public void setPurgeWeight(int weight) {
+        limits.setUserLimits(PURGE_USER, 0, 0, weight);
+    }
+
+    /**
+     * @param usedFraction доля занятого места на томе (от 0 до 1), начиная с которой удаление выполняется без очереди
+     */
+    public void setForcePurgeThreshold(double usedFraction) {
+        this.forcePurgeUsedFraction = usedFraction;
+    }
+
+    public void setScanInterval(long scanIntervalMillis) {
+        this.scanIntervalMillis = scanIntervalMillis;
+    }
+
+    /**
+     * Запускает внеочередную очистку.
+     */
+    public void collectNow() {
+        ThreadPool.addTask(WorkloadType.STORAGE, this::collect);
+    }
+
+    private synchronized void scheduleNext(long delayMillis) {
+        if (!running) return;
+        nextScan = ThreadPool.schedule(() -> ThreadPool.addTask(WorkloadType.STORAGE, () -> {
+            try {
+                collect();
+            } finally {
+                scheduleNext(scanIntervalMillis);
+            }
+        }), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void collect() {
+        long start = System.currentTimeMillis();
+        long purged = 0;
+        for (StorageVolume volume : volumeManager.getVolumes()) {
+            Path bins = volume.getRoot().resolve(StorageVolume.RECYCLE_BIN_DIRECTORY);
+            if (!Files.isDirectory(bins)) continue;
+            List<Path> userBins;
+            try (Stream<Path> users = Files.list(bins)) {
+                userBins = users.filter(Files::isDirectory).toList();
+            } catch (IOException e) {
+                System.out.println("Problem occurred while collecting recycle bins on " + volume + ": " + e.getCause() + " | " + e.getMessage());
+                continue;
+            }
+            for (Path bin : userBins) {
+                try {
+                    purged += collectUser(volume, bin);
+                } catch (VolumeBusyException e) {
+                    System.out.println("Recycle bins on " + volume + " are left until the next pass: " + e.getMessage());
+                    break;
+                } catch (IOException e) {
+                    System.out.println("Problem occurred while collecting recycle bin " + bin + ": " + e.getCause() + " | " + e.getMessage());
+                }
+            }
+        }
+        if (purged > 0) {
+            System.out.printf("Recycle bins collected: %d bytes purged (%.3f sec).%n", purged, (System.currentTimeMillis() - start) / 1000.0);
+        }
+    }
+
+    private long collectUser(StorageVolume volume, Path bin) throws IOException {
+        List<RecycledEntry> entries = new ArrayList<>();
+        long total = 0;
+        try (Stream<Path> list = Files.list(bin)) {
+            for (Path p : list.toList()) {
+                RecycledEntry entry = new RecycledEntry(p, deletionTime(p), size(p));
+                entries.add(entry);
+                total += entry.size;
+            }
+        }
+        entries.sort(Comparator.comparingLong(e -> e.deletedAt));
+
+        long now = System.currentTimeMillis();
+        long purged = 0;
+        for (RecycledEntry entry : entries) {
+            boolean expired = maxAgeMillis > 0 && now - entry.deletedAt > maxAgeMillis;
+            boolean overLimit = maxBytesPerUser > 0 && total > maxBytesPerUser;
+            if (!expired && !overLimit) break;
+            purge(volume, entry.path, overLimit || volume.getUsedFraction() >= forcePurgeUsedFraction);
+            total -= entry.size;
+            purged += entry.size;
+        }
+        return purged;
+    }
+
+    /**
+     * @param forced удалять сразу, без очереди планировщика записи тома
+     */
+    private void purge(StorageVolume volume, Path path, boolean forced) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                delete(volume, file, attrs.size(), forced);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                delete(volume, dir, 0, forced);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Удаляет файл или пустую директорию, соблюдая ограничение скорости удаления. Без принудительного удаления
+     * ждет своей очереди в планировщике записи тома (задача PURGE_USER).
+     *
+     * @throws VolumeBusyException если поток прерван
+     */
+    private void delete(StorageVolume volume, Path path, long bytes, boolean forced) throws IOException {
+        try {
+            long waitNanos = Math.max(purgeBytes.nanosUntilAvailable(bytes), purgeFiles.nanosUntilAvailable(1));
+            if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+            purgeBytes.consume(bytes);
+            purgeFiles.consume(1);
+            if (forced) {
+                Files.deleteIfExists(path);
+                return;
+            }
+            CompletableFuture<Void> deleted = new CompletableFuture<>();
+            volume.getWriteScheduler().submit(PURGE_USER, null, bytes, 1, () -> {
+                try {
+                    Files.deleteIfExists(path);
+                    deleted.complete(null);
+                } catch (IOException | RuntimeException e) {
+                    deleted.completeExceptionally(e);
+                }
+            });
+            deleted.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VolumeBusyException("interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Элементы корзины называются "$&lt;время удаления в мс&gt;_&lt;имя&gt;".
+     */
+    private static long deletionTime(Path entry) throws IOException {
+        String name = entry.getFileName().toString();
+        int separator = name.indexOf('_');
+        if (name.startsWith("$") && separator > 1) {
+            try {
+                return Long.parseLong(name.substring(1, separator));
+            } catch (NumberFormatException e) {
+                // не наш формат имени - ориентируемся на время изменения
+            }
+        }
+        return Files.getLastModifiedTime(entry).toMillis();
+    }
+
+    private static long size(Path entry) throws IOException {
+        if (!Files.isDirectory(entry)) return Files.size(entry);
+        try (Stream<Path> files = Files.walk(entry)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        }
+    }
+
+    private static class VolumeBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private VolumeBusyException(String message) {
+            super(message);
+        }
+    }
+
+    private static class RecycledEntry {
+        private final Path path;
+        private final long deletedAt;
+        private final long size;
+
+        private RecycledEntry(Path path, long deletedAt, long size) {
+            this.path = path;
+            this.deletedAt = deletedAt;
+            this.size = size;
+        }
+    }
+}
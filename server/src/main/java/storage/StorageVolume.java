@@ -0,0 +1,249 @@
+package storage;
+
+import files.ChangeJournal;
+import files.UsageCounter;
+import limits.FairWriteScheduler;
+import limits.IngestLimits;
+import metrics.Metrics;
+import utils.WorkloadExecutor;
+import utils.WorkloadType;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Корневая директория хранилища на отдельном устройстве.
+ * У каждого тома свой пул потоков ввода-вывода и свой планировщик записи,
+ * поэтому запись на разные устройства идет параллельно.
+ * Очереди тома видны в метриках volume.номер.*: объем данных, ожидающих планировщика записи и записи на диск,
+ * и состояние пула потоков тома.
+ */
+public class StorageVolume {
+
+    public static final String RECYCLE_BIN_DIRECTORY = "$recycled";
+    public static final String JOURNAL_DIRECTORY = "$journal";
+    public static final String STAGING_DIRECTORY = "$staging";
+
+    private final int index;
+    private final Path root;
+    private final WorkloadExecutor executor;
+    private final FairWriteScheduler writeScheduler;
+    private final GroupCommitter groupCommitter;
+    private final FileCloner cloner;
+    private final WriteBehindBuffer writeBehind;
+    private final Map<String, ChangeJournal> journals = new ConcurrentHashMap<>();
+    private final Map<String, UsageCounter> usages = new ConcurrentHashMap<>();
+    private final Map<Path, CompletableFuture<Path>> pendingCommits = new ConcurrentHashMap<>();
+    private final AtomicLong tempFiles = new AtomicLong();
+
+    StorageVolume(int index, Path root, IngestLimits limits) throws IOException {
+        this.index = index;
+        this.root = root;
+        Files.createDirectories(root);
+        cleanStaging();
+        int threads = WorkloadType.STORAGE.getThreads();
+        this.executor = WorkloadExecutor.bounded("volume-" + index, threads, WorkloadType.STORAGE.getQueueCapacity());
+        this.writeScheduler = new FairWriteScheduler(executor, threads, limits);
+        this.groupCommitter = new GroupCommitter(executor);
+        this.cloner = new FileCloner(root, this::newTempFile);
+        this.writeBehind = new WriteBehindBuffer(executor);
+        String prefix = "volume." + index + ".";
+        Metrics.gauge(prefix + "scheduled.bytes", writeScheduler::getPendingBytes);
+        Metrics.gauge(prefix + "writeBehind.bytes", writeBehind::getPendingBytes);
+        Metrics.gauge(prefix + "pool.active", () -> executor.getStatistics().getActive());
+        Metrics.gauge(prefix + "pool.queued", () -> executor.getStatistics().getQueued());
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public WorkloadExecutor getExecutor() {
+        return executor;
+    }
+
+    public FairWriteScheduler getWriteScheduler() {
+        return writeScheduler;
+    }
+
+    public GroupCommitter getGroupCommitter() {
+        return groupCommitter;
+    }
+
+    /**
+     * Передает загрузку GroupCommitter. Фиксация запоминается до своего завершения, чтобы операции
+     * с тем же путем можно было выполнить после нее (awaitCommits), не задерживая остальные операции пользователя.
+     *
+     * @param upload завершенная загрузка
+     * @return future фиксации (см. GroupCommitter.commit)
+     */
+    public CompletableFuture<Path> commit(Upload upload) {
+        Path target = upload.getTarget();
+        CompletableFuture<Path> commit = groupCommitter.commit(upload);
+        pendingCommits.put(target, commit);
+        commit.whenComplete((p, e) -> pendingCommits.remove(target, commit));
+        return commit;
+    }
+
+    /**
+     * @param paths пути файлов или директорий
+     * @return future, которое завершится, когда закончатся (успешно или нет) незавершенные фиксации файлов
+     * по этим путям и внутри них, или null, если таких фиксаций нет
+     */
+    public CompletableFuture<Void> awaitCommits(Path... paths) {
+        List<CompletableFuture<Path>> result = new ArrayList<>();
+        pendingCommits.forEach((target, commit) -> {
+            for (Path path : paths) {
+                if (target.startsWith(path)) {
+                    result.add(commit);
+                    break;
+                }
+            }
+        });
+        if (result.isEmpty()) return null;
+        return CompletableFuture.allOf(result.toArray(new CompletableFuture<?>[0])).handle((v, e) -> null);
+    }
+
+    public WriteBehindBuffer getWriteBehind() {
+        return writeBehind;
+    }
+
+    public FileCloner getCloner() {
+        return cloner;
+    }
+
+    /**
+     * @param relativePath путь относительно корня тома (начинается с имени пользователя)
+     * @return абсолютный путь
+     */
+    public Path resolve(String relativePath) {
+        return Paths.get(root.toString(), "\\", relativePath);
+    }
+
+    /**
+     * Временные файлы (загрузки, копии) создаются в директории $staging тома: вне директорий пользователей,
+     * чтобы не смешиваться с их файлами, но на том же устройстве, чтобы перенос на место оставался атомарным.
+     *
+     * @param kind вид временного файла (часть имени)
+     * @return путь нового временного файла с уникальным именем
+     */
+    public Path newTempFile(String kind) {
+        return Path.of(root + "\\" + STAGING_DIRECTORY + "\\" + kind + "_" + tempFiles.incrementAndGet());
+    }
+
+    /**
+     * Удаляет временные файлы, оставшиеся от прерванных загрузок (только при запуске сервера: во время работы
+     * в $staging лежат файлы незавершенных загрузок всех сессий).
+     */
+    private void cleanStaging() throws IOException {
+        Path staging = Path.of(root + "\\" + STAGING_DIRECTORY);
+        Files.createDirectories(staging);
+        try (Stream<Path> files = Files.list(staging)) {
+            for (Path f : files.toList()) {
+                try {
+                    Files.deleteIfExists(f);
+                } catch (IOException e) {
+                    System.out.println("Problem with file: " + f);
+                }
+            }
+        }
+    }
+
+    public Path getUserDirectory(String username) {
+        return Path.of(root + "\\" + username);
+    }
+
+    public Path getUserRecycleBinDirectory(String username) {
+        return Path.of(root + "\\" + RECYCLE_BIN_DIRECTORY + "\\" + username);
+    }
+
+    /**
+     * @return журнал изменений файлов пользователя (общий для всех его сессий)
+     */
+    public ChangeJournal getJournal(String username) {
+        return journals.computeIfAbsent(username, u -> new ChangeJournal(Path.of(root + "\\" + JOURNAL_DIRECTORY + "\\" + u)));
+    }
+
+    /**
+     * @return объем файлов пользователя (общий для всех его сессий); хранится рядом с журналом изменений
+     */
+    public UsageCounter getUsage(String username) {
+        return usages.computeIfAbsent(username, u -> new UsageCounter(Path.of(root + "\\" + JOURNAL_DIRECTORY + "\\" + u + ".usage"), getUserDirectory(u)));
+    }
+
+    /**
+     * Сохраняет объем файлов пользователя, у которого не осталось сессий (следующая сессия прочитает его из файла).
+     */
+    public void closeUsage(String username) {
+        UsageCounter usage = usages.remove(username);
+        if (usage != null) usage.close();
+    }
+
+    /**
+     * Закрывает и удаляет журнал изменений и счетчик объема файлов пользователя (при переносе пользователя на другой том).
+     * Следующий журнал получит новый идентификатор, поэтому клиенты запросят полный перечень файлов,
+     * а не изменения по журналу, который не видел изменений на другом томе.
+     */
+    public void dropJournal(String username) {
+        ChangeJournal journal = journals.remove(username);
+        if (journal != null) journal.close();
+        UsageCounter usage = usages.remove(username);
+        if (usage != null) usage.close();
+        try {
+            Files.deleteIfExists(Path.of(root + "\\" + JOURNAL_DIRECTORY + "\\" + username));
+            Files.deleteIfExists(Path.of(root + "\\" + JOURNAL_DIRECTORY + "\\" + username + ".usage"));
+        } catch (IOException e) {
+            System.out.println("Problem occurred while deleting change journal of " + username + ": " + e.getMessage());
+        }
+    }
+
+    public boolean containsUser(String username) {
+        return Files.isDirectory(getUserDirectory(username));
+    }
+
+    /**
+     * @return доля занятого места на устройстве тома (от 0 до 1)
+     */
+    public double getUsedFraction() {
+        try {
+            FileStore store = Files.getFileStore(root);
+            long total = store.getTotalSpace();
+            return total == 0 ? 1 : 1 - (double) store.getUsableSpace() / total;
+        } catch (IOException e) {
+            return 1;
+        }
+    }
+
+    public long getUsableSpace() {
+        try {
+            return Files.getFileStore(root).getUsableSpace();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        journals.values().forEach(ChangeJournal::close);
+        usages.values().forEach(UsageCounter::close);
+    }
+
+    @Override
+    public String toString() {
+        return "Volume{index=" + index + ", root=" + root + '}';
+    }
+}
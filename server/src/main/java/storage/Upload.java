@@ -0,0 +1,136 @@
+package storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Загружаемый файл. Данные пишутся во временный файл в директории $staging тома
+ * и переносятся на место целевого только после завершения передачи (см. GroupCommitter).
+ * Если известен ожидаемый размер, временный файл сразу получает эту длину. Место при этом
+ * не резервируется: в файловых системах Unix файл остается разреженным, поэтому свободное место проверяется
+ * до начала загрузки (SessionHandler.checkUploadAllowed), а его нехватка все равно может обнаружиться при записи.
+ */
+public class Upload {
+
+    private final Path target;
+    private final Path temp;
+    private final FileChannel channel;
+    private final long replacedSize;
+    private long length;
+    private IOException failure;
+
+    private Upload(Path target, Path temp, long expectedSize) throws IOException {
+        this.target = target;
+        this.temp = temp;
+        this.replacedSize = Files.exists(target) ? Files.size(target) : 0;
+        Files.createDirectories(target.getParent());
+        Files.createDirectories(temp.getParent());
+        RandomAccessFile file = new RandomAccessFile(temp.toFile(), "rw");
+        try {
+            file.setLength(0);
+            // только длина: на NTFS SetEndOfFile выделяет кластеры, в Unix файл остается разреженным (без fallocate)
+            if (expectedSize > 0) file.setLength(expectedSize);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Начинает загрузку.
+     *
+     * @param target       целевой файл
+     * @param temp         временный файл (на том же устройстве, см. StorageVolume.newTempFile)
+     * @param expectedSize ожидаемый размер файла (-1 - неизвестен)
+     * @return загрузка
+     * @throws IOException если не удалось создать временный файл
+     */
+    public static Upload start(Path target, Path temp, long expectedSize) throws IOException {
+        return new Upload(target, temp, expectedSize);
+    }
+
+    public synchronized void write(long position, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            pos += channel.write(buffer, pos);
+        }
+        extendLength(position + data.length);
+    }
+
+    /**
+     * Векторная запись нескольких идущих подряд порций начиная с указанного смещения.
+     */
+    synchronized void write(long position, ByteBuffer[] buffers) throws IOException {
+        long total = 0;
+        for (ByteBuffer b : buffers) {
+            total += b.remaining();
+        }
+        channel.position(position);
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers);
+        }
+        extendLength(position + total);
+    }
+
+    synchronized void extendLength(long end) {
+        length = Math.max(length, end);
+    }
+
+    /**
+     * Помечает загрузку как неудавшуюся: фиксация такой загрузки завершится ошибкой.
+     */
+    synchronized void fail(IOException e) {
+        if (failure == null) failure = e;
+    }
+
+    /**
+     * Отрезает зарезервированное, но не записанное место и сбрасывает данные на диск.
+     */
+    synchronized void force() throws IOException {
+        if (failure != null) throw failure;
+        if (channel.size() != length) channel.truncate(length);
+        channel.force(true);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Прерывает загрузку: закрывает и удаляет временный файл. Целевой файл остается нетронутым.
+     */
+    public void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.out.println("Problem occurred while aborting upload of " + target + ": " + e.getCause() + " | " + e.getMessage());
+        }
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public Path getTemp() {
+        return temp;
+    }
+
+    public synchronized long getLength() {
+        return length;
+    }
+
+    /**
+     * @return размер файла, который будет заменен загрузкой (0 - если файла не было)
+     */
+    public long getReplacedSize() {
+        return replacedSize;
+    }
+}
@@ -0,0 +1,314 @@
+package storage;
+
+import limits.IngestLimits;
+import utils.ThreadPool;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Распределяет пользователей по томам хранилища и переносит их при добавлении новых томов.
+ * Перенос пользователя выполняется в фоне, пока у него нет активных сессий, после выполнения его
+ * незавершенных задач записи; новые сессии этого пользователя дожидаются окончания переноса.
+ */
+public class VolumeManager {
+
+    private static final int MIGRATION_ATTEMPTS = Integer.getInteger("cloudstorage.migration.attempts", 3);
+    private static final long MIGRATION_RETRY_MILLIS = Long.getLong("cloudstorage.migration.retryMillis", 5000);
+
+    private final List<StorageVolume> volumes = new ArrayList<>();
+    private final ConsistentHashRing ring = new ConsistentHashRing();
+    private final Map<String, UserPlacement> placements = new HashMap<>();
+    private final PlacementStrategy strategy;
+    private final IngestLimits limits;
+
+    public VolumeManager(List<Path> roots, PlacementStrategy strategy, IngestLimits limits) throws IOException {
+        this.strategy = strategy;
+        this.limits = limits;
+        for (Path root : roots) {
+            StorageVolume volume = new StorageVolume(volumes.size(), root, limits);
+            volumes.add(volume);
+            ring.add(volume);
+        }
+        discoverUsers();
+    }
+
+    /**
+     * Занимает том пользователя на время сессии. Если пользователь сейчас переносится, future завершится после переноса.
+     *
+     * @param username имя пользователя
+     * @return том, на котором расположены данные пользователя
+     */
+    public synchronized CompletableFuture<StorageVolume> acquire(String username) {
+        UserPlacement p = placements.computeIfAbsent(username, u -> new UserPlacement(place(u)));
+        if (p.migration != null && !p.migration.isDone()) {
+            return p.migration.thenCompose(v -> acquire(username));
+        }
+        p.leases++;
+        return CompletableFuture.completedFuture(p.volume);
+    }
+
+    /**
+     * Освобождает том пользователя после окончания сессии.
+     *
+     * @param username имя пользователя
+     */
+    public synchronized void release(String username) {
+        UserPlacement p = placements.get(username);
+        if (p == null) return;
+        p.leases = Math.max(0, p.leases - 1);
+        if (p.leases == 0) p.volume.closeUsage(username);
+        if (p.leases == 0 && p.pendingTarget != null) startMigration(username, p);
+    }
+
+    /**
+     * Добавляет новый том и переносит на него часть пользователей.
+     *
+     * @param root корневая директория тома
+     * @return добавленный том
+     * @throws IOException если корневую директорию не удалось создать
+     */
+    public synchronized StorageVolume addVolume(Path root) throws IOException {
+        StorageVolume volume = new StorageVolume(volumes.size(), root, limits);
+        volumes.add(volume);
+        ring.add(volume);
+        List<String> toMove = strategy == PlacementStrategy.CONSISTENT_HASH ? usersMovedByRing() : usersToRebalance(volume);
+        for (String username : toMove) {
+            UserPlacement p = placements.get(username);
+            p.pendingTarget = strategy == PlacementStrategy.CONSISTENT_HASH ? ring.locate(username) : volume;
+            if (p.leases == 0) startMigration(username, p);
+        }
+        System.out.println("Volume added: " + volume + ", users to migrate: " + toMove.size());
+        return volume;
+    }
+
+    public synchronized List<StorageVolume> getVolumes() {
+        return List.copyOf(volumes);
+    }
+
+    public synchronized StorageVolume getVolume(String username) {
+        UserPlacement p = placements.get(username);
+        return p == null ? null : p.volume;
+    }
+
+    public PlacementStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void shutdown() {
+        for (StorageVolume volume : getVolumes()) {
+            volume.shutdown();
+        }
+    }
+
+    private StorageVolume place(String username) {
+        return switch (strategy) {
+            case CONSISTENT_HASH -> ring.locate(username);
+            case LEAST_USED -> volumes.stream().min(Comparator.comparingDouble(StorageVolume::getUsedFraction)).orElseThrow();
+        };
+    }
+
+    private void discoverUsers() throws IOException {
+        Map<String, List<StorageVolume>> found = new HashMap<>();
+        for (StorageVolume volume : volumes) {
+            try (Stream<Path> dirs = Files.list(volume.getRoot())) {
+                dirs.filter(Files::isDirectory)
+                        .map(d -> d.getFileName().toString())
+                        .filter(name -> !name.startsWith("$"))
+                        .forEach(name -> found.computeIfAbsent(name, n -> new ArrayList<>()).add(volume));
+            }
+        }
+        for (Map.Entry<String, List<StorageVolume>> entry : found.entrySet()) {
+            List<StorageVolume> holders = entry.getValue();
+            UserPlacement p = new UserPlacement(holders.get(0));
+            placements.put(entry.getKey(), p);
+            if (holders.size() > 1) {
+                // перенос был прерван - завершаем его на том, который выбрала бы текущая стратегия
+                StorageVolume preferred = place(entry.getKey());
+                p.pendingTarget = holders.contains(preferred) ? preferred : holders.get(0);
+                startMigration(entry.getKey(), p);
+            }
+        }
+    }
+
+    private List<String> usersMovedByRing() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, UserPlacement> entry : placements.entrySet()) {
+            if (ring.locate(entry.getKey()) != entry.getValue().volume) result.add(entry.getKey());
+        }
+        return result;
+    }
+
+    private List<String> usersToRebalance(StorageVolume newVolume) {
+        StorageVolume fullest = volumes.stream().filter(v -> v != newVolume)
+                .max(Comparator.comparingDouble(StorageVolume::getUsedFraction)).orElse(null);
+        if (fullest == null) return List.of();
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, UserPlacement> entry : placements.entrySet()) {
+            if (entry.getValue().volume == fullest) candidates.add(entry.getKey());
+        }
+        Map<String, Long> sizes = new HashMap<>();
+        for (String username : candidates) {
+            sizes.put(username, directorySize(fullest.getUserDirectory(username)));
+        }
+        candidates.sort(Comparator.comparingLong(sizes::get).reversed());
+        long freeOnNew = newVolume.getUsableSpace();
+        long freeOnFullest = fullest.getUsableSpace();
+        List<String> result = new ArrayList<>();
+        for (String username : candidates) {
+            long size = sizes.get(username);
+            if (freeOnNew - size <= freeOnFullest + size) continue;
+            freeOnNew -= size;
+            freeOnFullest += size;
+            result.add(username);
+        }
+        return result;
+    }
+
+    private void startMigration(String username, UserPlacement p) {
+        StorageVolume target = p.pendingTarget;
+        StorageVolume origin = p.volume;
+        CompletableFuture<Void> migration = new CompletableFuture<>();
+        p.migration = migration;
+        // перенос начинается, когда на исходных томах выполнены все ранее поставленные задачи записи пользователя
+        // и завершены фиксации его файлов в GroupCommitter, и до его окончания эти очереди стоят
+        List<CompletableFuture<Void>> drained = new ArrayList<>();
+        for (StorageVolume source : volumes) {
+            if (source == target || (source != origin && !source.containsUser(username))) continue;
+            CompletableFuture<Void> barrier = new CompletableFuture<>();
+            drained.add(barrier);
+            source.getWriteScheduler().submitAsync(username, null, 0, 0, () -> {
+                CompletableFuture<Void> committed = source.awaitCommits(source.getUserDirectory(username));
+                if (committed == null) barrier.complete(null);
+                else committed.thenRun(() -> barrier.complete(null));
+                return migration;
+            });
+        }
+        CompletableFuture.allOf(drained.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> migrate(username, p, origin, target, 1, migration), target.getExecutor());
+    }
+
+    /**
+     * Переносит данные пользователя на том target. При ошибке перенос повторяется (до MIGRATION_ATTEMPTS раз),
+     * а после последней неудачной попытки уже перенесенные файлы возвращаются на том origin,
+     * чтобы данные пользователя не остались разделенными между томами. Если не удалось и это,
+     * перенос будет завершен при следующем запуске сервера (discoverUsers).
+     */
+    private void migrate(String username, UserPlacement p, StorageVolume origin, StorageVolume target, int attempt, CompletableFuture<Void> migration) {
+        long start = System.currentTimeMillis();
+        try {
+            for (StorageVolume source : getVolumes()) {
+                if (source == target) continue;
+                Map<Object, Path> moved = new HashMap<>();
+                moveTree(source.getUserDirectory(username), target.getUserDirectory(username), moved);
+                moveTree(source.getUserRecycleBinDirectory(username), target.getUserRecycleBinDirectory(username), moved);
+                source.dropJournal(username);
+            }
+            target.dropJournal(username);
+            synchronized (this) {
+                p.volume = target;
+                if (p.pendingTarget == target) p.pendingTarget = null;
+            }
+            System.out.printf("User %s migrated to %s (%.3f sec).%n", username, target, (System.currentTimeMillis() - start) / 1000.0);
+        } catch (IOException e) {
+            System.out.println("Problem occurred while migrating user " + username + " (attempt " + attempt + "): " + e.getCause() + " | " + e.getMessage());
+            if (attempt < MIGRATION_ATTEMPTS) {
+                ThreadPool.schedule(() -> target.getExecutor().execute(() -> migrate(username, p, origin, target, attempt + 1, migration)),
+                        MIGRATION_RETRY_MILLIS * attempt, TimeUnit.MILLISECONDS);
+                return;
+            }
+            rollback(username, origin, target);
+        }
+        migration.complete(null);
+    }
+
+    private static void rollback(String username, StorageVolume origin, StorageVolume target) {
+        if (origin == target) {
+            // перенос, прерванный до перезапуска: данные и так собираются на этом томе
+            System.out.println("Migration of user " + username + " to " + target + " is not finished, it will be completed on restart");
+            return;
+        }
+        try {
+            Map<Object, Path> moved = new HashMap<>();
+            moveTree(target.getUserDirectory(username), origin.getUserDirectory(username), moved);
+            moveTree(target.getUserRecycleBinDirectory(username), origin.getUserRecycleBinDirectory(username), moved);
+            System.out.println("Migration of user " + username + " to " + target + " is rolled back to " + origin);
+        } catch (IOException e) {
+            System.out.println("Problem occurred while rolling back migration of user " + username + ", it will be completed on restart: " + e.getMessage());
+        }
+        origin.dropJournal(username);
+        target.dropJournal(username);
+    }
+
+    /**
+     * Перемещает файлы поддерева. Между устройствами Files.move копирует данные, поэтому файлы, связанные
+     * жесткими ссылками (FileCloner в режиме link), на новом месте снова связываются ссылкой
+     * с уже перенесенной копией, а не копируются повторно.
+     *
+     * @param moved перенесенные файлы по ключу файла (fileKey) - общий для поддеревьев одного пользователя
+     */
+    private static void moveTree(Path from, Path to, Map<Object, Path> moved) throws IOException {
+        if (!Files.exists(from)) return;
+        Files.walkFileTree(from, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path destination = to.resolve(from.relativize(file));
+                Path linked = attrs.fileKey() == null ? null : moved.get(attrs.fileKey());
+                if (linked != null && relink(linked, destination)) {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+                Files.move(file, destination, StandardCopyOption.REPLACE_EXISTING);
+                if (attrs.fileKey() != null) moved.put(attrs.fileKey(), destination);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static boolean relink(Path existing, Path link) {
+        try {
+            Files.deleteIfExists(link);
+            Files.createLink(link, existing);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private static long directorySize(Path dir) {
+        if (!Files.exists(dir)) return 0;
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(f -> f.toFile().length()).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static class UserPlacement {
+        private StorageVolume volume;
+        private StorageVolume pendingTarget;
+        private CompletableFuture<Void> migration;
+        private int leases;
+
+        private UserPlacement(StorageVolume volume) {
+            this.volume = volume;
+        }
+    }
+}
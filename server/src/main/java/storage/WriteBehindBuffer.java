@@ -0,0 +1,274 @@
+package storage;
+
+import utils.ThreadPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Буфер отложенной записи тома для мелких порций данных.
+ * Порции, меньшие cloudstorage.writeBehind.maxChunkBytes, копируются в общую область памяти вне кучи
+ * (cloudstorage.writeBehind.capacityBytes) и сбрасываются на диск крупными последовательными записями,
+ * упорядоченными по файлу и смещению, - при заполнении области на 3/4 или спустя
+ * cloudstorage.writeBehind.maxDelayMillis после первой отложенной порции.
+ * Порции одного файла сбрасываются сразу, когда передача файла завершена (flush(Upload)).
+ * Область выделяется по кругу: место порции освобождается, как только она (и все порции, выделенные раньше)
+ * записана на диск, поэтому прием новых порций не ждет, пока опустеет вся область.
+ * Под монитором буфера только выбираются порции для записи; сама запись выполняется вне его.
+ */
+public class WriteBehindBuffer {
+
+    private final Executor executor;
+    private final ByteBuffer arena;
+    private final int flushThreshold;
+    private final int maxChunkBytes = Integer.getInteger("cloudstorage.writeBehind.maxChunkBytes", 256 * 1024);
+    private final long maxDelayMillis = Long.getLong("cloudstorage.writeBehind.maxDelayMillis", 50);
+    private final List<PendingWrite> pending = new ArrayList<>();
+    private final ArrayDeque<PendingWrite> allocations = new ArrayDeque<>();
+    private final Map<Upload, Integer> writing = new HashMap<>();
+    private int head;
+    private int pendingBytes;
+    private ScheduledFuture<?> scheduledFlush;
+
+    WriteBehindBuffer(Executor executor) {
+        this.executor = executor;
+        int capacity = Integer.getInteger("cloudstorage.writeBehind.capacityBytes", 32 * 1024 * 1024);
+        this.arena = ByteBuffer.allocateDirect(capacity);
+        this.flushThreshold = capacity / 4 * 3;
+    }
+
+    /**
+     * Записывает порцию данных загрузки: мелкие порции откладываются, крупные пишутся сразу.
+     *
+     * @param upload   загрузка
+     * @param position смещение в файле
+     * @param data     данные
+     * @throws IOException если запись на диск не удалась
+     */
+    public void write(Upload upload, long position, byte[] data) throws IOException {
+        if (data.length > 0 && data.length < maxChunkBytes && data.length <= arena.capacity()) {
+            if (defer(upload, position, data)) return;
+            // область занята порциями, которые еще записываются, - сбрасываем остальные и пробуем снова
+            writeTaken(takeAll());
+            if (defer(upload, position, data)) return;
+        }
+        flush(upload);
+        upload.write(position, data);
+    }
+
+    /**
+     * Сбрасывает на диск отложенные порции одного файла, в том числе дожидается записи его порций,
+     * которые уже сбрасываются другим потоком.
+     *
+     * @param upload загрузка
+     */
+    public void flush(Upload upload) {
+        List<PendingWrite> writes = new ArrayList<>();
+        synchronized (this) {
+            Iterator<PendingWrite> it = pending.iterator();
+            while (it.hasNext()) {
+                PendingWrite w = it.next();
+                if (w.upload == upload) {
+                    writes.add(w);
+                    it.remove();
+                }
+            }
+            take(writes);
+        }
+        writeTaken(writes);
+        awaitWritten(upload);
+    }
+
+    /**
+     * Отбрасывает отложенные порции прерванной загрузки.
+     *
+     * @param upload загрузка
+     */
+    public void discard(Upload upload) {
+        synchronized (this) {
+            Iterator<PendingWrite> it = pending.iterator();
+            while (it.hasNext()) {
+                PendingWrite w = it.next();
+                if (w.upload == upload) {
+                    it.remove();
+                    pendingBytes -= w.length;
+                    w.released = true;
+                }
+            }
+            reclaim();
+        }
+        awaitWritten(upload);
+    }
+
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Копирует порцию в область, если в ней есть место.
+     *
+     * @return false, если места нет
+     */
+    private boolean defer(Upload upload, long position, byte[] data) {
+        boolean flushNow;
+        synchronized (this) {
+            int offset = allocate(data.length);
+            if (offset < 0) return false;
+            arena.put(offset, data);
+            PendingWrite w = new PendingWrite(upload, position, offset, data.length);
+            pending.add(w);
+            allocations.addLast(w);
+            pendingBytes += data.length;
+            upload.extendLength(position + data.length);
+            flushNow = used() >= flushThreshold;
+            if (!flushNow && scheduledFlush == null) {
+                scheduledFlush = ThreadPool.schedule(() -> executor.execute(this::flushQuietly), maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (flushNow) executor.execute(this::flushQuietly);
+        return true;
+    }
+
+    /**
+     * @return смещение выделенного места или -1, если непрерывного свободного места нужного размера нет
+     */
+    private int allocate(int length) {
+        if (allocations.isEmpty()) head = 0;
+        int tail = allocations.isEmpty() ? head : allocations.peekFirst().arenaOffset;
+        int offset;
+        if (allocations.isEmpty() || head > tail) {
+            if (arena.capacity() - head >= length) {
+                offset = head;
+            } else if (tail >= length) {
+                offset = 0;
+            } else {
+                return -1;
+            }
+        } else if (tail - head >= length) {
+            offset = head;
+        } else {
+            return -1;
+        }
+        head = offset + length;
+        return offset;
+    }
+
+    /**
+     * @return занятая часть области (вместе с местом порций, которые уже записываются)
+     */
+    private int used() {
+        if (allocations.isEmpty()) return 0;
+        int tail = allocations.peekFirst().arenaOffset;
+        return head > tail ? head - tail : arena.capacity() - tail + head;
+    }
+
+    private void flushQuietly() {
+        writeTaken(takeAll());
+    }
+
+    private synchronized List<PendingWrite> takeAll() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<PendingWrite> writes = new ArrayList<>(pending);
+        pending.clear();
+        take(writes);
+        return writes;
+    }
+
+    private void take(List<PendingWrite> writes) {
+        for (PendingWrite w : writes) {
+            pendingBytes -= w.length;
+            writing.merge(w.upload, 1, Integer::sum);
+        }
+    }
+
+    private void writeTaken(List<PendingWrite> writes) {
+        try {
+            writeSorted(writes);
+        } finally {
+            synchronized (this) {
+                for (PendingWrite w : writes) {
+                    w.released = true;
+                    writing.computeIfPresent(w.upload, (u, n) -> n == 1 ? null : n - 1);
+                }
+                reclaim();
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Освобождает место записанных порций с начала круга (место порции, выделенной позже еще не записанной,
+     * освобождается вместе с ней).
+     */
+    private void reclaim() {
+        while (!allocations.isEmpty() && allocations.peekFirst().released) {
+            allocations.pollFirst();
+        }
+    }
+
+    private synchronized void awaitWritten(Upload upload) {
+        boolean interrupted = false;
+        while (writing.containsKey(upload)) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Упорядочивает порции по файлу и смещению и объединяет идущие подряд порции в одну векторную запись.
+     */
+    private void writeSorted(List<PendingWrite> writes) {
+        if (writes.isEmpty()) return;
+        writes.sort(Comparator.comparing((PendingWrite w) -> w.upload.getTemp()).thenComparingLong(w -> w.position));
+        int runStart = 0;
+        for (int i = 1; i <= writes.size(); i++) {
+            boolean runEnds = i == writes.size()
+                    || writes.get(i).upload != writes.get(i - 1).upload
+                    || writes.get(i).position != writes.get(i - 1).position + writes.get(i - 1).length;
+            if (runEnds) {
+                writeRun(writes.subList(runStart, i));
+                runStart = i;
+            }
+        }
+    }
+
+    private void writeRun(List<PendingWrite> run) {
+        Upload upload = run.get(0).upload;
+        ByteBuffer[] buffers = new ByteBuffer[run.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            PendingWrite w = run.get(i);
+            buffers[i] = arena.slice(w.arenaOffset, w.length);
+        }
+        try {
+            upload.write(run.get(0).position, buffers);
+        } catch (IOException e) {
+            upload.fail(e);
+        }
+    }
+
+    private static class PendingWrite {
+        private final Upload upload;
+        private final long position;
+        private final int arenaOffset;
+        private final int length;
+        private boolean released;
+
+        private PendingWrite(Upload upload, long position, int arenaOffset, int length) {
+            this.upload = upload;
+            this.position = position;
+            this.arenaOffset = arenaOffset;
+            this.length = length;
+        }
+    }
+}